@@ -16,7 +16,6 @@
  */
 package com.webkreator.qlue;
 
-import com.webkreator.qlue.annotations.QlueCommandObject;
 import com.webkreator.qlue.annotations.QlueParameter;
 import com.webkreator.qlue.annotations.QluePersistentPage;
 import com.webkreator.qlue.exceptions.BadRequestException;
@@ -34,8 +33,8 @@ import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Serializable;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 
 /**
  * Represents a single unit of work application will perform. This class handles both non-persistent
@@ -124,6 +123,10 @@ public abstract class Page implements Serializable {
 
     protected ShadowInput shadowInput = new ShadowInput();
 
+    // Not serialised, because persistent pages may be stored with the session;
+    // deserialised pages get a new lock on first use.
+    private transient volatile Semaphore lock;
+
     protected Page() {
     }
 
@@ -198,6 +201,28 @@ public abstract class Page implements Serializable {
         this.app = app;
     }
 
+    /**
+     * Returns the lock that serialises access to this page, ensuring
+     * that only one request can process it at any given time. It's a
+     * semaphore with a single permit, because an asynchronous page is
+     * released by the thread that completes it, not by the one that
+     * locked it.
+     */
+    Semaphore getLock() {
+        Semaphore l = lock;
+        if (l == null) {
+            synchronized (this) {
+                if (lock == null) {
+                    lock = new Semaphore(1);
+                }
+
+                l = lock;
+            }
+        }
+
+        return l;
+    }
+
     /**
      * Return a command object. By default, the page is the command object, but
      * a subclass has the option to use a different object. The page can use the
@@ -223,43 +248,10 @@ public abstract class Page implements Serializable {
      * behavior.
      */
     protected void determineCommandObject() {
-
-        // Look for the command object among the page fields via the @QlueCommandObject annotation.
-        try {
-            Field[] fields = this.getClass().getFields();
-            for (Field f : fields) {
-                if (f.isAnnotationPresent(QlueCommandObject.class)) {
-                    commandObject = f.get(this);
-
-                    // If the command object doesn't exist, we try to create a new instance.
-                    if (commandObject == null) {
-                        try {
-                            // Our first attempt is to use the default constructor.
-                            commandObject = f.getType().newInstance();
-                            f.set(this, commandObject);
-                        } catch (InstantiationException ie) {
-                            // Inner classes have an implicit constructor that takes a reference to the parent object.
-                            // http://docs.oracle.com/javase/specs/jls/se8/html/jls-8.html#jls-8.8.1
-                            try {
-                                commandObject = f.getType().getConstructor(this.getClass()).newInstance(this);
-                                f.set(this, commandObject);
-                            } catch (NoSuchMethodException | InstantiationException | InvocationTargetException ex) {
-                                throw new RuntimeException("Unable to create command object: " + f.getType());
-                            }
-                        }
-                    }
-
-                    commandObjectDetermined = true;
-                    return;
-                }
-            }
-
-            // Leave null as a signal to use itself as the command object.
-            commandObject = null;
-            commandObjectDetermined = true;
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+        // Look for the command object among the page fields via the @QlueCommandObject
+        // annotation. A null value is a signal to use the page as the command object.
+        commandObject = PageFactory.forClass(getClass()).determineCommandObject(this);
+        commandObjectDetermined = true;
     }
 
     /**
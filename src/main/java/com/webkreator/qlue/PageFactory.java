@@ -0,0 +1,197 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueCommandObject;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Creates page instances and their command objects. All reflection is done once,
+ * the first time a page class is seen; the resulting method handles are then
+ * kept for the lifetime of the class.
+ */
+public final class PageFactory {
+
+    private static final ClassValue<PageFactory> factories = new ClassValue<PageFactory>() {
+        @Override
+        protected PageFactory computeValue(Class<?> type) {
+            return new PageFactory(type);
+        }
+    };
+
+    private static final MethodType PAGE_CONSTRUCTOR_TYPE = MethodType.methodType(Page.class);
+
+    private static final MethodType OBJECT_GETTER_TYPE = MethodType.methodType(Object.class, Page.class);
+
+    private static final MethodType OBJECT_SETTER_TYPE = MethodType.methodType(void.class, Page.class, Object.class);
+
+    private static final MethodType COMMAND_OBJECT_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Page.class);
+
+    private final Class<?> pageClass;
+
+    // Creates a new page instance; null if the class
+    // doesn't have an accessible default constructor.
+    private final MethodHandle constructor;
+
+    private final Class<?> commandObjectClass;
+
+    private final MethodHandle commandObjectGetter;
+
+    private final MethodHandle commandObjectSetter;
+
+    // Creates a new command object, given the page
+    // instance; null if we don't know how to do that.
+    private final MethodHandle commandObjectConstructor;
+
+    private PageFactory(Class<?> pageClass) {
+        this.pageClass = pageClass;
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        MethodHandle ctor = null;
+        if (Page.class.isAssignableFrom(pageClass) && !Modifier.isAbstract(pageClass.getModifiers())) {
+            try {
+                ctor = lookup.findConstructor(pageClass, MethodType.methodType(void.class)).asType(PAGE_CONSTRUCTOR_TYPE);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // Reported when an attempt to create an instance is made.
+            }
+        }
+
+        constructor = ctor;
+
+        // Look for the command object among the page fields via the @QlueCommandObject annotation.
+        Field commandObjectField = null;
+        for (Field f : pageClass.getFields()) {
+            if (f.isAnnotationPresent(QlueCommandObject.class)) {
+                commandObjectField = f;
+                break;
+            }
+        }
+
+        if (commandObjectField == null) {
+            commandObjectClass = null;
+            commandObjectGetter = null;
+            commandObjectSetter = null;
+            commandObjectConstructor = null;
+            return;
+        }
+
+        commandObjectClass = commandObjectField.getType();
+
+        try {
+            commandObjectGetter = lookup.unreflectGetter(commandObjectField).asType(OBJECT_GETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+
+        MethodHandle setter = null;
+        if (!Modifier.isFinal(commandObjectField.getModifiers())) {
+            try {
+                setter = lookup.unreflectSetter(commandObjectField).asType(OBJECT_SETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                // Reported when an attempt to set the command object is made.
+            }
+        }
+
+        commandObjectSetter = setter;
+        commandObjectConstructor = findCommandObjectConstructor(lookup, commandObjectClass, pageClass);
+    }
+
+    private static MethodHandle findCommandObjectConstructor(MethodHandles.Lookup lookup, Class<?> type, Class<?> pageClass) {
+        if (Modifier.isAbstract(type.getModifiers()) || type.isInterface()) {
+            return null;
+        }
+
+        // Our first attempt is to use the default constructor.
+        try {
+            MethodHandle mh = lookup.findConstructor(type, MethodType.methodType(void.class));
+            return MethodHandles.dropArguments(mh.asType(MethodType.methodType(Object.class)), 0, Page.class);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            // Continue.
+        }
+
+        // Inner classes have an implicit constructor that takes a reference to the parent object.
+        // http://docs.oracle.com/javase/specs/jls/se8/html/jls-8.html#jls-8.8.1
+        try {
+            MethodHandle mh = lookup.findConstructor(type, MethodType.methodType(void.class, pageClass));
+            return mh.asType(COMMAND_OBJECT_CONSTRUCTOR_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the factory for the given page class.
+     */
+    public static PageFactory forClass(Class<?> pageClass) {
+        return factories.get(pageClass);
+    }
+
+    /**
+     * Creates a new page instance.
+     */
+    public Page newPage() throws Exception {
+        if (constructor == null) {
+            throw new InstantiationException("Unable to create page: " + pageClass.getName());
+        }
+
+        try {
+            return (Page) constructor.invokeExact();
+        } catch (Exception | java.lang.Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Determines the command object of the given page, creating it if the page uses a
+     * command object field that is not initialized.
+     *
+     * @return command object, or null if the page is its own command object
+     */
+    Object determineCommandObject(Page page) {
+        if (commandObjectGetter == null) {
+            return null;
+        }
+
+        try {
+            Object commandObject = (Object) commandObjectGetter.invokeExact(page);
+
+            // If the command object doesn't exist, we try to create a new instance.
+            if (commandObject == null) {
+                if ((commandObjectConstructor == null) || (commandObjectSetter == null)) {
+                    throw new RuntimeException("Unable to create command object: " + commandObjectClass);
+                }
+
+                commandObject = (Object) commandObjectConstructor.invokeExact(page);
+                commandObjectSetter.invokeExact(page, commandObject);
+            }
+
+            return commandObject;
+        } catch (RuntimeException | java.lang.Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Unable to create command object: " + commandObjectClass, t);
+        }
+    }
+}
@@ -25,11 +25,13 @@ import com.webkreator.qlue.annotations.QlueSchedule;
 import com.webkreator.qlue.editors.*;
 import com.webkreator.qlue.exceptions.*;
 import com.webkreator.qlue.router.QlueRouteManager;
+import com.webkreator.qlue.router.Route;
 import com.webkreator.qlue.router.RouteFactory;
 import com.webkreator.qlue.router.RouteManager;
 import com.webkreator.qlue.util.*;
 import com.webkreator.qlue.view.*;
 import com.webkreator.qlue.view.velocity.ClasspathVelocityViewFactory;
+import com.webkreator.qlue.view.velocity.AssetTool;
 import com.webkreator.qlue.view.velocity.DefaultVelocityTool;
 import com.webkreator.qlue.view.velocity.QlueVelocityTool;
 import com.webkreator.qlue.view.velocity.VelocityViewFactory;
@@ -42,6 +44,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.*;
 import javax.validation.ConstraintViolation;
@@ -57,6 +63,12 @@ import java.net.UnknownHostException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -102,6 +114,34 @@ public class QlueApplication {
 
     private static final String PROPERTY_URGENT_EMAIL = "qlue.urgentEmail";
 
+    private static final String PROPERTY_ROUTES_RELOAD = "qlue.routes.reload";
+
+    private static final String PROPERTY_ASYNC_DOWNLOADS = "qlue.async.downloads";
+
+    private static final String PROPERTY_ASYNC_VIEWS = "qlue.async.views";
+
+    private static final String PROPERTY_ASYNC_MIN_SIZE = "qlue.async.minSize";
+
+    private static final String PROPERTY_ASYNC_PAGE_TIMEOUT = "qlue.async.pageTimeout";
+
+    private static final String PROPERTY_ASYNC_WRITE_TIMEOUT = "qlue.async.writeTimeout";
+
+    private static final String PROPERTY_EXECUTOR = "qlue.executor";
+
+    private static final String PROPERTY_SERVER_TIMING = "qlue.serverTiming";
+
+    private static final String PROPERTY_DEADLINE_HEADER = "qlue.deadlineHeader";
+
+    private static final String PROPERTY_SLOW_REQUESTS_THRESHOLD = "qlue.slowRequests.threshold";
+
+    private static final String PROPERTY_SLOW_REQUESTS_SAMPLE_INTERVAL = "qlue.slowRequests.sampleInterval";
+
+    private static final String PROPERTY_SLOW_REQUESTS_MAX_SAMPLES = "qlue.slowRequests.maxSamples";
+
+    private static final String PROPERTY_SLOW_REQUESTS_EMAIL = "qlue.slowRequests.email";
+
+    private static final String PROPERTY_SLOW_REQUESTS_EMAIL_INTERVAL = "qlue.slowRequests.emailInterval";
+
     private String messagesFilename = "com/webkreator/qlue/messages";
 
     private Properties properties = new Properties();
@@ -150,6 +190,38 @@ public class QlueApplication {
 
     private int frontendEncryptionCheck = FRONTEND_ENCRYPTION_CONTAINER;
 
+    private boolean asyncDownloads = false;
+
+    private boolean asyncViews = false;
+
+    private long asyncMinSize = 64 * 1024;
+
+    private long asyncPageTimeout = 30 * 1000;
+
+    private long asyncWriteTimeout = 5 * 60 * 1000;
+
+    // Executors used in the virtual thread mode; null otherwise.
+    private Executor pageExecutor;
+
+    private Executor jobExecutor;
+
+    private ThreadFactory emailThreadFactory;
+
+    private final ReentrantLock adminEmailLock = new ReentrantLock();
+
+    private boolean serverTiming = false;
+
+    private String deadlineHeader;
+
+    private SlowRequestWatchdog slowRequestWatchdog;
+
+    private boolean slowRequestEmails = false;
+
+    private long slowRequestEmailInterval = 10 * 60 * 1000;
+
+    // When we last sent a slow request email, per route.
+    private final Map<String, Long> slowRequestEmailTimes = new ConcurrentHashMap<>();
+
     private Timer timer;
 
     private String priorityTemplatePath;
@@ -247,6 +319,10 @@ public class QlueApplication {
         File routesFile = new File(confPath, ROUTES_FILENAME);
         if (routesFile.exists()) {
             routeManager.load(routesFile);
+
+            if (Boolean.parseBoolean(getProperty(PROPERTY_ROUTES_RELOAD))) {
+                routeManager.watch(routesFile);
+            }
         }
     }
 
@@ -301,6 +377,35 @@ public class QlueApplication {
 
         urgentEmail = getProperty(PROPERTY_URGENT_EMAIL);
 
+        asyncDownloads = getBooleanProperty(PROPERTY_ASYNC_DOWNLOADS, "false");
+
+        asyncViews = getBooleanProperty(PROPERTY_ASYNC_VIEWS, "false");
+
+        asyncMinSize = getLongProperty(PROPERTY_ASYNC_MIN_SIZE, asyncMinSize);
+
+        asyncPageTimeout = getLongProperty(PROPERTY_ASYNC_PAGE_TIMEOUT, asyncPageTimeout);
+
+        asyncWriteTimeout = getLongProperty(PROPERTY_ASYNC_WRITE_TIMEOUT, asyncWriteTimeout);
+
+        serverTiming = getBooleanProperty(PROPERTY_SERVER_TIMING, "false");
+
+        deadlineHeader = getProperty(PROPERTY_DEADLINE_HEADER);
+
+        if (getProperty(PROPERTY_SLOW_REQUESTS_THRESHOLD) != null) {
+            slowRequestEmails = getBooleanProperty(PROPERTY_SLOW_REQUESTS_EMAIL, "false");
+            slowRequestEmailInterval = getLongProperty(PROPERTY_SLOW_REQUESTS_EMAIL_INTERVAL, slowRequestEmailInterval);
+            slowRequestWatchdog = new SlowRequestWatchdog(
+                    Long.parseLong(getProperty(PROPERTY_SLOW_REQUESTS_THRESHOLD)),
+                    getIntProperty(PROPERTY_SLOW_REQUESTS_SAMPLE_INTERVAL, 100),
+                    getIntProperty(PROPERTY_SLOW_REQUESTS_MAX_SAMPLES, 100),
+                    this::reportSlowRequest);
+            slowRequestWatchdog.start();
+        }
+
+        if (getProperty(PROPERTY_EXECUTOR) != null) {
+            configureExecutor(getProperty(PROPERTY_EXECUTOR));
+        }
+
         // Configure the SMTP email senders
 
         smtpEmailSender = new SmtpEmailSender();
@@ -309,7 +414,12 @@ public class QlueApplication {
             AsyncSmtpEmailSender myAsyncSmtpEmailSender = new AsyncSmtpEmailSender(smtpEmailSender);
 
             // Start a new daemon thread to send email in the background.
-            Thread thread = new Thread(myAsyncSmtpEmailSender);
+            Thread thread;
+            if (emailThreadFactory != null) {
+                thread = emailThreadFactory.newThread(myAsyncSmtpEmailSender);
+            } else {
+                thread = new Thread(myAsyncSmtpEmailSender);
+            }
             thread.setDaemon(true);
             thread.start();
 
@@ -367,16 +477,48 @@ public class QlueApplication {
         }
     }
 
+    private void configureExecutor(String value) {
+        if ("platform".equals(value)) {
+            pageExecutor = null;
+            jobExecutor = null;
+            emailThreadFactory = null;
+        } else if ("virtual".equals(value)) {
+            if (!VirtualThreads.isSupported()) {
+                log.warn("Virtual threads are not supported by this JVM; using platform threads");
+                return;
+            }
+
+            pageExecutor = VirtualThreads.newExecutor("qlue-page-");
+            jobExecutor = VirtualThreads.newExecutor("qlue-job-");
+            emailThreadFactory = VirtualThreads.newThreadFactory("qlue-email-");
+        } else {
+            throw new RuntimeException("Invalid value for the " + PROPERTY_EXECUTOR + " parameter:" + value);
+        }
+    }
+
     public void qlueBeforeDestroy() {
         if (scheduler != null) {
             scheduler.stop();
         }
+
+        routeManager.stopWatching();
+
+        // Stop the threads that watch static directories; otherwise they
+        // would keep the application (and its class loader) alive.
+        FileMetadataCache.closeAll();
+        StaticFileCache.closeAll();
+        AssetManifest.closeAll();
+        ErrorPageCache.closeAll();
+        DirectoryWatcher.closeShared();
     }
 
     /**
      * Destroys the application. Invoked when the backing servlet is destroyed.
      */
     public void destroy() {
+        if (slowRequestWatchdog != null) {
+            slowRequestWatchdog.stop();
+        }
     }
 
     /**
@@ -384,6 +526,63 @@ public class QlueApplication {
      */
     protected void service(HttpServlet servlet, HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException
+    {
+        // In the virtual thread mode, we hand over the transaction to a virtual
+        // thread, releasing the container thread for the duration of processing.
+        if ((pageExecutor != null) && request.isAsyncSupported() && !request.isAsyncStarted()
+                && (request.getDispatcherType() == DispatcherType.REQUEST)) {
+            dispatch(pageExecutor, servlet, request, response);
+            return;
+        }
+
+        serviceTransaction(servlet, request, response);
+    }
+
+    /**
+     * Processes the transaction using the given executor. Only the executor's
+     * thread completes the transaction, because the container recycles the request
+     * and the response once that happens. For the same reason, the container's
+     * timeout is disabled; the processing time can be limited with deadlines.
+     */
+    void dispatch(Executor executor, HttpServlet servlet, HttpServletRequest request, HttpServletResponse response)
+            throws IOException
+    {
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+
+        try {
+            executor.execute(() -> {
+                try {
+                    serviceTransaction(servlet, request, response);
+                } catch (Exception e) {
+                    // There's no container thread to propagate the
+                    // exception to, so we log it and respond directly.
+                    log.error("Exception during request processing", e);
+
+                    try {
+                        if (!response.isCommitted()) {
+                            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        }
+                    } catch (IOException ioe) {
+                        // Nothing more we can do.
+                    }
+                } finally {
+                    asyncContext.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Unable to dispatch request: " + request.getRequestURI());
+
+            try {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    private void serviceTransaction(HttpServlet servlet, HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
     {
         // Remember when processing began.
         long startTime = System.currentTimeMillis();
@@ -400,6 +599,14 @@ public class QlueApplication {
                 request,
                 response);
 
+        applyDeadlineHeader(context);
+
+        // Asynchronous pages are tracked only until the thread is released.
+        SlowRequestWatchdog.InFlight inFlight = null;
+        if (slowRequestWatchdog != null) {
+            inFlight = slowRequestWatchdog.track(context);
+        }
+
         // Proceed to the second stage of request processing
         try {
             if (log.isDebugEnabled()) {
@@ -412,33 +619,133 @@ public class QlueApplication {
                 log.debug("Processed request in " + (System.currentTimeMillis() - startTime));
             }
         } finally {
+            // Asynchronous pages record their statistics when they complete.
+            if (!context.isAsyncPage()) {
+                finishTransaction(context);
+            }
+
+            if (inFlight != null) {
+                slowRequestWatchdog.untrack(inFlight);
+            }
+
             MDC.clear();
         }
     }
 
+    /**
+     * Invoked with the summary of the stack samples taken while a slow request
+     * was processed. Logs the summary and, if configured, emails it to the
+     * administrators.
+     */
+    protected void reportSlowRequest(TransactionContext context, String report) {
+        log.warn(report);
+
+        if (slowRequestEmails && (adminEmail != null) && isSlowRequestEmailDue(context)) {
+            try {
+                Email email = new SimpleEmail();
+                email.setCharset("UTF-8");
+                email.setSubject("Slow Request: " + context.getRequestUri());
+                email.setMsg(report);
+                sendAdminEmail(email);
+            } catch (Exception e) {
+                log.error("Failed sending admin email: ", e);
+            }
+        }
+    }
+
+    /**
+     * Determines if a slow request email can be sent for the route of the given
+     * transaction; at most one is sent per route in every qlue.slowRequests.emailInterval
+     * milliseconds, so that a route that's slow for everyone doesn't flood the inbox.
+     */
+    boolean isSlowRequestEmailDue(TransactionContext context) {
+        Route route = context.getRoute();
+        String key = (route != null) ? route.getDefinition() : "";
+        long now = System.currentTimeMillis();
+
+        boolean[] due = new boolean[1];
+        slowRequestEmailTimes.compute(key, (k, last) -> {
+            if ((last == null) || (now - last >= slowRequestEmailInterval)) {
+                due[0] = true;
+                return now;
+            }
+
+            return last;
+        });
+
+        return due[0];
+    }
+
+    /**
+     * Sets the transaction deadline from the configured request header, which
+     * contains the number of milliseconds the client is prepared to wait. The
+     * header is honoured only when it comes from one of the trusted proxies.
+     */
+    protected void applyDeadlineHeader(TransactionContext context) {
+        if ((deadlineHeader == null) || context.isErrorHandler()) {
+            return;
+        }
+
+        String value = context.request.getHeader(deadlineHeader);
+        if ((value == null) || !context.isTrustedProxyRequest()) {
+            return;
+        }
+
+        long millis;
+        try {
+            millis = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid deadline header value: " + value);
+            return;
+        }
+
+        // A deadline that has already passed is more likely to be a
+        // misconfiguration than a request the client doesn't want.
+        if (millis <= 0) {
+            log.warn("Invalid deadline header value: " + value);
+            return;
+        }
+
+        context.setDeadline(millis);
+    }
+
     protected Object route(TransactionContext context) {
         return routeManager.route(context);
     }
 
+    public QlueRouteManager getRouteManager() {
+        return routeManager;
+    }
+
     protected View processPage(Page page) throws Exception {
         View view = null;
+        PhaseTimer timer = page.context.getPhaseTimer();
 
         page.setRoutedResponseHeaders();
 
+        // Don't start working on transactions that are already past their
+        // deadline, and check again between the phases, so that expensive
+        // work isn't carried out when the client has given up.
+        page.context.checkDeadline();
+
         // Initialize backend. This is a handy place to do things needed for later
         // on, for example, configure database access.
         view = page.initBackend();
         if (view != null) {
+            timer.mark(PhaseTimer.Phase.ACCESS);
             return view;
         }
 
         // Check access. The idea with this hook is to run it as early as possible,
         // before any parameters are accessed, thus minimising the executed code.
         view = page.checkAccess();
+        timer.mark(PhaseTimer.Phase.ACCESS);
         if (view != null) {
             return view;
         }
 
+        page.context.checkDeadline();
+
         // For persistent pages, we clear errors only on POSTs; that
         // means that a subsequent GET can access the errors to show
         // them to the user.
@@ -447,12 +754,14 @@ public class QlueApplication {
         }
 
         bindParameters(page);
+        timer.mark(PhaseTimer.Phase.BIND);
 
         doBeanValidation(page);
 
         // Custom parameter validation.
         view = page.validateParameters();
         if (view != null) {
+            timer.mark(PhaseTimer.Phase.VALIDATE);
             return view;
         }
 
@@ -460,16 +769,22 @@ public class QlueApplication {
         if (page.hasErrors()) {
             view = page.handleParameterValidationFailure();
             if (view != null) {
+                timer.mark(PhaseTimer.Phase.VALIDATE);
                 return view;
             }
         }
 
+        timer.mark(PhaseTimer.Phase.VALIDATE);
+
+        page.context.checkDeadline();
+
         // Initialize the page. This really only makes sense for persistent pages, where you
         // want to run some code only once. With non-persistent pages, it's better to have
         // all the code in the same method.
         if (page.getState().equals(Page.STATE_INIT)) {
             view = page.init();
             if (view != null) {
+                timer.mark(PhaseTimer.Phase.SERVICE);
                 return view;
             }
         }
@@ -477,13 +792,16 @@ public class QlueApplication {
         // Early call to prepare the page for the main thing.
         view = page.prepareForService();
         if (view != null) {
+            timer.mark(PhaseTimer.Phase.SERVICE);
             return view;
         }
 
         page.startHttpSession();
 
         // Finally, run the main processing entry point.
-        return page.service();
+        view = page.service();
+        timer.mark(PhaseTimer.Phase.SERVICE);
+        return view;
     }
 
     /**
@@ -542,6 +860,7 @@ public class QlueApplication {
 
             Page routedPage = null;
             Object routeObject = route(context);
+            context.getPhaseTimer().mark(PhaseTimer.Phase.ROUTE);
             if (routeObject == null) {
                 throw new NotFoundException();
             } else if (routeObject instanceof View) {
@@ -564,40 +883,7 @@ public class QlueApplication {
                 page = routedPage;
             }
 
-            // Run the page. Access to the page is synchronised, which means that only one
-            // HTTP request can handle it at any given time.
-
-            synchronized (page) {
-                page.setApp(this);
-                page.determineDefaultViewName(viewResolver);
-                page.setContext(context);
-                page.determineCommandObject();
-
-                if (page.isPersistent()) {
-                    context.persistPage(page);
-                }
-
-                View view = processPage(page);
-                if (view != null) {
-                    renderView(view, context, page);
-                }
-
-                // Execute page commit. This is what it sounds like,
-                // an opportunity to use a simple approach to transaction
-                // management for simple applications.
-                page.commit();
-
-                // Automatic page state transition.
-                if (!page.isPersistent()) {
-                    // Non-persistent pages automatically transition to FINISHED so that cleanup can be invoked.
-                    page.setState(Page.STATE_FINISHED);
-                } else {
-                    // For persistent pages, we change their state only if they're left as INIT after execution.
-                    if (page.getState().equals(Page.STATE_INIT)) {
-                        page.setState(page.getDefaultStateAfterInit());
-                    }
-                }
-            }
+            runPage(context, page);
         } catch (PersistentPageNotFoundException ppnfe) {
             // When we encounter an unknown process reference, we
             // redirect back to the site home page. Showing errors
@@ -605,65 +891,265 @@ public class QlueApplication {
             // user to go back and try again (and that's not going to work).
             context.getResponse().sendRedirect("/");
         } catch (Exception e) {
-            boolean responded = false;
+            handlePageException(context, page, e);
+        } finally {
+            if (!context.isAsyncPage()) {
+                finishPage(context, page);
+            }
+        }
+    }
 
-            if (page != null) {
-                page.rollback();
+    /**
+     * Runs the page, with exclusive access to it. Pages that return an
+     * AsyncView stay locked until they're completed.
+     */
+    void runPage(TransactionContext context, Page page) throws Exception {
+        // Run the page. Access to the page is synchronised, which means that only one
+        // HTTP request can handle it at any given time. We use an explicit lock rather
+        // than a monitor so that virtual threads don't pin their carriers while they wait.
 
-                // Because we are about to throw an exception, which may cause
-                // another page to handle this request, we need to remember
-                // the current page (which is useful for debugging information, etc).
-                setRootCausePage(page);
+        page.getLock().acquireUninterruptibly();
+        boolean asyncStarted = false;
+        try {
+            page.setApp(this);
+            page.determineDefaultViewName(viewResolver);
+            page.setContext(context);
+            page.determineCommandObject();
 
-                // See if the page wants to handle the exception.
-                try {
-                    View view = null;
+            if (page.isPersistent()) {
+                context.persistPage(page);
+            }
 
-                    if (e instanceof BadRequestException) {
-                        view = page.handleParameterValidationFailure();
-                    } else {
-                        view = page.handleException(e);
-                    }
+            View view = processPage(page);
 
-                    if (view != null) {
-                        renderView(view, page.getContext(), page);
-                        responded = true;
-                    }
-                } catch (Exception nested) {
-                    log.warn("Exception during page exception handling", nested);
-                }
+            // Pages that return an AsyncView are completed when their view becomes available.
+            if ((view instanceof AsyncView) && startAsyncPage(context, page, (AsyncView) view)) {
+                asyncStarted = true;
+                return;
+            }
+
+            completePage(context, page, view);
+        } finally {
+            // Asynchronous pages stay locked until they're completed.
+            if (!asyncStarted) {
+                page.getLock().release();
+            }
+        }
+    }
+
+    /**
+     * Renders the view produced by the page, then commits the page and
+     * transitions it to the next state.
+     */
+    protected void completePage(TransactionContext context, Page page, View view) throws Exception {
+        PhaseTimer timer = context.getPhaseTimer();
+
+        // There's no point rendering a response the client won't wait for.
+        context.checkDeadline();
+
+        // The header has to be sent before the response body,
+        // which means that it can't include the rendering time.
+        if (serverTiming && isDeveloperRequestIpAddress(context) && !context.response.isCommitted()) {
+            context.response.setHeader("Server-Timing", timer.toServerTiming());
+        }
+
+        if (view != null) {
+            renderView(view, context, page);
+            timer.mark(PhaseTimer.Phase.RENDER);
+        }
+
+        // Execute page commit. This is what it sounds like,
+        // an opportunity to use a simple approach to transaction
+        // management for simple applications.
+        page.commit();
+        timer.mark(PhaseTimer.Phase.COMMIT);
+
+        // Automatic page state transition.
+        if (!page.isPersistent()) {
+            // Non-persistent pages automatically transition to FINISHED so that cleanup can be invoked.
+            page.setState(Page.STATE_FINISHED);
+        } else {
+            // For persistent pages, we change their state only if they're left as INIT after execution.
+            if (page.getState().equals(Page.STATE_INIT)) {
+                page.setState(page.getDefaultStateAfterInit());
             }
+        }
+    }
+
+    /**
+     * Handles an exception thrown during page processing, rolling back the page,
+     * giving it a chance to respond, and otherwise sending the appropriate status code.
+     */
+    protected void handlePageException(TransactionContext context, Page page, Exception e) throws ServletException, IOException {
+        boolean responded = false;
 
-            if (!isQlueDevMode(context)) {
+        if ((e instanceof QlueException) && (((QlueException) e).getRetryAfter() >= 0)
+                && !context.getResponse().isCommitted()) {
+            context.getResponse().setHeader("Retry-After", Long.toString(((QlueException) e).getRetryAfter()));
+        }
 
-                // Production mode.
+        if (page != null) {
+            page.rollback();
 
-                Integer statusCode = determineStatusCodeFromException(e);
-                if ((statusCode != null) && (statusCode == HttpServletResponse.SC_INTERNAL_SERVER_ERROR)) {
-                    processUnhandledApplicationException(context, page, e);
+            // Because we are about to throw an exception, which may cause
+            // another page to handle this request, we need to remember
+            // the current page (which is useful for debugging information, etc).
+            setRootCausePage(page);
+
+            // See if the page wants to handle the exception.
+            try {
+                View view = null;
+
+                if (e instanceof DeadlineExceededException) {
+                    // The client has given up; abandon the transaction without rendering.
+                } else if (e instanceof BadRequestException) {
+                    view = page.handleParameterValidationFailure();
+                } else {
+                    view = page.handleException(e);
                 }
 
-                // Send the correct status code to the container, assuming it's not to
-                // late and a response hasn't been sent already.
-                if ((!responded) && (statusCode != null) && !context.getResponse().isCommitted()) {
-                    setRootCausePage(page);
-                    context.getResponse().sendError(statusCode);
+                if (view != null) {
+                    renderView(view, page.getContext(), page);
+                    responded = true;
                 }
-            } else {
-                // Development mode; we want to show the exception in the browser,
-                // so we just propagate it to the container.
+            } catch (Exception nested) {
+                log.warn("Exception during page exception handling", nested);
+            }
+        }
+
+        if (!isQlueDevMode(context)) {
+
+            // Production mode.
+
+            Integer statusCode = determineStatusCodeFromException(e);
+            if ((statusCode != null) && (statusCode == HttpServletResponse.SC_INTERNAL_SERVER_ERROR)) {
                 processUnhandledApplicationException(context, page, e);
+            }
+
+            // Send the correct status code to the container, assuming it's not to
+            // late and a response hasn't been sent already.
+            if ((!responded) && (statusCode != null) && !context.getResponse().isCommitted()) {
                 setRootCausePage(page);
-                throw new ServletException(e);
+                context.getResponse().sendError(statusCode);
             }
-        } finally {
-            // In development mode, append debugging information to the end of the page.
-            masterWriteRequestDevelopmentInformation(context, page);
+        } else {
+            // Development mode; we want to show the exception in the browser,
+            // so we just propagate it to the container.
+            processUnhandledApplicationException(context, page, e);
+            setRootCausePage(page);
+            throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Invoked at the end of every transaction that reached a page.
+     */
+    protected void finishPage(TransactionContext context, Page page) throws IOException {
+        // In development mode, append debugging information to the end of the page.
+        masterWriteRequestDevelopmentInformation(context, page);
+
+        // Invoke cleanup on finished pages.
+        if ((page != null) && (page.isFinished()) && (!page.isCleanupInvoked())) {
+            page.cleanup();
+        }
+    }
+
+    /**
+     * Switches the transaction into asynchronous mode, releasing the container
+     * thread until the page's view becomes available.
+     *
+     * @return false if asynchronous processing isn't possible, in which case
+     * the caller should wait for the view in the current thread
+     */
+    protected boolean startAsyncPage(TransactionContext context, Page page, AsyncView asyncView) {
+        HttpServletRequest request = context.request;
+        if (!request.isAsyncSupported() || request.isAsyncStarted()
+                || (request.getDispatcherType() != DispatcherType.REQUEST)) {
+            return false;
+        }
 
-            // Invoke cleanup on finished pages.
-            if ((page != null) && (page.isFinished()) && (!page.isCleanupInvoked())) {
-                page.cleanup();
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(asyncPageTimeout);
+        context.setAsyncPage(true);
+
+        // The transaction is completed exactly once, either when
+        // the view becomes available or when the timeout is reached.
+        AtomicBoolean completed = new AtomicBoolean();
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (completed.compareAndSet(false, true)) {
+                    completeAsyncPage(context, page, asyncContext, null, new ServiceUnavailableException());
+                }
             }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        asyncView.getStage().whenComplete((view, t) -> {
+            if (completed.compareAndSet(false, true)) {
+                completeAsyncPage(context, page, asyncContext, view, t);
+            }
+        });
+
+        return true;
+    }
+
+    private void completeAsyncPage(TransactionContext context, Page page, AsyncContext asyncContext, View view, Throwable t) {
+        try {
+            try {
+                // The page has been locked since serviceInternal() started it.
+                try {
+                    // Waiting for the view counts as part of the service phase.
+                    context.getPhaseTimer().mark(PhaseTimer.Phase.SERVICE);
+
+                    if (t != null) {
+                        throw AsyncView.unwrap(t);
+                    }
+
+                    completePage(context, page, view);
+                } finally {
+                    page.getLock().release();
+                }
+            } catch (Exception e) {
+                try {
+                    handlePageException(context, page, e);
+                } catch (ServletException se) {
+                    // Development mode, but there's no container thread to
+                    // propagate the exception to, so we respond directly.
+                    if (!context.getResponse().isCommitted()) {
+                        context.getResponse().sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                }
+            } finally {
+                finishPage(context, page);
+            }
+        } catch (Exception e) {
+            log.error("Failed to complete asynchronous page", e);
+        } finally {
+            finishTransaction(context);
+            asyncContext.complete();
+        }
+    }
+
+    private void finishTransaction(TransactionContext context) {
+        context.releaseConcurrencyPermit();
+
+        Route route = context.getRoute();
+        if (route != null) {
+            route.getStatistics().recordProcessing(System.nanoTime() - context.getRoutedNanoTime());
+            route.getStatistics().recordPhases(context.getPhaseTimer());
         }
     }
 
@@ -736,11 +1222,20 @@ public class QlueApplication {
         }
     }
 
-    public synchronized void sendAdminEmail(Email email) {
+    public void sendAdminEmail(Email email) {
         sendAdminEmail(email, false);
     }
 
-    public synchronized void sendAdminEmail(Email email, boolean fatalError) {
+    public void sendAdminEmail(Email email, boolean fatalError) {
+        adminEmailLock.lock();
+        try {
+            sendAdminEmailInternal(email, fatalError);
+        } finally {
+            adminEmailLock.unlock();
+        }
+    }
+
+    private void sendAdminEmailInternal(Email email, boolean fatalError) {
         if (adminEmail == null) {
             return;
         }
@@ -793,6 +1288,14 @@ public class QlueApplication {
     }
 
     public void renderView(View view, TransactionContext tx, Page page) throws Exception {
+        // Asynchronous views are waited for when we're not able to release the thread.
+        if (view instanceof AsyncView) {
+            view = ((AsyncView) view).await(asyncPageTimeout);
+            if (view == null) {
+                return;
+            }
+        }
+
         // For persistent pages, we clear errors only on POSTs; that
         // means that a subsequent GET can access the errors to show
         // them to the user.
@@ -1573,6 +2076,7 @@ public class QlueApplication {
     public List<QlueVelocityTool> getVelocityTools() {
         List<QlueVelocityTool> tools = new ArrayList<>();
         tools.add(new DefaultVelocityTool("_f"));
+        tools.add(new AssetTool("_assets"));
         return tools;
     }
 
@@ -1953,6 +2457,23 @@ public class QlueApplication {
         return Integer.parseInt(value);
     }
 
+    /**
+     * Retrieve a single long property, using the supplied default value if
+     * the property is not set.
+     */
+    public long getLongProperty(String key, long defaultValue) {
+        String value = getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid value for the " + key + " parameter: " + value);
+        }
+    }
+
     /**
      * Configure the path to the file that contains localized messages.
      */
@@ -1991,9 +2512,10 @@ public class QlueApplication {
     }
 
     /**
-     * Allocates a new page ID.
+     * Allocates a new transaction ID. UUID generation is thread-safe,
+     * so there's no need to serialise access here.
      */
-    synchronized String generateTransactionId() {
+    String generateTransactionId() {
         return UUID.randomUUID().toString();
     }
 
@@ -2021,6 +2543,45 @@ public class QlueApplication {
         return adminEmail;
     }
 
+    /**
+     * Returns how long (in milliseconds) a page can take to
+     * produce the view it returned wrapped in an AsyncView.
+     */
+    public long getAsyncPageTimeout() {
+        return asyncPageTimeout;
+    }
+
+    /**
+     * Returns how long (in milliseconds) an asynchronous response
+     * can take to write before the transaction is abandoned.
+     */
+    public long getAsyncWriteTimeout() {
+        return asyncWriteTimeout;
+    }
+
+    /**
+     * Determines if a response body of the given length can be written
+     * asynchronously, releasing the request thread.
+     *
+     * @param context current transaction
+     * @param view true for rendered views, false for downloads
+     * @param length response body length, or -1 if not yet known
+     */
+    public boolean isAsyncOutputAllowed(TransactionContext context, boolean view, long length) {
+        if (!(view ? asyncViews : asyncDownloads) || ((length >= 0) && (length < asyncMinSize))) {
+            return false;
+        }
+
+        HttpServletRequest request = context.request;
+        if (!request.isAsyncSupported() || request.isAsyncStarted()
+                || (request.getDispatcherType() != DispatcherType.REQUEST)) {
+            return false;
+        }
+
+        // In development mode, we sometimes append to the output after the view is rendered.
+        return !isQlueDevMode(context);
+    }
+
     protected void scheduleTask(Runnable maintenanceTask, Date firstTime, long period) {
         if (timer == null) {
             timer = new Timer();
@@ -2119,7 +2680,14 @@ public class QlueApplication {
                 if (Modifier.isPublic(m.getModifiers()) || (Modifier.isProtected(m.getModifiers()))) {
                     QlueSchedule qs = m.getAnnotation(QlueSchedule.class);
                     try {
-                        scheduler.schedule(qs.value(), new QlueScheduleMethodTaskWrapper(this, this, m));
+                        Runnable task = new QlueScheduleMethodTaskWrapper(this, this, m);
+                        if (jobExecutor != null) {
+                            // Hand the job over to a virtual thread.
+                            Runnable job = task;
+                            task = () -> jobExecutor.execute(job);
+                        }
+
+                        scheduler.schedule(qs.value(), task);
                         log.debug("Scheduled method: " + m.getName());
                     } catch (InvalidPatternException ipe) {
                         log.error("QlueSchedule: Invalid schedule pattern: " + qs.value());
@@ -2203,6 +2771,8 @@ public class QlueApplication {
             return View.STATUS_400_BAD_REQUEST;
         } else if (e instanceof TooManyRequestsException) {
             return View.STATUS_429_TOO_MANY_REQUESTS;
+        } else if (e instanceof ServiceUnavailableException) {
+            return View.STATUS_503_SERVICE_UNAVAILABLE;
         } else if (e.getClass().getName().contains("ClientAbortException")) {
             // Returning null here to indicate
             // that no response should be sent.
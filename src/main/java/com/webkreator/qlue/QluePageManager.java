@@ -25,6 +25,7 @@ import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Keeps track of all persistent pages.
@@ -39,6 +40,10 @@ public class QluePageManager implements Serializable {
 
     private Map<Integer, PersistentPageRecord> pages = new HashMap<Integer, PersistentPageRecord>();
 
+    // We use an explicit lock rather than a monitor so that
+    // virtual threads don't pin their carriers while they wait.
+    private final ReentrantLock lock = new ReentrantLock();
+
     /**
      * Initialize a new page manager.
      */
@@ -69,11 +74,20 @@ public class QluePageManager implements Serializable {
     /**
      * Store persistent page.
      */
-    public synchronized void storePage(Page page) {
+    public void storePage(Page page) {
         if (page == null) {
             throw new IllegalArgumentException("page");
         }
 
+        lock.lock();
+        try {
+            storePageInternal(page);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void storePageInternal(Page page) {
         // Generate persistence ID when we're storing the page for the first time.
         if (page.getId() == null) {
             page.setId(generatePageId());
@@ -118,8 +132,13 @@ public class QluePageManager implements Serializable {
     /**
      * Generate unique persistent page ID.
      */
-    public synchronized int generatePageId() {
-        return nextPersistentPageId + new Random().nextInt(1000);
+    public int generatePageId() {
+        lock.lock();
+        try {
+            return nextPersistentPageId + new Random().nextInt(1000);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -16,7 +16,11 @@
  */
 package com.webkreator.qlue;
 
+import com.webkreator.qlue.exceptions.DeadlineExceededException;
+import com.webkreator.qlue.router.Route;
+import com.webkreator.qlue.util.ConcurrencyLimiter;
 import com.webkreator.qlue.util.HtmlEncoder;
+import com.webkreator.qlue.util.PhaseTimer;
 import com.webkreator.qlue.util.TextUtil;
 import com.webkreator.qlue.util.WebUtil;
 import com.webkreator.qlue.view.FinalRedirectView;
@@ -36,6 +40,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is used mostly to keep all the other stuff (relevant to a single
@@ -43,9 +48,12 @@ import java.util.*;
  */
 public class TransactionContext implements Serializable {
 
+    // SecureRandom instances are thread-safe and expensive to seed, so we share one.
+    private static final SecureRandom nonceRandom = new SecureRandom();
+
     public String txId;
 
-    public String nonce;
+    private String nonce;
 
     public ServletConfig servletConfig;
 
@@ -65,9 +73,11 @@ public class TransactionContext implements Serializable {
 
     private String requestContentTypeNoCharset;
 
-    private Map<String, String> urlParams = new HashMap<>();
+    // The following maps are created only when they're needed.
+
+    private Map<String, String> urlParams;
 
-    private Map<String, Object> ctxParams = new HashMap<>();
+    private Map<String, Object> ctxParams;
 
     private String effectiveRemoteAddr;
 
@@ -75,9 +85,30 @@ public class TransactionContext implements Serializable {
 
     private boolean frontendEncrypted;
 
-    private Map<String, String> responseHeaders = new HashMap<>();
+    private Map<String, String> responseHeaders;
+
+    private Properties properties;
+
+    private Boolean trustedProxyRequest;
+
+    private transient Route route;
+
+    private String host;
+
+    private boolean hostDetermined;
+
+    private long routedNanoTime;
 
-    private Properties properties = new Properties();
+    private volatile boolean asyncPage;
+
+    private final PhaseTimer phaseTimer = new PhaseTimer();
+
+    private transient ConcurrencyLimiter.Permit concurrencyPermit;
+
+    // The deadline, as a System.nanoTime() value; valid only if hasDeadline is set.
+    private long deadlineNanos;
+
+    private boolean hasDeadline;
 
     /**
      * Initialise context instance.
@@ -93,7 +124,6 @@ public class TransactionContext implements Serializable {
         this.response = response;
 
         generateTxId();
-        generateNonce();
 
         initRequestUri();
         handleFrontendEncryption();
@@ -106,11 +136,27 @@ public class TransactionContext implements Serializable {
     }
 
     public Properties getProperties() {
+        if (properties == null) {
+            properties = new TransactionProperties();
+        }
+
         return properties;
     }
 
+    /**
+     * Determines if the request came from one of the trusted proxies. The
+     * result is computed only once.
+     */
+    public boolean isTrustedProxyRequest() {
+        if (trustedProxyRequest == null) {
+            trustedProxyRequest = app.isTrustedProxyRequest(this);
+        }
+
+        return trustedProxyRequest;
+    }
+
     private void generateTxId() {
-        if (app.isTrustedProxyRequest(this)) {
+        if (isTrustedProxyRequest()) {
             txId = request.getHeader("X-Transaction-ID");
             if (txId != null) {
                 return;
@@ -120,15 +166,16 @@ public class TransactionContext implements Serializable {
         txId = app.generateTransactionId();
     }
 
-    private void generateNonce() {
-        Random random = new SecureRandom();
-        byte[] nonceBytes = new byte[16];
-        random.nextBytes(nonceBytes);
-        nonce = TextUtil.toHex(nonceBytes);
-        properties.setProperty("nonce", nonce);
-    }
-
+    /**
+     * Returns this transaction's nonce, which is generated on first use.
+     */
     public String getNonce() {
+        if (nonce == null) {
+            byte[] nonceBytes = new byte[16];
+            nonceRandom.nextBytes(nonceBytes);
+            nonce = TextUtil.toHex(nonceBytes);
+        }
+
         return nonce;
     }
 
@@ -150,7 +197,7 @@ public class TransactionContext implements Serializable {
                 break;
             case QlueApplication.FRONTEND_ENCRYPTION_TRUSTED_HEADER:
                 // Look for a trusted header to tell us.
-                if (app.isTrustedProxyRequest(this)) {
+                if (isTrustedProxyRequest()) {
                     String frontendProtocol = request.getHeader("X-Forwarded-Proto");
                     if (frontendProtocol != null) {
                         if (frontendProtocol.equals("https")) {
@@ -165,7 +212,7 @@ public class TransactionContext implements Serializable {
     }
 
     private void handleForwardedFor() {
-        if (app.isTrustedProxyRequest(this)) {
+        if (isTrustedProxyRequest()) {
             String combinedAddresses = request.getHeader("X-Forwarded-For");
             if (TextUtil.isEmpty(combinedAddresses) == false) {
                 String[] sx = combinedAddresses.split("[,\\x20]");
@@ -454,10 +501,18 @@ public class TransactionContext implements Serializable {
     }
 
     public String getUrlParameter(String name) {
+        if (urlParams == null) {
+            return null;
+        }
+
         return urlParams.get(name);
     }
 
     public void setUrlParameter(String name, String value) {
+        if (urlParams == null) {
+            urlParams = new HashMap<>();
+        }
+
         urlParams.put(name, value);
     }
 
@@ -465,31 +520,67 @@ public class TransactionContext implements Serializable {
         setUrlParameter(name, value);
     }
 
+    /**
+     * Returns the normalized name of the host to which the request was sent, taken
+     * from the Host request header. The name is converted to lowercase, and the
+     * port and any trailing dot are removed. The result is computed only once.
+     *
+     * @return host name, or null if the request doesn't specify one
+     */
     public String getHost() {
-        String host = request.getHeader("host");
+        if (!hostDetermined) {
+            host = normalizeHost(request.getHeader("host"));
+            hostDetermined = true;
+        }
+
+        return host;
+    }
+
+    public static String normalizeHost(String host) {
         if (host == null) {
             return null;
         }
 
-        host = host.toLowerCase();
+        host = host.trim().toLowerCase(Locale.ROOT);
 
-        int i = host.indexOf(":");
-        if (i != -1) {
-            host = host.substring(0, i);
+        int i;
+        if (host.startsWith("[")) {
+            // IPv6 address, e.g., [::1]:8080
+            i = host.indexOf(']');
+            if (i != -1) {
+                host = host.substring(0, i + 1);
+            }
+        } else {
+            i = host.indexOf(':');
+            if (i != -1) {
+                host = host.substring(0, i);
+            }
+        }
+
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
         }
 
         return host;
     }
 
     public void setParam(String name, Object value) {
-        ctxParams.put(name, value);
+        getParams().put(name, value);
     }
 
     public Object getParam(String name) {
+        if (ctxParams == null) {
+            return null;
+        }
+
         return ctxParams.get(name);
     }
 
     public Map<String, Object> getParams() {
+        if (ctxParams == null) {
+            ctxParams = new HashMap<>();
+        }
+
         return ctxParams;
     }
 
@@ -507,16 +598,130 @@ public class TransactionContext implements Serializable {
 
     public void setResponseHeader(String name, String value) {
         if (value != null) {
+            if (responseHeaders == null) {
+                responseHeaders = new HashMap<>();
+            }
+
             responseHeaders.put(name, value);
-        } else {
+        } else if (responseHeaders != null) {
             responseHeaders.remove(name);
         }
     }
 
     public Map<String, String> getResponseHeaders() {
+        if (responseHeaders == null) {
+            return Collections.emptyMap();
+        }
+
         return responseHeaders;
     }
 
+    /**
+     * Records the route that handled this transaction.
+     */
+    public void setRoute(Route route) {
+        this.route = route;
+        this.routedNanoTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the route that handled this transaction, or
+     * null if the transaction hasn't been routed yet.
+     */
+    public Route getRoute() {
+        return route;
+    }
+
+    /**
+     * Returns the value of System.nanoTime() at the moment the transaction was routed.
+     */
+    public long getRoutedNanoTime() {
+        return routedNanoTime;
+    }
+
+    /**
+     * Returns the timer that tracks how long this transaction
+     * spent in each of its processing phases.
+     */
+    public PhaseTimer getPhaseTimer() {
+        return phaseTimer;
+    }
+
+    /**
+     * Sets the deadline by which this transaction must complete, counting
+     * from the moment the transaction began. If there is a deadline already,
+     * the earlier of the two is kept.
+     */
+    public void setDeadline(long timeoutMillis) {
+        long deadline = phaseTimer.getStartNanos() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        if (!hasDeadline || (deadline - deadlineNanos < 0)) {
+            deadlineNanos = deadline;
+            hasDeadline = true;
+        }
+    }
+
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * Returns the time left until the deadline, in milliseconds, or Long.MAX_VALUE
+     * if there is no deadline. Pages can use this value to size the timeouts
+     * of their backend calls.
+     */
+    public long getRemainingMillis() {
+        if (!hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isDeadlineExpired() {
+        return hasDeadline && (deadlineNanos - System.nanoTime() <= 0);
+    }
+
+    /**
+     * Throws an exception if the deadline has passed.
+     *
+     * @throws DeadlineExceededException if the deadline has passed
+     */
+    public void checkDeadline() {
+        if (isDeadlineExpired()) {
+            throw new DeadlineExceededException("Deadline exceeded");
+        }
+    }
+
+    /**
+     * Keeps the concurrency permit under which this transaction is processed.
+     */
+    public void setConcurrencyPermit(ConcurrencyLimiter.Permit permit) {
+        releaseConcurrencyPermit();
+        concurrencyPermit = permit;
+    }
+
+    /**
+     * Releases the concurrency permit, if there is one.
+     */
+    public void releaseConcurrencyPermit() {
+        if (concurrencyPermit != null) {
+            concurrencyPermit.release();
+            concurrencyPermit = null;
+        }
+    }
+
+    /**
+     * Returns true if the page is being processed asynchronously, in which
+     * case the transaction completes after the request thread is released.
+     */
+    public boolean isAsyncPage() {
+        return asyncPage;
+    }
+
+    void setAsyncPage(boolean asyncPage) {
+        this.asyncPage = asyncPage;
+    }
+
     private void parseContentType() {
         String ct = request.getContentType();
         if (ct == null) {
@@ -552,4 +757,31 @@ public class TransactionContext implements Serializable {
             return false;
         }
     }
+
+    /**
+     * Transaction properties, used for variable expansion. The nonce
+     * is exposed as a property without being generated in advance. Only
+     * the getProperty() methods know about it; it's not returned by get(),
+     * and it doesn't appear among the keys.
+     */
+    private class TransactionProperties extends Properties {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getProperty(String key) {
+            String value = super.getProperty(key);
+            if ((value == null) && "nonce".equals(key)) {
+                return getNonce();
+            }
+
+            return value;
+        }
+
+        @Override
+        public String getProperty(String key, String defaultValue) {
+            String value = getProperty(key);
+            return (value != null) ? value : defaultValue;
+        }
+    }
 }
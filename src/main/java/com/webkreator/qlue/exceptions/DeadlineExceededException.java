@@ -0,0 +1,35 @@
+/* 
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.exceptions;
+
+/**
+ * Thrown when a transaction runs past its deadline. The client has most
+ * likely given up by then, so processing is abandoned and, without
+ * rendering anything, a 503 Service Unavailable response is sent.
+ */
+public class DeadlineExceededException extends ServiceUnavailableException {
+	
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException() {
+		super();
+	}
+
+	public DeadlineExceededException(String message) {
+		super(message);
+	}
+}
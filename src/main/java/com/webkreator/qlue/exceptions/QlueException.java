@@ -24,6 +24,8 @@ public class QlueException extends RuntimeException {
 
 	protected static final long serialVersionUID = 1L;
 
+	private long retryAfter = -1;
+
 	protected QlueException() {
 		super();
 	}
@@ -35,4 +37,18 @@ public class QlueException extends RuntimeException {
     public QlueException(String string, Throwable t) {
         super(string, t);
     }
+
+	/**
+	 * Returns the number of seconds after which the client may retry
+	 * the request, sent in the Retry-After response header, or -1
+	 * if the header should not be sent.
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	public QlueException setRetryAfter(long retryAfter) {
+		this.retryAfter = retryAfter;
+		return this;
+	}
 }
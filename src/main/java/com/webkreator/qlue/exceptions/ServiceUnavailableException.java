@@ -27,4 +27,8 @@ public class ServiceUnavailableException extends QlueException {
 	public ServiceUnavailableException() {
 		super();
 	}
+
+	public ServiceUnavailableException(String message) {
+		super(message);
+	}
 }
@@ -1,4 +1,18 @@
 package com.webkreator.qlue.exceptions;
 
+/**
+ * Thrown when a client makes too many requests. Will be typically
+ * propagated to the user as a 429 Too Many Requests response.
+ */
 public class TooManyRequestsException extends QlueException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TooManyRequestsException() {
+		super();
+	}
+
+	public TooManyRequestsException(String message) {
+		super(message);
+	}
 }
@@ -0,0 +1,79 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.pages;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.annotations.QlueMapping;
+import com.webkreator.qlue.exceptions.ForbiddenException;
+import com.webkreator.qlue.router.RouteStatistics;
+import com.webkreator.qlue.util.HtmlEncoder;
+import com.webkreator.qlue.view.View;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Shows per-route statistics, with the most expensive routes first.
+ * Available only to developers.
+ */
+@QlueMapping(suffix = ".html")
+public class routeStats extends Page {
+
+    @Override
+    public View onGet() throws Exception {
+        if (!isQlueDevMode()) {
+            throw new ForbiddenException();
+        }
+
+        List<RouteStatistics.Snapshot> snapshots = getApp().getRouteManager().getRouteStatistics();
+
+        context.response.setContentType("text/html");
+        PrintWriter out = context.response.getWriter();
+        out.println("<html>");
+        out.println("<head><title>Qlue Route Statistics</title></head>");
+        out.println("<body>");
+        out.println("<h1>Qlue Route Statistics</h1>");
+        out.println("<table border=1 cellpadding=3>");
+        out.println("<tr><th>Route</th><th>Attempts</th><th>Matches</th><th>Method mismatches</th>"
+                + "<th>Routed</th><th>Avg evaluations</th><th>Total time (ms)</th><th>Avg time (ms)</th>"
+                + "<th>Max time (ms)</th></tr>");
+
+        for (RouteStatistics.Snapshot s : snapshots) {
+            out.println("<tr>");
+            out.println("<td><code>" + HtmlEncoder.html(s.getDefinition()) + "</code></td>");
+            out.println("<td align=right>" + s.getAttempts() + "</td>");
+            out.println("<td align=right>" + s.getMatches() + "</td>");
+            out.println("<td align=right>" + s.getMethodMismatches() + "</td>");
+            out.println("<td align=right>" + s.getRouted() + "</td>");
+            out.println("<td align=right>" + String.format("%.1f", s.getAverageEvaluationsBeforeRouting()) + "</td>");
+            out.println("<td align=right>" + toMillis(s.getProcessingNanos()) + "</td>");
+            out.println("<td align=right>" + toMillis(s.getAverageProcessingNanos()) + "</td>");
+            out.println("<td align=right>" + toMillis(s.getMaxProcessingNanos()) + "</td>");
+            out.println("</tr>");
+        }
+
+        out.println("</table>");
+        out.println("</body>");
+        out.println("</html>");
+
+        return null;
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1_000_000.0);
+    }
+}
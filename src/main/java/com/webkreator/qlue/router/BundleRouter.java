@@ -0,0 +1,267 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.util.AssetBundle;
+import com.webkreator.qlue.util.AssetManifest;
+import com.webkreator.qlue.util.VariableExpander;
+import com.webkreator.qlue.util.WebUtil;
+import com.webkreator.qlue.view.BundleView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Routes transactions to asset bundles, which are built from the definitions
+ * in a bundles file. Each line in the file defines one bundle, listing its
+ * name first, then the files it consists of, in order:
+ *
+ * <pre>
+ * &#64;root ${confPath}/../static
+ * site.css css/reset.css css/site.css
+ * site.js js/jquery.js js/site.js
+ * </pre>
+ *
+ * Relative paths are resolved against the directory given with the @root
+ * directive or, if there isn't one, against the directory of the bundles file.
+ * Bundles are rebuilt when the bundles file or any of the files change.
+ */
+public class BundleRouter implements Router {
+
+    public static final String PROPERTY_CHECK_INTERVAL = "qlue.bundles.checkInterval";
+
+    private static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+    private Logger log = LoggerFactory.getLogger(BundleRouter.class);
+
+    protected RouteManager manager;
+
+    private final File bundlesFile;
+
+    private final long checkInterval;
+
+    private volatile Map<String, AssetBundle> bundles;
+
+    // The most recent modification time among all the files we
+    // used to build the bundles, including the bundles file.
+    private long lastModified;
+
+    private volatile long lastChecked;
+
+    private String urlPrefix;
+
+    public BundleRouter(RouteManager manager, String bundlesFile) {
+        this.manager = manager;
+        this.bundlesFile = new File(bundlesFile);
+
+        String interval = manager.getProperties().getProperty(PROPERTY_CHECK_INTERVAL);
+        if (interval != null) {
+            try {
+                checkInterval = Long.parseLong(interval.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + PROPERTY_CHECK_INTERVAL + ": " + interval);
+            }
+        } else {
+            checkInterval = DEFAULT_CHECK_INTERVAL;
+        }
+
+        try {
+            build();
+        } catch (IOException e) {
+            throw new RuntimeException("Qlue: Failed to build bundles from " + bundlesFile, e);
+        }
+    }
+
+    @Override
+    public Object route(TransactionContext context, Route route, String pathSuffix) {
+        if (pathSuffix == null) {
+            return null;
+        }
+
+        boolean current = true;
+
+        AssetBundle bundle = getBundles().get(pathSuffix);
+        if (bundle == null) {
+            // Fingerprinted names are the norm. If the fingerprint is stale, the page
+            // that contains the link is stale; we send the current content, which is
+            // most likely what the client wants, but without the long-term caching.
+            String name = AssetManifest.stripFingerprint(pathSuffix);
+            if (name == null) {
+                return null;
+            }
+
+            bundle = getBundles().get(name);
+            if (bundle == null) {
+                return null;
+            }
+
+            current = pathSuffix.equals(bundle.getFingerprintedName());
+            if (current) {
+                context.setResponseHeader("Cache-Control", StaticFileRouter.IMMUTABLE_CACHE_CONTROL);
+            }
+        }
+
+        if (bundle.getGzipContent() == null) {
+            return new BundleView(bundle, false);
+        }
+
+        context.setResponseHeader("Vary", "Accept-Encoding");
+
+        return new BundleView(bundle, WebUtil.acceptsEncoding(context.request.getHeader("Accept-Encoding"), "gzip"));
+    }
+
+    /**
+     * Returns the current bundles, rebuilding them first if any of the files changed.
+     */
+    public Map<String, AssetBundle> getBundles() {
+        if (checkInterval > 0) {
+            long now = System.currentTimeMillis();
+            if (now - lastChecked >= checkInterval) {
+                checkForChanges(now);
+            }
+        }
+
+        return bundles;
+    }
+
+    private synchronized void checkForChanges(long now) {
+        if (now - lastChecked < checkInterval) {
+            // Another thread has just checked.
+            return;
+        }
+
+        lastChecked = now;
+
+        long newest = bundlesFile.lastModified();
+        for (AssetBundle bundle : bundles.values()) {
+            for (File f : bundle.getFiles()) {
+                newest = Math.max(newest, f.lastModified());
+            }
+        }
+
+        if (newest == lastModified) {
+            return;
+        }
+
+        try {
+            build();
+        } catch (Exception e) {
+            // Keep the previous bundles.
+            log.error("Failed to rebuild bundles from " + bundlesFile, e);
+            lastModified = newest;
+        }
+    }
+
+    private synchronized void build() throws IOException {
+        long newest = bundlesFile.lastModified();
+        File root = bundlesFile.getAbsoluteFile().getParentFile();
+        Map<String, AssetBundle> newBundles = new HashMap<>();
+
+        try (BufferedReader in = new BufferedReader(new FileReader(bundlesFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                line = VariableExpander.expand(line, manager.getProperties());
+                String[] tokens = line.split("\\s+");
+
+                if (tokens[0].equals("@root")) {
+                    if (tokens.length != 2) {
+                        throw new RuntimeException("Qlue: Invalid bundle directive: " + line);
+                    }
+
+                    root = resolve(bundlesFile.getAbsoluteFile().getParentFile(), tokens[1]);
+                    continue;
+                }
+
+                if (tokens.length < 2) {
+                    throw new RuntimeException("Qlue: Bundle without files: " + tokens[0]);
+                }
+
+                if (newBundles.containsKey(tokens[0])) {
+                    throw new RuntimeException("Qlue: Duplicate bundle: " + tokens[0]);
+                }
+
+                List<File> files = new ArrayList<>();
+                for (int i = 1; i < tokens.length; i++) {
+                    File f = resolve(root, tokens[i]);
+                    if (!f.isFile()) {
+                        throw new RuntimeException("Qlue: Bundle file not found: " + f);
+                    }
+
+                    files.add(f);
+                    newest = Math.max(newest, f.lastModified());
+                }
+
+                AssetBundle bundle = AssetBundle.build(tokens[0], files);
+                newBundles.put(bundle.getName(), bundle);
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Built bundle " + bundle.getFingerprintedName() + " (" + bundle.getContent().remaining()
+                            + " bytes) from " + files.size() + " file(s)");
+                }
+            }
+        }
+
+        bundles = Collections.unmodifiableMap(newBundles);
+        lastModified = newest;
+        lastChecked = System.currentTimeMillis();
+    }
+
+    private static File resolve(File root, String path) {
+        File f = new File(path);
+        return f.isAbsolute() ? f : new File(root, path);
+    }
+
+    /**
+     * Returns the URL of the given bundle, with its current fingerprint, or
+     * null if this router doesn't serve the bundle.
+     */
+    public String getBundleUrl(String name) {
+        if (urlPrefix == null) {
+            return null;
+        }
+
+        AssetBundle bundle = getBundles().get(name);
+        if (bundle == null) {
+            return null;
+        }
+
+        return urlPrefix + bundle.getFingerprintedName();
+    }
+
+    /**
+     * Sets the URL prefix at which this router's bundles are
+     * available, which is needed to construct their URLs.
+     */
+    public void setUrlPrefix(String urlPrefix) {
+        this.urlPrefix = urlPrefix;
+    }
+
+    public File getBundlesFile() {
+        return bundlesFile;
+    }
+}
@@ -17,6 +17,7 @@
 package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.Page;
+import com.webkreator.qlue.PageFactory;
 import com.webkreator.qlue.QlueApplication;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.exceptions.QlueException;
@@ -32,6 +33,8 @@ public class ClassRouter implements Router {
 
     private Class<Page> pageClass;
 
+    private PageFactory pageFactory;
+
     public ClassRouter(final RouteManager manager, final String className) {
         Class candidate = null;
         String prefixedClassName = null;
@@ -79,12 +82,13 @@ public class ClassRouter implements Router {
         }
 
         pageClass = candidate;
+        pageFactory = PageFactory.forClass(pageClass);
     }
 
     @Override
     public Object route(TransactionContext context, Route route, String pathSuffix) {
         try {
-            return pageClass.newInstance();
+            return pageFactory.newPage();
         } catch (Exception e) {
             throw new QlueException("Error creating page instance: " + e.getMessage(), e);
         }
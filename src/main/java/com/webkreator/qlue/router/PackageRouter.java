@@ -17,6 +17,7 @@
 package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.Page;
+import com.webkreator.qlue.PageFactory;
 import com.webkreator.qlue.QlueApplication;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.annotations.QlueMapping;
@@ -27,7 +28,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.net.URL;
+import java.util.Iterator;
+import java.util.Objects;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Routes transaction to an entire package, with
@@ -37,15 +42,57 @@ public class PackageRouter implements Router {
 
     private static Logger log = LoggerFactory.getLogger(PackageRouter.class);
 
+    public static final String PROPERTY_RESOLUTION_CACHE_SIZE = "qlue.router.resolutionCacheSize";
+
+    public static final String PROPERTY_USE_PAGE_INDEX = "qlue.router.usePageIndex";
+
+    private static final int DEFAULT_RESOLUTION_CACHE_SIZE = 10000;
+
+    private static final int MAX_CACHEABLE_PATH_LENGTH = 512;
+
     private String rootPackage;
 
     private String rootPackageAsPath;
 
     protected RouteManager manager;
 
+    private PageIndex pageIndex;
+
+    private volatile ResolutionCache resolutionCache;
+
+    private int resolutionCacheSize = DEFAULT_RESOLUTION_CACHE_SIZE;
+
+    private final LongAdder cacheHits = new LongAdder();
+
+    private final LongAdder cacheMisses = new LongAdder();
+
     public PackageRouter(final RouteManager manager, final String packageName) {
         this.manager = manager;
 
+        String cacheSize = manager.getProperties().getProperty(PROPERTY_RESOLUTION_CACHE_SIZE);
+        if (cacheSize != null) {
+            try {
+                resolutionCacheSize = Integer.parseInt(cacheSize.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + PROPERTY_RESOLUTION_CACHE_SIZE + ": " + cacheSize);
+            }
+        }
+
+        determineRootPackage(packageName);
+
+        if (!"false".equals(manager.getProperties().getProperty(PROPERTY_USE_PAGE_INDEX))) {
+            PageIndex index = PageIndex.load(Thread.currentThread().getContextClassLoader());
+            if ((index != null) && index.covers(rootPackage)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Using page index for package " + rootPackage);
+                }
+
+                pageIndex = index;
+            }
+        }
+    }
+
+    private void determineRootPackage(String packageName) {
         // If there is a package root (prefix), use it first to look
         // for our package. If we attempt to use an abbreviated package
         // name, we may find one of the standard Java packages (e.g., "org").
@@ -87,13 +134,141 @@ public class PackageRouter implements Router {
      * @return page instance, or null if page cannot be found
      */
     public Object resolveUri(TransactionContext tx, Route route, String path) {
-        @SuppressWarnings("rawtypes")
-        Class pageClass;
-
         if (path.indexOf("/../") != -1) {
             throw new QlueSecurityException("Directory backreferences not allowed in path");
         }
 
+        Resolution resolution = findResolution(path);
+
+        switch (resolution.kind) {
+
+            case Resolution.NOT_FOUND:
+                return null;
+
+            case Resolution.VIEW:
+                return new ClasspathView(resolution.viewName);
+
+            case Resolution.PRIORITY_INDEX_VIEW:
+                // If there's no terminating slash in directory access, issue a redirection.
+                if (isRedirectionToFolderNeeded(tx, route)) {
+                    return RedirectionRouter.newAddTrailingSlash(tx, 307).route(tx, route, path);
+                }
+
+                return new ClasspathView(resolution.viewName);
+
+            case Resolution.INDEX_PAGE:
+                if (log.isDebugEnabled()) {
+                    log.debug("Found index page");
+                }
+
+                // If there's no terminating slash in directory access, issue a redirection.
+                if (isRedirectionToFolderNeeded(tx, route)) {
+                    return RedirectionRouter.newAddTrailingSlash(tx, 307).route(tx, route, path);
+                }
+
+                break;
+        }
+
+        // Check that class is instance of Page
+        if (!resolution.page) {
+            throw new RuntimeException("Class " + resolution.className + " is not a subclass of Page");
+        }
+
+        if (!resolution.suffixMatch) {
+            return null;
+        }
+
+        String lastToken = resolution.lastToken;
+        String urlSuffix = resolution.urlSuffix;
+
+        if (manager.isRedirectFolderWithoutTrailingSlash() && route.isRedirectsWithoutTrailingSlash()) {
+            if ((lastToken != null) && (lastToken.equals(manager.getIndex()))) {
+                String newPath = null;
+                if (urlSuffix != null) {
+                    newPath = path.substring(0, path.length() - lastToken.length() - urlSuffix.length());
+                } else {
+                    newPath = path.substring(0, path.length() - lastToken.length());
+                }
+
+                if (tx.request.getQueryString() != null) {
+                    newPath = newPath + "?" + tx.request.getQueryString();
+                }
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Redirecting to " + newPath);
+                }
+
+                return new RedirectionRouter(newPath, 307).route(tx, route, path);
+            }
+        }
+
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Creating new instance of " + resolution.pageClass);
+            }
+
+            return resolution.pageFactory.newPage();
+        } catch (Exception e) {
+            log.error("Error creating page instance: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private boolean isRedirectionToFolderNeeded(TransactionContext tx, Route route) {
+        return manager.isRedirectFolderWithoutTrailingSlash()
+                && route.isRedirectsWithoutTrailingSlash()
+                && !tx.getRequestUri().endsWith("/");
+    }
+
+    /**
+     * Looks up the resolution for the given path in the cache, resolving
+     * the path and caching the outcome if it's not already there. Paths
+     * that don't resolve are cached too, which makes the cache a bounded
+     * negative cache for arbitrary client paths. Outcomes that depended on
+     * the contents of the priority template path are never cached, so that
+     * templates can be added and removed during development.
+     */
+    private Resolution findResolution(String path) {
+        ResolutionCache cache = resolutionCache;
+
+        // The outcome of resolution depends on the configuration, so
+        // we start with a fresh cache whenever it changes.
+        if ((cache == null) || !cache.isValidFor(manager)) {
+            cache = new ResolutionCache(manager);
+            resolutionCache = cache;
+        }
+
+        Resolution resolution = cache.map.get(path);
+        if (resolution != null) {
+            cacheHits.increment();
+            return resolution;
+        }
+
+        cacheMisses.increment();
+
+        resolution = resolve(path, cache.priorityPath);
+
+        if ((resolutionCacheSize > 0) && !resolution.filesystem && (path.length() <= MAX_CACHEABLE_PATH_LENGTH)) {
+            if (cache.map.size() >= resolutionCacheSize) {
+                cache.evict(resolutionCacheSize);
+            }
+
+            cache.map.put(path, resolution);
+        }
+
+        return resolution;
+    }
+
+    /**
+     * Determines how a path maps to the pages and templates in this package. This is
+     * the expensive part of the routing process, which involves the classloader
+     * and possibly the filesystem. The outcome depends only on the path and
+     * the configuration, which means that it can be cached, unless it had
+     * to be decided by looking at the priority template path.
+     */
+    private Resolution resolve(String path, String priorityPath) {
+        int kind = Resolution.PAGE;
+
         // Start building class name.
         StringBuilder sb = new StringBuilder();
         String urlSuffix = null;
@@ -109,7 +284,7 @@ public class PackageRouter implements Router {
                 // We don't allow path segments with periods, because
                 // they might interfere with class path construction.
                 if (lastToken.indexOf('.') != -1) {
-                    return null;
+                    return Resolution.notFound();
                 }
 
                 if (manager.isConvertDashesToUnderscores()) {
@@ -125,7 +300,7 @@ public class PackageRouter implements Router {
             // We don't serve path segments whose names begin with $.
             // Such packages are considered to be private.
             if ((lastToken.length() > 0) && (lastToken.charAt(0) == '$')) {
-                return null;
+                return Resolution.notFound();
             }
         }
 
@@ -152,8 +327,9 @@ public class PackageRouter implements Router {
         log.debug("Trying class: " + className);
 
         // Look for a class with this name
-        pageClass = QlueApplication.classForName(className);
-        if (pageClass == null) {
+        String pageClassName = className;
+        Candidate candidate = findClass(pageClassName);
+        if (candidate == null) {
             // Try a direct view.
             String classpathFilename;
             String classpathBase;
@@ -172,103 +348,147 @@ public class PackageRouter implements Router {
                 log.debug("Trying direct view: " + classpathFilename);
             }
 
-            if (getClass().getClassLoader().getResource(classpathFilename) != null) {
-                return new ClasspathView(classpathFilename);
+            if (viewExists(classpathFilename)) {
+                return Resolution.view(Resolution.VIEW, classpathFilename);
             }
 
             // Try the priority path. This is a little inefficient, but this
             // feature is intended for use in development only.
-            String priorityPath = manager.getPriorityTemplatePath();
             if (priorityPath != null) {
                 // We just need to check if the file exists on the alternative
                 // patch. If it does, the Velocity engine should be able to find it.
                 // So our goal here basically is not to signal "file not found".
                 File f = new File(priorityPath, classpathFilename);
                 if (f.exists()) {
-                    return new ClasspathView(classpathFilename);
+                    return Resolution.priorityView(Resolution.VIEW, classpathFilename);
                 }
             }
 
             // Check for directory access by looking for an index page.
-            pageClass = QlueApplication.classForName(className + "." + manager.getIndex());
+            pageClassName = className + "." + manager.getIndex();
+            candidate = findClass(pageClassName);
 
             if (log.isDebugEnabled()) {
-                log.debug("Trying class: " + className + "." + manager.getIndex());
+                log.debug("Trying class: " + pageClassName);
             }
 
-            if (pageClass == null) {
+            if (candidate == null) {
                 // Before we give up, another try with the priority path,
                 // this time looking for "index.vmx".
                 if (priorityPath != null) {
                     classpathFilename = classpathBase + "/index.vmx";
                     File f = new File(priorityPath, classpathFilename);
                     if (f.exists()) {
-                        // If there's no terminating slash in directory access, issue a redirection.
-                        if (manager.isRedirectFolderWithoutTrailingSlash()
-                                && route.isRedirectsWithoutTrailingSlash()
-                                && !tx.getRequestUri().endsWith("/")) {
-                            return RedirectionRouter.newAddTrailingSlash(tx, 307).route(tx, route, path);
-                        }
-
-                        return new ClasspathView(classpathFilename);
+                        return Resolution.priorityView(Resolution.PRIORITY_INDEX_VIEW, classpathFilename);
                     }
+
+                    return Resolution.notFoundOnFilesystem();
                 }
 
-                return null;
+                return Resolution.notFound();
             }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Found index page");
-            }
+            kind = Resolution.INDEX_PAGE;
+        }
 
-            // If there's no terminating slash in directory access, issue a redirection.
-            if (manager.isRedirectFolderWithoutTrailingSlash()
-                    && route.isRedirectsWithoutTrailingSlash()
-                    && !tx.getRequestUri().endsWith("/")) {
-                return RedirectionRouter.newAddTrailingSlash(tx, 307).route(tx, route, path);
+        Resolution resolution = new Resolution(kind);
+
+        // An index page loses to a template that might
+        // appear in the priority path later on.
+        resolution.filesystem = (kind == Resolution.INDEX_PAGE) && (priorityPath != null);
+        resolution.className = className;
+        resolution.lastToken = lastToken;
+        resolution.urlSuffix = urlSuffix;
+        resolution.page = candidate.isPage();
+
+        if (resolution.page) {
+            if (candidate.pageClass != null) {
+                resolution.suffixMatch = checkSuffixMatch(candidate.pageClass, urlSuffix);
+                resolution.pageClass = candidate.pageClass;
+                resolution.pageFactory = PageFactory.forClass(candidate.pageClass);
+            } else {
+                // The page index knows the suffix, so we load
+                // the class only if it's going to be used.
+                PageIndex.Entry entry = candidate.indexEntry;
+                resolution.suffixMatch = checkSuffixMatch(entry.inheritsSuffix() ? manager.getSuffix() : entry.getSuffix(), urlSuffix);
+                if (resolution.suffixMatch) {
+                    resolution.pageClass = QlueApplication.classForName(pageClassName);
+                    if (resolution.pageClass == null) {
+                        log.warn("Page index out of date; class not found: " + pageClassName);
+                        return Resolution.notFound();
+                    }
+
+                    resolution.pageFactory = PageFactory.forClass(resolution.pageClass);
+                }
             }
         }
 
-        // Check that class is instance of Page
-        if (!Page.class.isAssignableFrom(pageClass)) {
-            throw new RuntimeException("Class " + className + " is not a subclass of Page");
+        return resolution;
+    }
+
+    /**
+     * Looks for a class with the given name, using the page index if we have one.
+     *
+     * @return candidate, or null if the class doesn't exist
+     */
+    private Candidate findClass(String className) {
+        if (pageIndex != null) {
+            PageIndex.Entry entry = pageIndex.getClassEntry(className);
+            return (entry != null) ? new Candidate(null, entry) : null;
         }
 
-        if (!checkSuffixMatch(pageClass, urlSuffix)) {
-            return null;
+        @SuppressWarnings("rawtypes")
+        Class c = QlueApplication.classForName(className);
+        return (c != null) ? new Candidate(c, null) : null;
+    }
+
+    private boolean viewExists(String classpathFilename) {
+        if (pageIndex != null) {
+            return pageIndex.containsView(classpathFilename);
         }
 
-        if (manager.isRedirectFolderWithoutTrailingSlash() && route.isRedirectsWithoutTrailingSlash()) {
-            if ((lastToken != null) && (lastToken.equals(manager.getIndex()))) {
-                String newPath = null;
-                if (urlSuffix != null) {
-                    newPath = path.substring(0, path.length() - lastToken.length() - urlSuffix.length());
-                } else {
-                    newPath = path.substring(0, path.length() - lastToken.length());
-                }
+        return getClass().getClassLoader().getResource(classpathFilename) != null;
+    }
 
-                if (tx.request.getQueryString() != null) {
-                    newPath = newPath + "?" + tx.request.getQueryString();
-                }
+    /**
+     * Returns true if this router uses a build-time page index.
+     */
+    public boolean isUsingPageIndex() {
+        return pageIndex != null;
+    }
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Redirecting to " + newPath);
-                }
+    /**
+     * Returns the number of requests that were resolved using the resolution cache.
+     */
+    public long getResolutionCacheHits() {
+        return cacheHits.sum();
+    }
 
-                return new RedirectionRouter(newPath, 307).route(tx, route, path);
-            }
-        }
+    /**
+     * Returns the number of requests that had to be resolved
+     * using the classloader and the filesystem.
+     */
+    public long getResolutionCacheMisses() {
+        return cacheMisses.sum();
+    }
 
-        try {
-            if (log.isDebugEnabled()) {
-                log.debug("Creating new instance of " + pageClass);
-            }
+    /**
+     * Returns the number of entries in the resolution cache.
+     */
+    public int getResolutionCacheSize() {
+        ResolutionCache cache = resolutionCache;
+        return (cache != null) ? cache.map.size() : 0;
+    }
 
-            return pageClass.newInstance();
-        } catch (Exception e) {
-            log.error("Error creating page instance: " + e.getMessage(), e);
-            return null;
-        }
+    /**
+     * Removes all entries from the resolution cache.
+     */
+    public void clearResolutionCache() {
+        resolutionCache = null;
+    }
+
+    public String getRootPackage() {
+        return rootPackage;
     }
 
     protected boolean checkSuffixMatch(Class pageClass, String urlSuffix) {
@@ -280,6 +500,10 @@ public class PackageRouter implements Router {
             }
         }
 
+        return checkSuffixMatch(pageSuffix, urlSuffix);
+    }
+
+    private boolean checkSuffixMatch(String pageSuffix, String urlSuffix) {
         if (log.isDebugEnabled()) {
             log.debug("Suffix check: URL: " + urlSuffix + "; page: " + pageSuffix);
         }
@@ -338,4 +562,148 @@ public class PackageRouter implements Router {
             return false;
         }
     }
+
+    /**
+     * Records the outcome of resolving one path.
+     */
+    private static class Resolution {
+
+        static final int NOT_FOUND = 0;
+
+        static final int PAGE = 1;
+
+        static final int INDEX_PAGE = 2;
+
+        static final int VIEW = 3;
+
+        static final int PRIORITY_INDEX_VIEW = 4;
+
+        private static final Resolution NOT_FOUND_RESOLUTION = new Resolution(NOT_FOUND);
+
+        private static final Resolution FILESYSTEM_NOT_FOUND_RESOLUTION = new Resolution(NOT_FOUND, true);
+
+        final int kind;
+
+        @SuppressWarnings("rawtypes")
+        Class pageClass;
+
+        PageFactory pageFactory;
+
+        String className;
+
+        String lastToken;
+
+        String urlSuffix;
+
+        String viewName;
+
+        boolean page;
+
+        boolean suffixMatch;
+
+        // Set when the outcome depends on the contents of
+        // the priority path, in which case it's not cached.
+        boolean filesystem;
+
+        Resolution(int kind) {
+            this.kind = kind;
+        }
+
+        Resolution(int kind, boolean filesystem) {
+            this.kind = kind;
+            this.filesystem = filesystem;
+        }
+
+        static Resolution notFound() {
+            return NOT_FOUND_RESOLUTION;
+        }
+
+        static Resolution notFoundOnFilesystem() {
+            return FILESYSTEM_NOT_FOUND_RESOLUTION;
+        }
+
+        static Resolution view(int kind, String viewName) {
+            Resolution resolution = new Resolution(kind);
+            resolution.viewName = viewName;
+            return resolution;
+        }
+
+        static Resolution priorityView(int kind, String viewName) {
+            Resolution resolution = view(kind, viewName);
+            resolution.filesystem = true;
+            return resolution;
+        }
+    }
+
+    /**
+     * A class that exists, found either via the classloader or via the page index.
+     */
+    private static class Candidate {
+
+        @SuppressWarnings("rawtypes")
+        final Class pageClass;
+
+        final PageIndex.Entry indexEntry;
+
+        @SuppressWarnings("rawtypes")
+        Candidate(Class pageClass, PageIndex.Entry indexEntry) {
+            this.pageClass = pageClass;
+            this.indexEntry = indexEntry;
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean isPage() {
+            if (pageClass != null) {
+                return Page.class.isAssignableFrom(pageClass);
+            } else {
+                return indexEntry.isPage();
+            }
+        }
+    }
+
+    /**
+     * Holds resolved paths, along with the configuration that was used to resolve them.
+     */
+    private static class ResolutionCache {
+
+        final ConcurrentHashMap<String, Resolution> map = new ConcurrentHashMap<>();
+
+        final String priorityPath;
+
+        final String suffix;
+
+        final String index;
+
+        final boolean convertDashesToUnderscores;
+
+        ResolutionCache(RouteManager manager) {
+            priorityPath = manager.getPriorityTemplatePath();
+            suffix = manager.getSuffix();
+            index = manager.getIndex();
+            convertDashesToUnderscores = manager.isConvertDashesToUnderscores();
+        }
+
+        boolean isValidFor(RouteManager manager) {
+            return Objects.equals(priorityPath, manager.getPriorityTemplatePath())
+                    && Objects.equals(suffix, manager.getSuffix())
+                    && Objects.equals(index, manager.getIndex())
+                    && (convertDashesToUnderscores == manager.isConvertDashesToUnderscores());
+        }
+
+        /**
+         * Makes room for new entries by removing roughly a tenth of the existing
+         * ones. There's no particular order in which the entries are removed, so
+         * clients probing random paths can push out the useful entries; the cache
+         * only guarantees that its memory use stays bounded.
+         */
+        void evict(int maxSize) {
+            int target = maxSize - Math.max(1, maxSize / 10);
+
+            Iterator<String> it = map.keySet().iterator();
+            while (it.hasNext() && (map.size() > target)) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
 }
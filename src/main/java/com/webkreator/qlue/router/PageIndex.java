@@ -0,0 +1,212 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Index of the classes and direct views that exist in one or more page packages,
+ * generated at build time by PageIndexGenerator. When a package is covered by
+ * the index, PackageRouter uses it to decide if a class or a template exists
+ * without asking the classloader, which means that requests for paths that
+ * don't exist never reach the classloader.
+ *
+ * The index is a text file with one entry per line:
+ *
+ * <pre>
+ * package com.example.pages
+ * page com.example.pages.index
+ * page com.example.pages.report .csv
+ * class com.example.pages.Helper
+ * view com/example/pages/about.vmx
+ * </pre>
+ *
+ * The optional last token of a page entry is the suffix from the page's
+ * QlueMapping annotation; pages without it inherit the application suffix.
+ */
+public class PageIndex {
+
+    private static Logger log = LoggerFactory.getLogger(PageIndex.class);
+
+    public static final String RESOURCE_NAME = "META-INF/qlue/pages.index";
+
+    static final String EMPTY_SUFFIX = "\"\"";
+
+    private final Set<String> packages = new HashSet<>();
+
+    private final Map<String, Entry> classes = new HashMap<>();
+
+    private final Set<String> views = new HashSet<>();
+
+    /**
+     * Loads and combines all page indexes available from the given classloader.
+     *
+     * @return page index, or null if there are no indexes on the classpath
+     */
+    public static PageIndex load(ClassLoader classLoader) {
+        PageIndex index = null;
+
+        try {
+            Enumeration<URL> resources = classLoader.getResources(RESOURCE_NAME);
+            while (resources.hasMoreElements()) {
+                URL u = resources.nextElement();
+
+                if (index == null) {
+                    index = new PageIndex();
+                }
+
+                try (Reader reader = new InputStreamReader(u.openStream(), StandardCharsets.UTF_8)) {
+                    index.read(reader);
+                }
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Loaded page index from " + u);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Qlue: Failed to load page index", e);
+        }
+
+        return index;
+    }
+
+    void read(Reader reader) throws IOException {
+        BufferedReader br = new BufferedReader(reader);
+
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if ((line.length() == 0) || (line.charAt(0) == '#')) {
+                continue;
+            }
+
+            String[] tokens = line.split("\\s+");
+            if (tokens.length < 2) {
+                throw new IOException("Qlue: Invalid page index line: " + line);
+            }
+
+            switch (tokens[0]) {
+                case "package":
+                    packages.add(tokens[1]);
+                    break;
+
+                case "page":
+                    String suffix = null;
+                    boolean inheritsSuffix = true;
+                    if (tokens.length > 2) {
+                        suffix = tokens[2].equals(EMPTY_SUFFIX) ? "" : tokens[2];
+                        inheritsSuffix = false;
+                    }
+                    classes.put(tokens[1], new Entry(true, inheritsSuffix, suffix));
+                    break;
+
+                case "class":
+                    classes.put(tokens[1], new Entry(false, true, null));
+                    break;
+
+                case "view":
+                    views.add(tokens[1]);
+                    break;
+
+                default:
+                    throw new IOException("Qlue: Invalid page index line: " + line);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given package (along with all its subpackages) was indexed.
+     */
+    public boolean covers(String packageName) {
+        String name = packageName;
+
+        for (;;) {
+            if (packages.contains(name)) {
+                return true;
+            }
+
+            int i = name.lastIndexOf('.');
+            if (i == -1) {
+                return false;
+            }
+
+            name = name.substring(0, i);
+        }
+    }
+
+    /**
+     * Returns the index entry for the given class, or null if the class doesn't exist.
+     */
+    public Entry getClassEntry(String className) {
+        return classes.get(className);
+    }
+
+    /**
+     * Returns true if the given classpath resource is a known direct view.
+     */
+    public boolean containsView(String resourceName) {
+        return views.contains(resourceName);
+    }
+
+    public int getClassCount() {
+        return classes.size();
+    }
+
+    public int getViewCount() {
+        return views.size();
+    }
+
+    public static class Entry {
+
+        private final boolean page;
+
+        private final boolean inheritsSuffix;
+
+        private final String suffix;
+
+        Entry(boolean page, boolean inheritsSuffix, String suffix) {
+            this.page = page;
+            this.inheritsSuffix = inheritsSuffix;
+            this.suffix = suffix;
+        }
+
+        /**
+         * Returns true if the class is a subclass of Page.
+         */
+        public boolean isPage() {
+            return page;
+        }
+
+        /**
+         * Returns true if the page doesn't specify its own suffix
+         * via the QlueMapping annotation.
+         */
+        public boolean inheritsSuffix() {
+            return inheritsSuffix;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+}
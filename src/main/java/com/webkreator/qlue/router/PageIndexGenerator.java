@@ -0,0 +1,201 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.annotations.QlueMapping;
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Build-time tool that scans compiled page packages and writes the index
+ * used by PackageRouter (see PageIndex). It's meant to run after the
+ * classes have been compiled, with the application's runtime classpath,
+ * so that it can inspect page classes and their QlueMapping annotations.
+ */
+public class PageIndexGenerator {
+
+    private final List<File> classesDirs = new ArrayList<>();
+
+    private final List<File> resourcesDirs = new ArrayList<>();
+
+    private final List<String> packages = new ArrayList<>();
+
+    // Maps class names to their index entries.
+    private final SortedMap<String, String> entries = new TreeMap<>();
+
+    private final SortedSet<String> views = new TreeSet<>();
+
+    public void addClassesDir(File dir) {
+        classesDirs.add(dir);
+    }
+
+    public void addResourcesDir(File dir) {
+        resourcesDirs.add(dir);
+    }
+
+    public void addPackage(String packageName) {
+        packages.add(packageName);
+    }
+
+    /**
+     * Scans the configured directories and writes the index.
+     */
+    public void generate(Writer writer) throws IOException {
+        entries.clear();
+        views.clear();
+
+        URL[] urls = new URL[classesDirs.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = classesDirs.get(i).toURI().toURL();
+        }
+
+        try (URLClassLoader classLoader = new URLClassLoader(urls, PageIndexGenerator.class.getClassLoader())) {
+            for (String packageName : packages) {
+                String packagePath = packageName.replace('.', '/');
+
+                for (File dir : classesDirs) {
+                    scan(new File(dir, packagePath), packagePath, classLoader);
+                }
+
+                for (File dir : resourcesDirs) {
+                    scan(new File(dir, packagePath), packagePath, null);
+                }
+            }
+        }
+
+        PrintWriter pw = new PrintWriter(writer);
+        pw.println("# Qlue page index; generated by " + PageIndexGenerator.class.getName());
+
+        for (String packageName : packages) {
+            pw.println("package " + packageName);
+        }
+
+        for (Map.Entry<String, String> me : entries.entrySet()) {
+            pw.println(me.getValue());
+        }
+
+        for (String view : views) {
+            pw.println("view " + view);
+        }
+
+        pw.flush();
+    }
+
+    private void scan(File dir, String path, ClassLoader classLoader) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            String name = f.getName();
+
+            if (f.isDirectory()) {
+                scan(f, path + "/" + name, classLoader);
+            } else if (name.endsWith(".vmx")) {
+                views.add(path + "/" + name);
+            } else if ((classLoader != null) && name.endsWith(".class")) {
+                String className = (path + "/" + name.substring(0, name.length() - 6)).replace('/', '.');
+                entries.put(className, describeClass(className, classLoader));
+            }
+        }
+    }
+
+    /**
+     * Returns the type of the index entry, optionally followed by the page suffix.
+     */
+    private String describeClass(String className, ClassLoader classLoader) {
+        Class<?> c;
+
+        try {
+            c = Class.forName(className, false, classLoader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            // We can't inspect the class, but we know it's there,
+            // so we leave it to the router to figure out what it is.
+            return "class " + className;
+        }
+
+        if (!Page.class.isAssignableFrom(c)) {
+            return "class " + className;
+        }
+
+        QlueMapping mapping = c.getAnnotation(QlueMapping.class);
+        if ((mapping == null) || mapping.suffix().equals("inheritAppSuffix")) {
+            return "page " + className;
+        }
+
+        String suffix = mapping.suffix();
+        if (suffix.length() == 0) {
+            suffix = PageIndex.EMPTY_SUFFIX;
+        }
+
+        return "page " + className + " " + suffix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(Option.builder("c").longOpt("classes").hasArg().argName("dirs")
+                .desc("compiled classes directories (separated with " + File.pathSeparator + ")").required().build());
+        options.addOption(Option.builder("r").longOpt("resources").hasArg().argName("dirs")
+                .desc("resources directories (separated with " + File.pathSeparator + ")").build());
+        options.addOption(Option.builder("p").longOpt("package").hasArgs().argName("name")
+                .desc("page package to index; can be used more than once").required().build());
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("file")
+                .desc("where to write the index").required().build());
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp(PageIndexGenerator.class.getName(), options);
+            System.exit(1);
+            return;
+        }
+
+        PageIndexGenerator generator = new PageIndexGenerator();
+
+        for (String dir : cmd.getOptionValue("classes").split(File.pathSeparator)) {
+            generator.addClassesDir(new File(dir));
+        }
+
+        if (cmd.hasOption("resources")) {
+            for (String dir : cmd.getOptionValue("resources").split(File.pathSeparator)) {
+                generator.addResourcesDir(new File(dir));
+            }
+        }
+
+        for (String packageName : cmd.getOptionValues("package")) {
+            generator.addPackage(packageName);
+        }
+
+        File output = new File(cmd.getOptionValue("output"));
+        if ((output.getParentFile() != null) && !output.getParentFile().exists()) {
+            output.getParentFile().mkdirs();
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+            generator.generate(writer);
+        }
+    }
+}
@@ -18,6 +18,10 @@ package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.QlueApplication;
 import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.util.AdaptiveConcurrencyLimiter;
+import com.webkreator.qlue.util.ConcurrencyLimiter;
+import com.webkreator.qlue.util.RateLimiter;
+import com.webkreator.qlue.util.DirectoryWatcher;
 import com.webkreator.qlue.util.VariableExpander;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,9 +29,12 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Implements the default routing functionality, which accepts
@@ -38,9 +45,43 @@ public class QlueRouteManager implements RouteManager {
 
     private Logger log = LoggerFactory.getLogger(QlueRouteManager.class);
 
+    private static final Pattern hostDirectivePattern = Pattern.compile("^@host\\s+(.+)$");
+
+    private static final Pattern concurrencyDirectivePattern = Pattern.compile("^@concurrency\\s+(.+)$");
+
+    private static final Pattern rateLimitDirectivePattern = Pattern.compile("^@ratelimit\\s+(.+)$");
+
+    private static final Pattern timeoutDirectivePattern = Pattern.compile("^@timeout\\s+(.+)$");
+
+    private static final int DEFAULT_CONCURRENCY_WAIT_MILLIS = 1000;
+
+    private static final int DEFAULT_CONCURRENCY_RETRY_AFTER = 1;
+
+    private static final int DEFAULT_ADAPTIVE_INITIAL_LIMIT = 20;
+
+    private static final int DEFAULT_ADAPTIVE_MIN_LIMIT = 1;
+
+    private static final int DEFAULT_ADAPTIVE_MAX_LIMIT = 1000;
+
+    private static final int DEFAULT_RATE_LIMIT_MAX_KEYS = 100000;
+
     private QlueApplication app;
 
-    private List<Route> routes = new ArrayList<>();
+    // Replaced, never modified, whenever the routes change.
+    private volatile List<Route> routes = new ArrayList<>();
+
+    // The table used to route requests. It's replaced, never
+    // modified, whenever the routes change.
+    private volatile RouteTable table;
+
+    // Concurrency limiters, keyed by their definitions, so that they can be
+    // reused (keeping their state) when the routes are reloaded.
+    private volatile Map<String, ConcurrencyLimiter> limiters = new LinkedHashMap<>();
+
+    // Rate limiters, also keyed by their definitions.
+    private volatile Map<String, RateLimiter> rateLimiters = new LinkedHashMap<>();
+
+    private DirectoryWatcher watcher;
 
     private String suffix;
 
@@ -55,69 +96,531 @@ public class QlueRouteManager implements RouteManager {
     }
 
     /**
-     * Loads routes from a file.
+     * Loads routes from a file, replacing all existing routes. The new routes
+     * are parsed and compiled first, and become active only if there are no
+     * errors; requests that are already being routed are not affected.
      */
     public void load(File routesFile) throws Exception {
-        routes.clear();
+        List<Route> newRoutes = new ArrayList<>();
 
         // Loop through the lines in the configuration file, processing
         // each line as a single routing instruction.
 
-        BufferedReader in = new BufferedReader(new FileReader(routesFile));
-        String line;
+        // The hosts to which the routes apply; null means all hosts.
+        Set<String> hosts = null;
+
+        // The concurrency limiter that applies to the routes; null means no limit.
+        ConcurrencyLimiter limiter = null;
+        Map<String, String> groupDefinitions = new HashMap<>();
+        Map<String, ConcurrencyLimiter> newLimiters = new LinkedHashMap<>();
+
+        // The deadline of the transactions handled by the routes; -1 means no deadline.
+        long timeout = -1;
+
+        // The rate limiter that applies to the routes; null means no limit.
+        RateLimiter rateLimiter = null;
+        Map<String, String> rateGroupDefinitions = new HashMap<>();
+        Map<String, RateLimiter> newRateLimiters = new LinkedHashMap<>();
+
+        try (BufferedReader in = new BufferedReader(new FileReader(routesFile))) {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                // Ignore comment lines; those that are empty or on
+                // which the first non-whitespace character is #.
+                line = line.trim();
+                if ((line.length() == 0) || (line.charAt(0) == '#')) {
+                    continue;
+                }
+
+                line = expandProperties(line);
+
+                // Host sections apply to all the routes that follow them.
+                Matcher m = hostDirectivePattern.matcher(line);
+                if (m.matches()) {
+                    hosts = parseHosts(m.group(1));
+                    continue;
+                }
+
+                // Concurrency sections work the same way.
+                m = concurrencyDirectivePattern.matcher(line);
+                if (m.matches()) {
+                    limiter = parseConcurrency(m.group(1), groupDefinitions, newLimiters);
+                    continue;
+                }
+
+                // As do timeout sections.
+                m = timeoutDirectivePattern.matcher(line);
+                if (m.matches()) {
+                    timeout = parseTimeout(m.group(1));
+                    continue;
+                }
+
+                // And rate limit sections.
+                m = rateLimitDirectivePattern.matcher(line);
+                if (m.matches()) {
+                    rateLimiter = parseRateLimit(m.group(1), rateGroupDefinitions, newRateLimiters);
+                    continue;
+                }
+
+                Route route = RouteFactory.create(this, line);
+                if (route != null) {
+                    route.setHosts(hosts);
+                    route.setConcurrencyLimiter(limiter);
+                    route.setRateLimiter(rateLimiter);
+                    route.setTimeout(timeout);
+                    newRoutes.add(route);
+                }
+            }
+        }
+
+        RouteTable newTable = new RouteTable(newRoutes);
+
+        synchronized (this) {
+            routes = newRoutes;
+            table = newTable;
+            limiters = newLimiters;
+            rateLimiters = newRateLimiters;
+        }
+    }
+
+    /**
+     * Parses a @concurrency directive, which is either "none", the name of a
+     * group defined earlier in the file, or a new group definition with the
+     * name, the limit, and the optional queue, wait, and retryAfter parameters.
+     * Instead of a fixed limit, the definition can use "adaptive", optionally
+     * followed by the initial, min, and max parameters.
+     *
+     * @param groupDefinitions definitions of the groups seen so far, keyed by name
+     * @param newLimiters limiters created so far, keyed by definition
+     */
+    ConcurrencyLimiter parseConcurrency(String text, Map<String, String> groupDefinitions,
+                                        Map<String, ConcurrencyLimiter> newLimiters)
+    {
+        String[] tokens = text.trim().split("\\s+");
+        String name = tokens[0];
+
+        if (tokens.length == 1) {
+            if (name.equals("none")) {
+                return null;
+            }
+
+            String definition = groupDefinitions.get(name);
+            if (definition == null) {
+                throw new RuntimeException("Qlue: Unknown concurrency group: " + name);
+            }
+
+            return newLimiters.get(definition);
+        }
+
+        boolean adaptive = tokens[1].equals("adaptive");
+        int limit;
+        int minLimit = DEFAULT_ADAPTIVE_MIN_LIMIT;
+        int maxLimit = DEFAULT_ADAPTIVE_MAX_LIMIT;
+        Integer maxQueued = null;
+        long maxWait = DEFAULT_CONCURRENCY_WAIT_MILLIS;
+        long retryAfter = DEFAULT_CONCURRENCY_RETRY_AFTER;
+
+        try {
+            limit = adaptive ? DEFAULT_ADAPTIVE_INITIAL_LIMIT : Integer.parseInt(tokens[1]);
+
+            for (int i = 2; i < tokens.length; i++) {
+                int j = tokens[i].indexOf('=');
+                if (j == -1) {
+                    throw new RuntimeException("Qlue: Invalid @concurrency parameter: " + tokens[i]);
+                }
+
+                String key = tokens[i].substring(0, j);
+                long value = Long.parseLong(tokens[i].substring(j + 1));
+                switch (key) {
+                    case "queue":
+                        maxQueued = (int) value;
+                        break;
+                    case "wait":
+                        maxWait = value;
+                        break;
+                    case "retryAfter":
+                        retryAfter = value;
+                        break;
+                    case "initial":
+                    case "min":
+                    case "max":
+                        if (!adaptive) {
+                            throw new RuntimeException("Qlue: Invalid @concurrency parameter: " + tokens[i]);
+                        }
+
+                        if (key.equals("initial")) {
+                            limit = (int) value;
+                        } else if (key.equals("min")) {
+                            minLimit = (int) value;
+                        } else {
+                            maxLimit = (int) value;
+                        }
+                        break;
+                    default:
+                        throw new RuntimeException("Qlue: Invalid @concurrency parameter: " + tokens[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Qlue: Invalid @concurrency directive: " + text);
+        }
+
+        if ((limit < 1) || (adaptive && ((minLimit < 1) || (limit < minLimit) || (limit > maxLimit)))) {
+            throw new RuntimeException("Qlue: Invalid @concurrency limit: " + text);
+        }
+
+        if (maxQueued == null) {
+            maxQueued = limit;
+        }
+
+        String definition = String.join(" ", tokens);
+
+        String existing = groupDefinitions.get(name);
+        if (existing != null) {
+            if (!existing.equals(definition)) {
+                throw new RuntimeException("Qlue: Conflicting definitions of concurrency group: " + name);
+            }
+
+            return newLimiters.get(definition);
+        }
+
+        // Keep using the same limiter if its definition hasn't changed.
+        ConcurrencyLimiter limiter = limiters.get(definition);
+        if (limiter == null) {
+            if (adaptive) {
+                limiter = new AdaptiveConcurrencyLimiter(name, limit, minLimit, maxLimit, maxQueued, maxWait, retryAfter);
+            } else {
+                limiter = new ConcurrencyLimiter(name, limit, maxQueued, maxWait, retryAfter);
+            }
+        }
+
+        groupDefinitions.put(name, definition);
+        newLimiters.put(definition, limiter);
+
+        return limiter;
+    }
+
+    /**
+     * Returns the concurrency limiters used by the current routes.
+     */
+    public Collection<ConcurrencyLimiter> getConcurrencyLimiters() {
+        return Collections.unmodifiableCollection(limiters.values());
+    }
+
+    /**
+     * Parses a @timeout directive, which is either "none" or the
+     * number of milliseconds in which transactions must complete.
+     */
+    static long parseTimeout(String text) {
+        text = text.trim();
+        if (text.equals("none")) {
+            return -1;
+        }
+
+        try {
+            long timeout = Long.parseLong(text);
+            if (timeout > 0) {
+                return timeout;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below.
+        }
+
+        throw new RuntimeException("Qlue: Invalid @timeout directive: " + text);
+    }
+
+    /**
+     * Parses a @ratelimit directive, which is either "none", the name of a
+     * group defined earlier in the file, or a new group definition with the
+     * name, the rate (e.g., 10/s, 100/m, or 1000/h), and the optional burst,
+     * key (ip, session, or page), and maxKeys parameters.
+     *
+     * @param groupDefinitions definitions of the groups seen so far, keyed by name
+     * @param newRateLimiters limiters created so far, keyed by definition
+     */
+    RateLimiter parseRateLimit(String text, Map<String, String> groupDefinitions,
+                               Map<String, RateLimiter> newRateLimiters)
+    {
+        String[] tokens = text.trim().split("\\s+");
+        String name = tokens[0];
+
+        if (tokens.length == 1) {
+            if (name.equals("none")) {
+                return null;
+            }
+
+            String definition = groupDefinitions.get(name);
+            if (definition == null) {
+                throw new RuntimeException("Qlue: Unknown rate limit group: " + name);
+            }
+
+            return newRateLimiters.get(definition);
+        }
+
+        int requests;
+        long periodMillis;
+        Integer burst = null;
+        RateLimiter.KeyType keyType = RateLimiter.KeyType.IP;
+        int maxKeys = DEFAULT_RATE_LIMIT_MAX_KEYS;
 
-        while ((line = in.readLine()) != null) {
-            // Ignore comment lines; those that are empty or on
-            // which the first non-whitespace character is #.
-            line = line.trim();
-            if ((line.length() == 0) || (line.charAt(0) == '#')) {
-                continue;
+        try {
+            int k = tokens[1].indexOf('/');
+            if (k == -1) {
+                throw new RuntimeException("Qlue: Invalid @ratelimit rate: " + tokens[1]);
             }
 
-            line = expandProperties(line);
+            requests = Integer.parseInt(tokens[1].substring(0, k));
+
+            switch (tokens[1].substring(k + 1)) {
+                case "s":
+                    periodMillis = 1000L;
+                    break;
+                case "m":
+                    periodMillis = 60 * 1000L;
+                    break;
+                case "h":
+                    periodMillis = 60 * 60 * 1000L;
+                    break;
+                default:
+                    throw new RuntimeException("Qlue: Invalid @ratelimit rate: " + tokens[1]);
+            }
+
+            for (int i = 2; i < tokens.length; i++) {
+                int j = tokens[i].indexOf('=');
+                if (j == -1) {
+                    throw new RuntimeException("Qlue: Invalid @ratelimit parameter: " + tokens[i]);
+                }
+
+                String key = tokens[i].substring(0, j);
+                String value = tokens[i].substring(j + 1);
+                switch (key) {
+                    case "burst":
+                        burst = Integer.parseInt(value);
+                        break;
+                    case "key":
+                        try {
+                            keyType = RateLimiter.KeyType.valueOf(value.toUpperCase(Locale.ENGLISH));
+                        } catch (IllegalArgumentException e) {
+                            throw new RuntimeException("Qlue: Invalid @ratelimit parameter: " + tokens[i]);
+                        }
+                        break;
+                    case "maxKeys":
+                        maxKeys = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new RuntimeException("Qlue: Invalid @ratelimit parameter: " + tokens[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Qlue: Invalid @ratelimit directive: " + text);
+        }
+
+        if (burst == null) {
+            burst = requests;
+        }
+
+        if ((requests < 1) || (burst < 1) || (maxKeys < 1)) {
+            throw new RuntimeException("Qlue: Invalid @ratelimit directive: " + text);
+        }
+
+        String definition = String.join(" ", tokens);
+
+        String existing = groupDefinitions.get(name);
+        if (existing != null) {
+            if (!existing.equals(definition)) {
+                throw new RuntimeException("Qlue: Conflicting definitions of rate limit group: " + name);
+            }
+
+            return newRateLimiters.get(definition);
+        }
+
+        // Keep using the same limiter if its definition hasn't changed.
+        RateLimiter rateLimiter = rateLimiters.get(definition);
+        if (rateLimiter == null) {
+            rateLimiter = new RateLimiter(name, requests, periodMillis, burst, keyType, maxKeys);
+        }
+
+        groupDefinitions.put(name, definition);
+        newRateLimiters.put(definition, rateLimiter);
+
+        return rateLimiter;
+    }
+
+    /**
+     * Returns the rate limiters used by the current routes.
+     */
+    public Collection<RateLimiter> getRateLimiters() {
+        return Collections.unmodifiableCollection(rateLimiters.values());
+    }
+
+    /**
+     * Parses the host names in a @host directive. A single
+     * asterisk resets the scope to include all hosts.
+     */
+    static Set<String> parseHosts(String text) {
+        String[] tokens = text.trim().split("\\s+");
+        if ((tokens.length == 1) && tokens[0].equals("*")) {
+            return null;
+        }
+
+        Set<String> hosts = new HashSet<>();
+        for (String token : tokens) {
+            String host = TransactionContext.normalizeHost(token);
+            if ((host == null) || (host.length() == 0) || host.equals("*")) {
+                throw new RuntimeException("Qlue: Invalid host in @host directive: " + text);
+            }
+
+            hosts.add(host);
+        }
 
-            add(RouteFactory.create(this, line));
+        return Collections.unmodifiableSet(hosts);
+    }
+
+    /**
+     * Reloads routes from a file. On failure, the error is logged
+     * and the existing routes remain active.
+     *
+     * @return true if the routes were reloaded
+     */
+    public boolean reload(File routesFile) {
+        try {
+            load(routesFile);
+            log.info("Reloaded routes from " + routesFile);
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to reload routes from " + routesFile + "; keeping existing routes", e);
+            return false;
         }
+    }
+
+    /**
+     * Starts watching the routes file for changes, reloading
+     * the routes in the background whenever it changes.
+     */
+    public synchronized void watch(final File routesFile) throws IOException {
+        stopWatching();
+
+        final Path routesPath = routesFile.toPath().toAbsolutePath().normalize();
+        final Path dir = routesPath.getParent();
+
+        watcher = new DirectoryWatcher(dir, false, path -> {
+            // The watcher reports the directory itself if it doesn't know what changed.
+            if (path.equals(routesPath) || path.equals(dir)) {
+                if (Files.exists(routesPath)) {
+                    reload(routesFile);
+                }
+            }
+        });
 
-        in.close();
+        if (log.isDebugEnabled()) {
+            log.debug("Watching for changes: " + routesPath);
+        }
+    }
 
-        //tuneRoutesForMethodNotFound();
+    /**
+     * Stops watching the routes file for changes.
+     */
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
     }
 
     /**
      * Adds a new route.
      */
-    public void add(Route route) {
+    public synchronized void add(Route route) {
         if (route == null) {
             return;
         }
 
-        routes.add(route);
+        // Copy on write, because the current list
+        // may be in use by the compiled table.
+        List<Route> newRoutes = new ArrayList<>(routes);
+        newRoutes.add(route);
+        routes = newRoutes;
+
+        // The compiled table is now stale; it will
+        // be rebuilt on the next routing request.
+        table = null;
+    }
+
+    /**
+     * Compiles the current routes into a new route table.
+     */
+    public synchronized RouteTable compile() {
+        RouteTable newTable = new RouteTable(routes);
+        table = newTable;
+        return newTable;
+    }
+
+    /**
+     * Returns the currently active route table.
+     */
+    public RouteTable getRouteTable() {
+        RouteTable myTable = table;
+        if (myTable == null) {
+            myTable = compile();
+        }
+
+        return myTable;
     }
 
     /**
      * Routes transaction using previously configured routes.
      */
     public Object route(TransactionContext context) {
-        Object r;
-
         if (log.isDebugEnabled()) {
             log.debug("QlueRouter: Asked to route: " + context.getRequestUri());
         }
 
-        // Loop through the configured routes
+        return getRouteTable().route(context);
+    }
+
+    /**
+     * Returns the statistics of the currently active routes, with the
+     * most expensive routes (those that used most processing time) first.
+     */
+    public List<RouteStatistics.Snapshot> getRouteStatistics() {
+        List<RouteStatistics.Snapshot> snapshots = getRouteTable().getStatistics();
+        snapshots.sort(RouteStatistics.Snapshot.BY_COST);
+        return snapshots;
+    }
+
+    /**
+     * Returns the fingerprinted version of the given static file URL, if the
+     * fingerprinting is enabled for the static route that handles it.
+     * Otherwise, returns the URL unchanged.
+     */
+    public String getFingerprintedUrl(String url) {
         for (Route route : routes) {
-            if (log.isDebugEnabled()) {
-                log.debug("QlueRouter: Trying " + route.getPath());
+            if (route.getRouter() instanceof StaticFileRouter) {
+                String fingerprinted = ((StaticFileRouter) route.getRouter()).getFingerprintedUrl(url);
+                if (fingerprinted != null) {
+                    return fingerprinted;
+                }
             }
+        }
+
+        return url;
+    }
 
-            r = route.route(context);
-            if (r != null) {
-                return r;
+    /**
+     * Returns the URL of the named asset bundle, which includes the
+     * fingerprint of its current content.
+     */
+    public String getBundleUrl(String name) {
+        for (Route route : routes) {
+            if (route.getRouter() instanceof BundleRouter) {
+                String url = ((BundleRouter) route.getRouter()).getBundleUrl(name);
+                if (url != null) {
+                    return url;
+                }
             }
         }
 
-        return null;
+        throw new RuntimeException("Qlue: Unknown bundle: " + name);
     }
 
     /**
@@ -182,23 +685,12 @@ public class QlueRouteManager implements RouteManager {
         return app.getPriorityTemplatePath();
     }
 
+    /**
+     * Configures routes to respond with 405 (Method Not Allowed) when a request
+     * matches the path of a route, but not its methods. This is now done
+     * automatically when routes are compiled into a route table.
+     */
     public void tuneRoutesForMethodNotFound() {
-        Route previousRoute = null;
-        for (Route route : routes) {
-            if (previousRoute != null) {
-                if ((!route.getPath().equals(previousRoute.getPath()))
-                        && (previousRoute.isSelectiveAboutMethods()))
-                {
-                    previousRoute.setForceMethodNotFound(true);
-                }
-            }
-
-            previousRoute = route;
-        }
-
-        // Check the last route.
-        if ((previousRoute != null) && (previousRoute.isSelectiveAboutMethods())) {
-            previousRoute.setForceMethodNotFound(true);
-        }
+        compile();
     }
 }
@@ -17,6 +17,9 @@
 package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.util.ConcurrencyLimiter;
+import com.webkreator.qlue.util.RateLimiter;
+import com.webkreator.qlue.view.StatusCodeView;
 import com.webkreator.qlue.view.View;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -51,7 +55,19 @@ public class Route {
 
 	private boolean redirects = false;
 
-	private boolean forceMethodNotFound = false;
+	private List<String> literalSegments;
+
+	private String definition;
+
+	private Set<String> hosts;
+
+	private final RouteStatistics statistics = new RouteStatistics();
+
+	private ConcurrencyLimiter concurrencyLimiter;
+
+	private RateLimiter rateLimiter;
+
+	private long timeout = -1;
 
 	/**
 	 * Creates new route, given path and router instance.
@@ -217,6 +233,53 @@ public class Route {
 		} catch (PatternSyntaxException pse) {
 			throw new RuntimeException("Failed to compile route: " + path, pse);
 		}
+
+		literalSegments = determineLiteralSegments(path);
+	}
+
+	/**
+	 * Determines the path segments at the beginning of the path that must
+	 * appear in request URIs exactly as they are in the route. A segment
+	 * qualifies only if it's terminated by a mandatory forward slash, or if it's
+	 * the last segment in a path without any parameters. Route tables use
+	 * these segments to quickly find candidate routes for a request.
+	 */
+	static List<String> determineLiteralSegments(String path) {
+		List<String> segments = new ArrayList<>();
+
+		// Only the part before the first parameter is literal.
+		String prefix = path;
+		int brace = path.indexOf('{');
+		if (brace != -1) {
+			prefix = path.substring(0, brace);
+		}
+
+		int start = ((prefix.length() > 0) && (prefix.charAt(0) == '/')) ? 1 : 0;
+		for (;;) {
+			int slash = prefix.indexOf('/', start);
+			if (slash == -1) {
+				break;
+			}
+
+			// An optional slash (e.g., "/folder/?") means that the
+			// segment may be followed by arbitrary characters.
+			if ((slash + 1 < prefix.length()) && (prefix.charAt(slash + 1) == '?')) {
+				return segments;
+			}
+
+			if (slash == start) {
+				return segments;
+			}
+
+			segments.add(prefix.substring(start, slash));
+			start = slash + 1;
+		}
+
+		if ((brace == -1) && (start < prefix.length())) {
+			segments.add(prefix.substring(start));
+		}
+
+		return segments;
 	}
 
 	private int findEndingBrace(String haystack, int startingPost) {
@@ -241,9 +304,20 @@ public class Route {
 	 * returns the route associated with the route.
 	 */
 	public Object route(TransactionContext tx) {
+		return route(tx, null);
+	}
+
+	/**
+	 * Attempts to match the transaction to this route. If the path matches but the
+	 * method doesn't, and the allow header is supplied, responds with status 405.
+	 */
+	Object route(TransactionContext tx, String allowHeader) {
+		statistics.recordAttempt();
+
         // If the path is null, that means this is a meta route,
 		// and we always accept the transaction.
         if (path == null) {
+			statistics.recordMatch();
             return router.route(tx, this, null);
         }
 
@@ -256,13 +330,18 @@ public class Route {
 		// Check if the request method matches.
 		RouteMethod method = RouteMethod.fromTransaction(tx);
 		if (!acceptedMethods.contains(method)) {
-			if (forceMethodNotFound) {
-				return new StatusCodeRouter(View.STATUS_405_METHOD_NOT_ALLOWED);
+			statistics.recordMethodMismatch();
+
+			if (allowHeader != null) {
+				tx.setResponseHeader("Allow", allowHeader);
+				return new StatusCodeView(View.STATUS_405_METHOD_NOT_ALLOWED);
 			} else {
 				return null;
 			}
 		}
 
+		statistics.recordMatch();
+
 		// Extract URL parameters
 		int count = 1;
 		String pathSuffix = null;
@@ -287,8 +366,102 @@ public class Route {
 			}
 		}
 
-		// Return the route
-		return router.route(tx, this, pathSuffix);
+		if ((timeout > 0) && !tx.isErrorHandler()) {
+			tx.setDeadline(timeout);
+		}
+
+		// Rate limiting is cheap, so we do it first, before
+		// the request can take a concurrency permit.
+		if ((rateLimiter != null) && !tx.isErrorHandler()) {
+			rateLimiter.check(tx);
+		}
+
+		if ((concurrencyLimiter == null) || tx.isErrorHandler()) {
+			return router.route(tx, this, pathSuffix);
+		}
+
+		// Admit the request before the router creates the page. The permit
+		// is kept in the transaction and released when processing completes.
+		ConcurrencyLimiter.Permit permit = concurrencyLimiter.acquire();
+		Object r = null;
+		try {
+			r = router.route(tx, this, pathSuffix);
+			return r;
+		} finally {
+			if (r != null) {
+				tx.setConcurrencyPermit(permit);
+			} else {
+				permit.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns the text from which this route was created, or
+	 * the path if the route was created programmatically.
+	 */
+	public String getDefinition() {
+		return (definition != null) ? definition : path;
+	}
+
+	void setDefinition(String definition) {
+		this.definition = definition;
+	}
+
+	/**
+	 * Returns the names of the hosts to which this route
+	 * applies, or null if it applies to all hosts.
+	 */
+	public Set<String> getHosts() {
+		return hosts;
+	}
+
+	void setHosts(Set<String> hosts) {
+		this.hosts = hosts;
+	}
+
+	/**
+	 * Returns the limiter that caps the number of requests this
+	 * route processes at the same time, or null if there's no limit.
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	/**
+	 * Returns the limiter that caps the rate at which individual
+	 * clients can use this route, or null if there's no limit.
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Returns the number of milliseconds in which the transactions handled
+	 * by this route must complete, or -1 if there's no deadline.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public Router getRouter() {
+		return router;
+	}
+
+	public RouteStatistics getStatistics() {
+		return statistics;
 	}
 
 	/**
@@ -298,6 +471,18 @@ public class Route {
 		return path;
 	}
 
+	/**
+	 * Returns the literal path segments with which this route starts, or
+	 * null if this is a meta route, which applies to all paths.
+	 */
+	public List<String> getLiteralSegments() {
+		return literalSegments;
+	}
+
+	public EnumSet<RouteMethod> getAcceptedMethods() {
+		return acceptedMethods;
+	}
+
 	public boolean acceptsMethod(RouteMethod method) {
 		return acceptedMethods.contains(method);
 	}
@@ -307,14 +492,14 @@ public class Route {
 	}
 
 	public boolean isSelectiveAboutMethods() {
+		if (acceptedMethods == null) {
+			return false;
+		}
+
 		if (acceptedMethods.size() == RouteMethod.values().length) {
 			return false;
 		} else {
 			return true;
 		}
 	}
-
-	void setForceMethodNotFound(boolean b) {
-		forceMethodNotFound = b;
-	}
 }
@@ -31,11 +31,23 @@ public class RouteFactory {
 	 * Creates route from its text representation.
 	 */
 	public static Route create(RouteManager manager, String route) {
-		Router router;
+		Route r;
 
         if ((route.length() > 0)&&(route.charAt(0) == '@')) {
-            return createMetaRoute(manager, route);
-        }
+            r = createMetaRoute(manager, route);
+        } else {
+			r = createRoute(manager, route);
+		}
+
+		if (r != null) {
+			r.setDefinition(route);
+		}
+
+		return r;
+	}
+
+	private static Route createRoute(RouteManager manager, String route) {
+		Router router;
 
 		// Split the route into tokens.
 		int nextTokenPos = 0;
@@ -157,14 +169,60 @@ public class RouteFactory {
 				// Status code only.
 				router = new StaticFileRouter(manager, staticPath);
 			}					
+		} else if (action.startsWith("bundles:")) {
+			// Asset bundles, defined in the named file.
+			String bundlesFile = action.substring(8).trim();
+			router = new BundleRouter(manager, bundlesFile);
 		} else {
 			// Route directly to a class.
 			router = new ClassRouter(manager, action);
 		}
 
+		// Static files and bundles are served from the part of
+		// the path that precedes the suffix; remember it so that
+		// we can construct their URLs.
+		String urlPrefix = determineUrlPrefix(path);
+		if (urlPrefix != null) {
+			if (router instanceof StaticFileRouter) {
+				((StaticFileRouter) router).setUrlPrefix(urlPrefix);
+			} else if (router instanceof BundleRouter) {
+				((BundleRouter) router).setUrlPrefix(urlPrefix);
+			}
+		}
+
 		return new Route(acceptedMethods, path, router, manager);
 	}
 
+	/**
+	 * Determines the URL prefix from which a route that ends with the
+	 * terminating parameter (e.g., "/static/{}" or "/static/?{}") serves
+	 * its files. The prefix is only known if everything before the
+	 * parameter consists of literal segments.
+	 *
+	 * @return the prefix, always slash-terminated, or null if it can't be determined
+	 */
+	static String determineUrlPrefix(String path) {
+		if (!path.endsWith("{}")) {
+			return null;
+		}
+
+		// With an optional slash, the slash-terminated
+		// form of the URL is the canonical one.
+		String text = path.substring(0, path.length() - 2);
+		if (text.endsWith("/?")) {
+			text = text.substring(0, text.length() - 1);
+		}
+
+		StringBuilder sb = new StringBuilder("/");
+		for (String segment : Route.determineLiteralSegments(text)) {
+			sb.append(segment);
+			sb.append('/');
+		}
+
+		String urlPrefix = sb.toString();
+		return urlPrefix.equals(text) ? urlPrefix : null;
+	}
+
 	private static EnumSet<RouteMethod> parseAcceptedMethods(String token) {
 		EnumSet<RouteMethod> acceptedMethods = EnumSet.noneOf(RouteMethod.class);
 
@@ -191,6 +249,9 @@ public class RouteFactory {
 			case "define":
 				DefineConfigRouter.updateProperties(manager, configText);
 				return null;
+			case "host":
+				// Host sections are handled by the route manager, when loading routes files.
+				throw new RuntimeException("Qlue: The @host directive can be used only in routes files");
 			default:
 				throw new RuntimeException("Qlue: Unknown configuration directive: " + configDirective);
 		}
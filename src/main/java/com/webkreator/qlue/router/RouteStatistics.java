@@ -0,0 +1,245 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.util.LatencyHistogram;
+import com.webkreator.qlue.util.PhaseTimer;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime statistics for one route. The counters are striped, which means
+ * that they can be updated from many threads at the same time with very
+ * little contention; reading them is more expensive, but happens rarely.
+ */
+public class RouteStatistics {
+
+    private final LongAdder attempts = new LongAdder();
+
+    private final LongAdder matches = new LongAdder();
+
+    private final LongAdder methodMismatches = new LongAdder();
+
+    private final LongAdder routed = new LongAdder();
+
+    private final LongAdder evaluationsBeforeRouting = new LongAdder();
+
+    private final LongAdder processed = new LongAdder();
+
+    private final LongAdder processingNanos = new LongAdder();
+
+    private final LongAccumulator maxProcessingNanos = new LongAccumulator(Math::max, 0);
+
+    private final LatencyHistogram[] phases = new LatencyHistogram[PhaseTimer.Phase.values().length];
+
+    public RouteStatistics() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records an attempt to match a request against the route.
+     */
+    void recordAttempt() {
+        attempts.increment();
+    }
+
+    /**
+     * Records a request that matched both the path and the method of the route.
+     */
+    void recordMatch() {
+        matches.increment();
+    }
+
+    /**
+     * Records a request that matched the path of the route, but not the method.
+     */
+    void recordMethodMismatch() {
+        methodMismatches.increment();
+    }
+
+    /**
+     * Records a request that was handled by the route, along with the number
+     * of routes (including this one) that had to be evaluated to get here.
+     */
+    void recordRouted(int evaluations) {
+        routed.increment();
+        evaluationsBeforeRouting.add(evaluations);
+    }
+
+    /**
+     * Records the time spent processing a request after it had been routed.
+     */
+    public void recordProcessing(long nanos) {
+        processed.increment();
+        processingNanos.add(nanos);
+        maxProcessingNanos.accumulate(nanos);
+    }
+
+    /**
+     * Records the time spent in each of the phases of a
+     * routed request. Phases that weren't reached are ignored.
+     */
+    public void recordPhases(PhaseTimer timer) {
+        for (PhaseTimer.Phase phase : PhaseTimer.Phase.values()) {
+            if (timer.isMarked(phase)) {
+                phases[phase.ordinal()].record(timer.getNanos(phase));
+            }
+        }
+    }
+
+    /**
+     * Returns a consistent-enough copy of the current counter values.
+     */
+    public Snapshot snapshot(Route route) {
+        return new Snapshot(route, this);
+    }
+
+    public static class Snapshot {
+
+        /**
+         * Orders snapshots by the total processing time, then by the
+         * number of match attempts, both in descending order.
+         */
+        public static final Comparator<Snapshot> BY_COST = Comparator
+                .comparingLong(Snapshot::getProcessingNanos)
+                .thenComparingLong(Snapshot::getAttempts)
+                .reversed();
+
+        private final String path;
+
+        private final String definition;
+
+        private final long attempts;
+
+        private final long matches;
+
+        private final long methodMismatches;
+
+        private final long routed;
+
+        private final long evaluationsBeforeRouting;
+
+        private final long processed;
+
+        private final long processingNanos;
+
+        private final long maxProcessingNanos;
+
+        private final long[][] phaseCounts;
+
+        private final long[] phaseNanos;
+
+        Snapshot(Route route, RouteStatistics stats) {
+            path = route.getPath();
+            definition = route.getDefinition();
+            attempts = stats.attempts.sum();
+            matches = stats.matches.sum();
+            methodMismatches = stats.methodMismatches.sum();
+            routed = stats.routed.sum();
+            evaluationsBeforeRouting = stats.evaluationsBeforeRouting.sum();
+            processed = stats.processed.sum();
+            processingNanos = stats.processingNanos.sum();
+            maxProcessingNanos = stats.maxProcessingNanos.get();
+
+            phaseCounts = new long[stats.phases.length][];
+            phaseNanos = new long[stats.phases.length];
+            for (int i = 0; i < stats.phases.length; i++) {
+                phaseCounts[i] = stats.phases[i].getCounts();
+                phaseNanos[i] = stats.phases[i].getTotalNanos();
+            }
+        }
+
+        /**
+         * Returns the route path, or null for meta routes.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the text from which the route was created, if known.
+         */
+        public String getDefinition() {
+            return definition;
+        }
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getMatches() {
+            return matches;
+        }
+
+        public long getMethodMismatches() {
+            return methodMismatches;
+        }
+
+        public long getRouted() {
+            return routed;
+        }
+
+        /**
+         * Returns the average number of routes evaluated
+         * for the requests that ended up with this route.
+         */
+        public double getAverageEvaluationsBeforeRouting() {
+            return routed > 0 ? (double) evaluationsBeforeRouting / routed : 0;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getProcessingNanos() {
+            return processingNanos;
+        }
+
+        public long getMaxProcessingNanos() {
+            return maxProcessingNanos;
+        }
+
+        public long getAverageProcessingNanos() {
+            return processed > 0 ? processingNanos / processed : 0;
+        }
+
+        /**
+         * Returns the latency histogram buckets of the given phase; see LatencyHistogram.
+         */
+        public long[] getPhaseHistogram(PhaseTimer.Phase phase) {
+            return phaseCounts[phase.ordinal()].clone();
+        }
+
+        /**
+         * Returns the total time spent in the given phase.
+         */
+        public long getPhaseNanos(PhaseTimer.Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+
+        /**
+         * Estimates the given percentile of the phase latency, in microseconds.
+         */
+        public long getPhasePercentileMicros(PhaseTimer.Phase phase, double percentile) {
+            return LatencyHistogram.getPercentileMicros(phaseCounts[phase.ordinal()], percentile);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.TransactionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * An immutable, compiled form of a list of routes. Routes are placed into
+ * a prefix trie keyed on the literal path segments that appear at the
+ * beginning of their paths. At runtime, we walk the trie using the segments
+ * of the request URI and arrive at a short list of candidate routes, which
+ * are then evaluated in their original order. Because every trie node
+ * also contains the routes of all its ancestors, the first-match-wins
+ * semantics of the routing file are preserved.
+ *
+ * Routes that apply only to some hosts are placed in separate tables, one
+ * per host, which also contain all the routes that apply to all hosts. The
+ * table to use is chosen by a single lookup using the request's host name.
+ */
+public class RouteTable {
+
+    private static Logger log = LoggerFactory.getLogger(RouteTable.class);
+
+    private final Route[] routes;
+
+    private final String[] allowHeaders;
+
+    private final Node root = new Node();
+
+    // Tables for the hosts that have their own routes; the
+    // routes for all other hosts are in this table.
+    private final Map<String, RouteTable> hostTables;
+
+    /**
+     * Compiles the supplied routes into a new table. The list
+     * is copied, so subsequent changes to it will not affect the table.
+     */
+    public RouteTable(List<Route> routeList) {
+        this(routeList.toArray(new Route[0]), null);
+    }
+
+    /**
+     * Compiles a table for the given host, using only the routes
+     * that apply to it. If the host is null, uses the routes that
+     * apply to all hosts, and creates tables for individual hosts.
+     */
+    private RouteTable(Route[] allRoutes, String host) {
+        List<Route> selected = new ArrayList<>();
+        Set<String> hosts = new HashSet<>();
+
+        for (Route route : allRoutes) {
+            Set<String> routeHosts = route.getHosts();
+            if (routeHosts == null) {
+                selected.add(route);
+            } else {
+                hosts.addAll(routeHosts);
+                if ((host != null) && routeHosts.contains(host)) {
+                    selected.add(route);
+                }
+            }
+        }
+
+        if ((host == null) && !hosts.isEmpty()) {
+            hostTables = new HashMap<>();
+            for (String h : hosts) {
+                hostTables.put(h, new RouteTable(allRoutes, h));
+            }
+        } else {
+            hostTables = Collections.emptyMap();
+        }
+
+        routes = selected.toArray(new Route[0]);
+        allowHeaders = determineMethodNotAllowedRoutes(routes);
+
+        for (int i = 0; i < routes.length; i++) {
+            Node node = root;
+
+            List<String> segments = routes[i].getLiteralSegments();
+            if (segments != null) {
+                for (String segment : segments) {
+                    node = node.children.computeIfAbsent(segment, k -> new Node());
+                }
+            }
+
+            node.own.add(i);
+        }
+
+        root.compile(new int[0]);
+    }
+
+    /**
+     * Routes transaction using the routes in this table.
+     */
+    public Object route(TransactionContext context) {
+        if (!hostTables.isEmpty()) {
+            String host = context.getHost();
+            if (host != null) {
+                RouteTable hostTable = hostTables.get(host);
+                if (hostTable != null) {
+                    return hostTable.routeInternal(context);
+                }
+            }
+        }
+
+        return routeInternal(context);
+    }
+
+    private Object routeInternal(TransactionContext context) {
+        String uri = context.getRequestUri();
+
+        int evaluations = 0;
+        for (int i : findCandidates(uri)) {
+            Route route = routes[i];
+
+            if (log.isDebugEnabled()) {
+                log.debug("QlueRouter: Trying " + route.getPath());
+            }
+
+            evaluations++;
+
+            Object r = route.route(context, allowHeaders[i]);
+            if (r != null) {
+                route.getStatistics().recordRouted(evaluations);
+                context.setRoute(route);
+                return r;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the indexes of the routes that could match the given URI,
+     * in the order in which they should be evaluated.
+     */
+    int[] findCandidates(String uri) {
+        Node node = root;
+
+        int start = ((uri.length() > 0) && (uri.charAt(0) == '/')) ? 1 : 0;
+        while (start < uri.length()) {
+            int end = uri.indexOf('/', start);
+            if (end == -1) {
+                end = uri.length();
+            }
+
+            Node child = node.children.get(uri.substring(start, end));
+            if (child == null) {
+                break;
+            }
+
+            node = child;
+            start = end + 1;
+        }
+
+        return node.candidates;
+    }
+
+    /**
+     * Returns the table used for the given host.
+     */
+    public RouteTable forHost(String host) {
+        RouteTable hostTable = hostTables.get(host);
+        return (hostTable != null) ? hostTable : this;
+    }
+
+    /**
+     * Returns the names of the hosts that have their own routes.
+     */
+    public Set<String> getHosts() {
+        return Collections.unmodifiableSet(hostTables.keySet());
+    }
+
+    /**
+     * Returns the routes in this table, in their original order. For
+     * the default table, that excludes the host-specific routes.
+     */
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(Arrays.asList(routes));
+    }
+
+    /**
+     * Returns the statistics of all routes in this table, in their original order.
+     */
+    public List<RouteStatistics.Snapshot> getStatistics() {
+        List<RouteStatistics.Snapshot> snapshots = new ArrayList<>(routes.length);
+        for (Route route : routes) {
+            snapshots.add(route.getStatistics().snapshot(route));
+        }
+
+        // Add the routes that are specific to individual hosts.
+        Set<Route> seen = new HashSet<>(Arrays.asList(routes));
+        for (RouteTable hostTable : hostTables.values()) {
+            for (Route route : hostTable.routes) {
+                if (seen.add(route)) {
+                    snapshots.add(route.getStatistics().snapshot(route));
+                }
+            }
+        }
+
+        return snapshots;
+    }
+
+    public int size() {
+        return routes.length;
+    }
+
+    /**
+     * Finds routes that need to respond with 405 (Method Not Allowed) when
+     * their path matches, but the request method doesn't. This is the case
+     * with the last route for a given path, provided that route is selective
+     * about the methods it accepts. The returned array contains the value of
+     * the Allow header to use for each such route, or null for all other routes.
+     */
+    private static String[] determineMethodNotAllowedRoutes(Route[] routes) {
+        String[] allowHeaders = new String[routes.length];
+
+        Map<String, Integer> lastRouteForPath = new HashMap<>();
+        Map<String, EnumSet<RouteMethod>> methodsForPath = new HashMap<>();
+
+        for (int i = 0; i < routes.length; i++) {
+            String path = routes[i].getPath();
+            if (path == null) {
+                continue;
+            }
+
+            lastRouteForPath.put(path, i);
+            methodsForPath.computeIfAbsent(path, k -> EnumSet.noneOf(RouteMethod.class))
+                    .addAll(routes[i].getAcceptedMethods());
+        }
+
+        for (Map.Entry<String, Integer> me : lastRouteForPath.entrySet()) {
+            Route route = routes[me.getValue()];
+            if (route.isSelectiveAboutMethods()) {
+                allowHeaders[me.getValue()] = buildAllowHeader(methodsForPath.get(me.getKey()));
+            }
+        }
+
+        return allowHeaders;
+    }
+
+    private static String buildAllowHeader(EnumSet<RouteMethod> methods) {
+        StringBuilder sb = new StringBuilder();
+
+        for (RouteMethod method : methods) {
+            if (method == RouteMethod.$OTHER) {
+                continue;
+            }
+
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+
+            sb.append(method.name());
+
+            // HEAD is handled as GET.
+            if (method == RouteMethod.GET) {
+                sb.append(", HEAD");
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+
+        private final List<Integer> own = new ArrayList<>();
+
+        private int[] candidates;
+
+        /**
+         * Combines the candidates inherited from the parent node with the routes
+         * placed in this node, preserving the original route order, then
+         * does the same for all children.
+         */
+        void compile(int[] inherited) {
+            candidates = new int[inherited.length + own.size()];
+
+            int i = 0, j = 0, k = 0;
+            while ((i < inherited.length) || (j < own.size())) {
+                if ((j >= own.size()) || ((i < inherited.length) && (inherited[i] < own.get(j)))) {
+                    candidates[k++] = inherited[i++];
+                } else {
+                    candidates[k++] = own.get(j++);
+                }
+            }
+
+            for (Node child : children.values()) {
+                child.compile(candidates);
+            }
+        }
+    }
+}
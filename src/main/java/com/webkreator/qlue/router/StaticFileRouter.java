@@ -18,27 +18,100 @@ package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.exceptions.QlueSecurityException;
+import com.webkreator.qlue.util.AssetManifest;
+import com.webkreator.qlue.util.FileMetadataCache;
+import com.webkreator.qlue.util.GzipPrecompressor;
+import com.webkreator.qlue.util.MimeTypes;
+import com.webkreator.qlue.util.StaticFileCache;
+import com.webkreator.qlue.util.WebUtil;
 import com.webkreator.qlue.view.DownloadView;
 import com.webkreator.qlue.view.StatusCodeView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.Properties;
 
 /**
- * Routes transaction to a static file.
+ * Routes transaction to a static file. If the client supports compression and
+ * there is a fresh precompressed variant of the requested file (with the .br
+ * or .gz suffix), the variant is sent instead.
  */
 public class StaticFileRouter implements Router {
 
+    public static final String PROPERTY_PRECOMPRESS = "qlue.static.precompress";
+
+    public static final String PROPERTY_CACHE_SIZE = "qlue.static.cacheSize";
+
+    public static final String PROPERTY_CACHE_MAX_FILE_SIZE = "qlue.static.cacheMaxFileSize";
+
+    public static final String PROPERTY_CACHE_OFF_HEAP = "qlue.static.cacheOffHeap";
+
+    public static final String PROPERTY_METADATA_TTL = "qlue.static.metadataTtl";
+
+    public static final String PROPERTY_FINGERPRINT = "qlue.static.fingerprint";
+
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
     private Logger log = LoggerFactory.getLogger(StaticFileRouter.class);
 
     protected RouteManager manager;
 
     private String root;
 
+    private StaticFileCache cache;
+
+    private FileMetadataCache metadata;
+
+    private AssetManifest manifest;
+
+    private String urlPrefix;
+
     public StaticFileRouter(RouteManager manager, String root) {
         this.manager = manager;
         this.root = root;
+
+        File rootDir = new File(root);
+        Properties properties = manager.getProperties();
+
+        long metadataTtl = getSizeProperty(properties, PROPERTY_METADATA_TTL, FileMetadataCache.DEFAULT_TTL_MILLIS);
+        if ((metadataTtl > 0) && rootDir.isDirectory()) {
+            metadata = FileMetadataCache.forDirectory(rootDir, metadataTtl, FileMetadataCache.DEFAULT_MAX_ENTRIES);
+        } else {
+            metadata = new FileMetadataCache(rootDir.toPath(), 0, 0);
+        }
+
+        if (!rootDir.isDirectory()) {
+            return;
+        }
+
+        if (Boolean.parseBoolean(properties.getProperty(PROPERTY_PRECOMPRESS))) {
+            GzipPrecompressor.startInBackground(rootDir);
+        }
+
+        if (Boolean.parseBoolean(properties.getProperty(PROPERTY_FINGERPRINT))) {
+            manifest = AssetManifest.forDirectory(rootDir);
+        }
+
+        long cacheSize = getSizeProperty(properties, PROPERTY_CACHE_SIZE, 0);
+        if (cacheSize > 0) {
+            cache = StaticFileCache.forDirectory(rootDir, cacheSize,
+                    getSizeProperty(properties, PROPERTY_CACHE_MAX_FILE_SIZE, StaticFileCache.DEFAULT_MAX_FILE_SIZE),
+                    Boolean.parseBoolean(properties.getProperty(PROPERTY_CACHE_OFF_HEAP)));
+        }
+    }
+
+    private static long getSizeProperty(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
     }
 
     @Override
@@ -53,16 +126,22 @@ public class StaticFileRouter implements Router {
 
         File file = new File(root, pathSuffix);
 
+        // Don't expose the temporary files of the precompressor.
+        if (GzipPrecompressor.isTemporaryFile(file.getName())) {
+            return null;
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("StaticFileRouter: Trying file: " + file);
         }
 
-        if (!file.exists()) {
-            return null;
+        FileMetadataCache.Entry entry = metadata.get(file);
+        if (!entry.exists()) {
+            return (manifest != null) ? routeFingerprinted(context, pathSuffix) : null;
         }
 
-        if (!file.isDirectory()) {
-            return new DownloadView(file);
+        if (!entry.isDirectory()) {
+            return createView(context, file, entry);
         }
 
         // The request is for a directory; ask the manager for
@@ -73,20 +152,161 @@ public class StaticFileRouter implements Router {
             return RedirectionRouter.newAddTrailingSlash(context, 307).route(context, route, pathSuffix);
         }
 
-        File defaultFile = new File(file, manager.getIndexWithSuffix());
-        if (defaultFile.exists()) {
-            return new DownloadView(defaultFile);
-        }
-
         // This router delivers static files so we'll also allow
         // "index.html" as the default file, which is potentially
         // different from what is configured in the manager for
         // pages, etc.
-        defaultFile = new File(file, "index.html");
-        if (defaultFile.exists()) {
-            return new DownloadView(defaultFile);
+        File defaultFile = metadata.findIndex(file, manager.getIndexWithSuffix(), "index.html");
+        if (defaultFile != null) {
+            return createView(context, defaultFile, metadata.get(defaultFile));
         } else {
             return new StatusCodeView(403);
         }
     }
+
+    /**
+     * Handles requests for fingerprinted files. When the fingerprint matches the
+     * content, the response can be cached forever. Otherwise, the page that
+     * contains the link is stale; we send the current content, which is most
+     * likely what the client wants, but without the long-term caching.
+     */
+    private Object routeFingerprinted(TransactionContext context, String pathSuffix) {
+        boolean current = true;
+
+        String path = manifest.resolve(pathSuffix);
+        if (path == null) {
+            path = AssetManifest.stripFingerprint(pathSuffix);
+            if (path == null) {
+                return null;
+            }
+
+            current = false;
+        }
+
+        File file = new File(root, path);
+        FileMetadataCache.Entry entry = metadata.get(file);
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        if (current) {
+            context.setResponseHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+        }
+
+        return createView(context, file, entry);
+    }
+
+    /**
+     * Returns the fingerprinted version of the given URL, if it belongs
+     * to this router and the fingerprinting is enabled, or null otherwise.
+     */
+    public String getFingerprintedUrl(String url) {
+        if ((manifest == null) || (urlPrefix == null) || !url.startsWith(urlPrefix)) {
+            return null;
+        }
+
+        String path = url.substring(urlPrefix.length());
+        String query = "";
+
+        int i = path.indexOf('?');
+        if (i != -1) {
+            query = path.substring(i);
+            path = path.substring(0, i);
+        }
+
+        String fingerprinted = manifest.fingerprint(path);
+        if (fingerprinted == null) {
+            return null;
+        }
+
+        return urlPrefix + fingerprinted + query;
+    }
+
+    /**
+     * Sets the URL prefix at which this router's files are available,
+     * which is needed to construct fingerprinted URLs.
+     */
+    public void setUrlPrefix(String urlPrefix) {
+        this.urlPrefix = urlPrefix;
+    }
+
+    public AssetManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Creates a view that will send the given file, or its precompressed
+     * variant if the client accepts it.
+     */
+    protected DownloadView createView(TransactionContext context, File file, FileMetadataCache.Entry entry) {
+        String contentType = MimeTypes.getMimeTypeForFilename(file.getName());
+        if (!MimeTypes.isCompressible(contentType)) {
+            return newView(file, entry, contentType, null);
+        }
+
+        // The response depends on the request headers, whether
+        // or not we end up sending a compressed variant.
+        context.setResponseHeader("Vary", "Accept-Encoding");
+
+        String acceptEncoding = context.request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return newView(file, entry, contentType, null);
+        }
+
+        if (WebUtil.acceptsEncoding(acceptEncoding, "br")) {
+            File variant = new File(file.getPath() + ".br");
+            FileMetadataCache.Entry variantEntry = findVariant(variant, entry);
+            if (variantEntry != null) {
+                return newView(variant, variantEntry, contentType, "br");
+            }
+        }
+
+        if (WebUtil.acceptsEncoding(acceptEncoding, "gzip")) {
+            File variant = new File(file.getPath() + GzipPrecompressor.SUFFIX);
+            FileMetadataCache.Entry variantEntry = findVariant(variant, entry);
+            if (variantEntry != null) {
+                return newView(variant, variantEntry, contentType, "gzip");
+            }
+        }
+
+        return newView(file, entry, contentType, null);
+    }
+
+    private DownloadView newView(File file, FileMetadataCache.Entry entry, String contentType, String contentEncoding) {
+        DownloadView view = new DownloadView(file, contentType, contentEncoding);
+        view.setLastModified(entry.getLastModified());
+        view.setCache(cache);
+        return view;
+    }
+
+    /**
+     * Returns the cache used by this router, or null if caching is not enabled.
+     */
+    public StaticFileCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the metadata of the given variant of a file, but only
+     * if it exists and is not older than the file itself.
+     */
+    private FileMetadataCache.Entry findVariant(File variant, FileMetadataCache.Entry original) {
+        FileMetadataCache.Entry entry = metadata.get(variant);
+        if (!entry.isFile() || (entry.getLastModified() < original.getLastModified())) {
+            return null;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("StaticFileRouter: Using variant: " + variant);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns the file metadata cache used by this router.
+     */
+    public FileMetadataCache getMetadataCache() {
+        return metadata;
+    }
 }
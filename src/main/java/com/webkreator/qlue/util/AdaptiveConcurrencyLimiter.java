@@ -0,0 +1,145 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+/**
+ * A concurrency limiter that adjusts its limit based on the observed request
+ * latency, using the gradient approach: it compares the short-term average
+ * latency with the baseline (the lowest short-term average seen recently) and,
+ * while the former doesn't rise above the latter (within some tolerance), keeps
+ * growing the limit. When the latency rises, which indicates that requests are
+ * queuing somewhere down the line, the limit shrinks proportionally, shedding
+ * the excess requests. Because the baseline can change (e.g., when a backend
+ * becomes slower), it's periodically measured again; the limit is halved at
+ * the same time, so that the measurement isn't distorted by queuing.
+ */
+public class AdaptiveConcurrencyLimiter extends ConcurrencyLimiter {
+
+    // How much the short-term latency may exceed the baseline
+    // latency before we start to reduce the limit.
+    private static final double TOLERANCE = 1.5;
+
+    private static final double SMOOTHING = 0.2;
+
+    private static final double SHORT_ALPHA = 0.1;
+
+    // How often to measure the baseline latency again, in requests, as a
+    // multiple of the limit. That's roughly the same as the number of
+    // round trips, no matter how high or low the limit is.
+    private static final int PROBE_MULTIPLIER = 30;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    // The following fields are guarded by the lock.
+
+    private double estimatedLimit;
+
+    private double shortRtt;
+
+    private double baselineRtt;
+
+    private int samples;
+
+    /**
+     * @param name the name of the group of routes that share this limiter
+     * @param initialLimit the limit to start with
+     * @param minLimit the lowest the limit can go
+     * @param maxLimit the highest the limit can go
+     * @param maxQueued maximum number of requests waiting for their turn
+     * @param maxWaitMillis maximum time a request can wait for its turn
+     * @param retryAfter the value of the Retry-After header sent with rejections, in seconds
+     */
+    public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit,
+                                      int maxQueued, long maxWaitMillis, long retryAfter)
+    {
+        super(name, initialLimit, maxQueued, maxWaitMillis, retryAfter);
+
+        if ((minLimit < 1) || (maxLimit < minLimit) || (initialLimit < minLimit) || (initialLimit > maxLimit)) {
+            throw new IllegalArgumentException("Invalid adaptive limits: initial=" + initialLimit
+                    + ", min=" + minLimit + ", max=" + maxLimit);
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+    @Override
+    protected void onRelease(long nanos, int inFlight) {
+        if (++samples >= PROBE_MULTIPLIER * estimatedLimit) {
+            samples = 0;
+            baselineRtt = 0;
+            estimatedLimit = Math.max(minLimit, estimatedLimit / 2);
+            setLimit((int) estimatedLimit);
+        }
+
+        shortRtt = (shortRtt == 0) ? nanos : shortRtt + (nanos - shortRtt) * SHORT_ALPHA;
+
+        // We use the short-term average rather than individual
+        // samples, so that a few very fast requests don't matter.
+        if ((baselineRtt == 0) || (shortRtt < baselineRtt)) {
+            baselineRtt = shortRtt;
+        }
+
+        // When we're using only a small part of the limit, the
+        // latency tells us nothing about what the limit should be.
+        if (inFlight < estimatedLimit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+
+        setLimit((int) estimatedLimit);
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Returns the short-term average latency, in nanoseconds.
+     */
+    public long getShortRttNanos() {
+        lock();
+        try {
+            return (long) shortRtt;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Returns the baseline latency, in nanoseconds.
+     */
+    public long getBaselineRttNanos() {
+        lock();
+        try {
+            return (long) baselineRtt;
+        } finally {
+            unlock();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A number of CSS or JavaScript files, concatenated into a single in-memory
+ * response (style sheets are also minified), along with its compressed
+ * variant. Bundles are immutable; when the files change, a new bundle is built.
+ */
+public class AssetBundle {
+
+    private final String name;
+
+    private final List<File> files;
+
+    private final String contentType;
+
+    private final ByteBuffer content;
+
+    private final ByteBuffer gzipContent;
+
+    private final String hash;
+
+    private final long lastModified;
+
+    private AssetBundle(String name, List<File> files, String contentType, byte[] content, byte[] gzipContent,
+                        String hash, long lastModified) {
+        this.name = name;
+        this.files = Collections.unmodifiableList(files);
+        this.contentType = contentType;
+        this.content = ByteBuffer.wrap(content).asReadOnlyBuffer();
+        this.gzipContent = (gzipContent != null) ? ByteBuffer.wrap(gzipContent).asReadOnlyBuffer() : null;
+        this.hash = hash;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Builds a bundle from the given files. The type of the bundle is determined
+     * from its name. Style sheets are minified; JavaScript files are concatenated
+     * as they are, because safe minification requires a full parser.
+     */
+    public static AssetBundle build(String name, List<File> files) throws IOException {
+        String contentType = MimeTypes.getMimeTypeForFilename(name);
+        boolean css = name.endsWith(".css");
+        boolean js = name.endsWith(".js");
+
+        StringBuilder sb = new StringBuilder();
+        long lastModified = 0;
+
+        for (File f : files) {
+            String text = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+            lastModified = Math.max(lastModified, f.lastModified());
+
+            if (css) {
+                sb.append(minifyCss(text));
+            } else if (js) {
+                sb.append(text);
+                // Guard against files that don't end with a semicolon.
+                sb.append(";\n");
+            } else {
+                sb.append(text);
+                sb.append('\n');
+            }
+        }
+
+        byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] gzipContent = null;
+        if (MimeTypes.isCompressible(contentType)) {
+            gzipContent = gzip(content);
+            if (gzipContent.length >= content.length) {
+                gzipContent = null;
+            }
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        // Last-Modified is in seconds, so round down, or
+        // conditional requests would never match.
+        lastModified = lastModified - (lastModified % 1000);
+
+        return new AssetBundle(name, files, contentType, content, gzipContent,
+                AssetManifest.toHash(md.digest(content)), lastModified);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+        try (GZIPOutputStream os = new GZIPOutputStream(baos) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            os.write(data);
+        }
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Removes comments and unnecessary whitespace from a style sheet. Strings
+     * are left intact. Whitespace around selector combinators is preserved,
+     * because it's significant in some contexts (e.g., calc() expressions).
+     */
+    static String minifyCss(String css) {
+        StringBuilder sb = new StringBuilder(css.length());
+        int len = css.length();
+        boolean pendingSpace = false;
+
+        for (int i = 0; i < len; i++) {
+            char c = css.charAt(i);
+
+            if ((c == '/') && (i + 1 < len) && (css.charAt(i + 1) == '*')) {
+                int end = css.indexOf("*/", i + 2);
+                i = (end == -1) ? len : end + 1;
+                continue;
+            }
+
+            if ((c == '"') || (c == '\'')) {
+                if (pendingSpace) {
+                    appendSpace(sb);
+                    pendingSpace = false;
+                }
+
+                int j = i + 1;
+                while ((j < len) && (css.charAt(j) != c)) {
+                    if (css.charAt(j) == '\\') {
+                        j++;
+                    }
+                    j++;
+                }
+
+                sb.append(css, i, Math.min(j + 1, len));
+                i = j;
+                continue;
+            }
+
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+
+            if ((c == '{') || (c == '}') || (c == ';') || (c == ':') || (c == ',')) {
+                // No need for whitespace on either side of these characters. The
+                // colon is an exception inside selectors (e.g., "a :hover"), which
+                // we can't distinguish from declarations, so we keep the space before it.
+                if (pendingSpace && (c == ':')) {
+                    appendSpace(sb);
+                }
+
+                pendingSpace = false;
+
+                // Remove the semicolon before a closing brace.
+                if ((c == '}') && (sb.length() > 0) && (sb.charAt(sb.length() - 1) == ';')) {
+                    sb.setLength(sb.length() - 1);
+                }
+
+                sb.append(c);
+
+                // Skip whitespace that follows.
+                while ((i + 1 < len) && Character.isWhitespace(css.charAt(i + 1))) {
+                    i++;
+                }
+
+                continue;
+            }
+
+            if (pendingSpace) {
+                appendSpace(sb);
+                pendingSpace = false;
+            }
+
+            sb.append(c);
+        }
+
+        return sb.toString();
+    }
+
+    private static void appendSpace(StringBuilder sb) {
+        if (sb.length() > 0) {
+            char last = sb.charAt(sb.length() - 1);
+            if ((last != '{') && (last != '}') && (last != ';') && (last != ',')) {
+                sb.append(' ');
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the name of the bundle with its content hash, for use in URLs.
+     */
+    public String getFingerprintedName() {
+        return AssetManifest.fingerprint(name, hash);
+    }
+
+    public List<File> getFiles() {
+        return files;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the content of the bundle. The returned buffer is read-only,
+     * but its position and limit must not be changed.
+     */
+    public ByteBuffer getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the gzip-compressed content of the bundle, or null
+     * if the content is not compressible.
+     */
+    public ByteBuffer getGzipContent() {
+        return gzipContent;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getETag() {
+        return hash;
+    }
+
+    public String getGzipETag() {
+        return hash + "-gzip";
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maintains content hashes of all the files in a directory tree, which are
+ * used to construct fingerprinted file names (e.g., app.3f9a1c20b7.js for
+ * app.js). Because the name of a fingerprinted file changes whenever its
+ * content does, such files can be cached by browsers indefinitely. The
+ * hashes are recalculated when the watch service reports changes.
+ */
+public class AssetManifest {
+
+    private static Logger log = LoggerFactory.getLogger(AssetManifest.class);
+
+    public static final int HASH_LENGTH = 10;
+
+    private static final Pattern fingerprintPattern = Pattern.compile("^(.*[^/])\\.([0-9a-f]{" + HASH_LENGTH + "})(\\.[^./]+)?$");
+
+    private static final Map<Path, AssetManifest> manifests = new ConcurrentHashMap<>();
+
+    private final Path root;
+
+    // Relative paths, always using forward slashes, mapped to content hashes.
+    private final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+    private DirectoryWatcher watcher;
+
+    private final Consumer<Path> listener = this::update;
+
+    /**
+     * Creates a manifest of the given directory tree. Use forDirectory() to
+     * obtain a shared manifest that's updated when the files change.
+     */
+    public AssetManifest(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        scan(this.root);
+    }
+
+    /**
+     * Returns the manifest for the given directory, creating it if necessary.
+     */
+    public static AssetManifest forDirectory(File dir) {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+
+        return manifests.computeIfAbsent(root, r -> {
+            long started = System.currentTimeMillis();
+
+            AssetManifest manifest;
+            try {
+                manifest = new AssetManifest(r);
+            } catch (IOException e) {
+                log.error("Unable to build asset manifest for " + r, e);
+                return null;
+            }
+
+            if (log.isInfoEnabled()) {
+                log.info("Built asset manifest for " + r + " with " + manifest.hashes.size()
+                        + " file(s) in " + (System.currentTimeMillis() - started) + " ms");
+            }
+
+            try {
+                manifest.watcher = DirectoryWatcher.shared(r);
+                manifest.watcher.addListener(manifest.listener);
+            } catch (IOException e) {
+                log.warn("Unable to watch " + r + ", asset manifest will not be updated: " + e.getMessage());
+            }
+
+            return manifest;
+        });
+    }
+
+    /**
+     * Returns the fingerprinted version of the given relative path,
+     * or null if the file is not in the manifest.
+     */
+    public String fingerprint(String path) {
+        String hash = hashes.get(path);
+        if (hash == null) {
+            return null;
+        }
+
+        return fingerprint(path, hash);
+    }
+
+    /**
+     * Inserts the given hash into the file name, before the extension.
+     */
+    public static String fingerprint(String path, String hash) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            // No extension (or a hidden file).
+            return path + "." + hash;
+        }
+
+        return path.substring(0, dot) + "." + hash + path.substring(dot);
+    }
+
+    /**
+     * Converts a fingerprinted relative path back to the path of the actual
+     * file, but only if the fingerprint matches the file's current content.
+     *
+     * @return the path of the file, or null if the path is not fingerprinted or the fingerprint is stale
+     */
+    public String resolve(String fingerprintedPath) {
+        Matcher m = fingerprintPattern.matcher(fingerprintedPath);
+        if (!m.matches()) {
+            return null;
+        }
+
+        String path = stripFingerprint(m);
+        if (!m.group(2).equals(hashes.get(path))) {
+            return null;
+        }
+
+        return path;
+    }
+
+    /**
+     * Removes the fingerprint from the given relative path, without checking
+     * that it matches the content.
+     *
+     * @return the path of the file, or null if the path is not fingerprinted
+     */
+    public static String stripFingerprint(String fingerprintedPath) {
+        Matcher m = fingerprintPattern.matcher(fingerprintedPath);
+        if (!m.matches()) {
+            return null;
+        }
+
+        return stripFingerprint(m);
+    }
+
+    private static String stripFingerprint(Matcher m) {
+        return (m.group(3) != null) ? m.group(1) + m.group(3) : m.group(1);
+    }
+
+    /**
+     * Returns the hash of the given relative path, or null if the file is not in the manifest.
+     */
+    public String getHash(String path) {
+        return hashes.get(path);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Updates the manifest after a file or directory changed.
+     */
+    public void update(Path path) {
+        path = path.toAbsolutePath().normalize();
+        if (!path.startsWith(root)) {
+            return;
+        }
+
+        try {
+            // Remove first, so that files deleted since the last scan (e.g.,
+            // when the watcher overflows and asks for the root) don't linger.
+            if (path.equals(root)) {
+                hashes.clear();
+            } else {
+                String prefix = relativize(path);
+                hashes.keySet().removeIf(key -> key.equals(prefix) || key.startsWith(prefix + "/"));
+            }
+
+            if (Files.isDirectory(path)) {
+                scan(path);
+            } else if (Files.isRegularFile(path)) {
+                add(path);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to update asset manifest for " + path + ": " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        if (watcher != null) {
+            watcher.removeListener(listener);
+            watcher.release();
+            watcher = null;
+        }
+
+        manifests.remove(root, this);
+    }
+
+    /**
+     * Closes all the shared manifests, releasing their watchers. Invoked
+     * when the application shuts down.
+     */
+    public static void closeAll() {
+        for (AssetManifest manifest : manifests.values()) {
+            manifest.close();
+        }
+    }
+
+    private void scan(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    try {
+                        add(file);
+                    } catch (IOException e) {
+                        log.warn("Unable to hash " + file + ": " + e.getMessage());
+                    }
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void add(Path file) throws IOException {
+        String name = file.getFileName().toString();
+
+        // Compressed variants are never requested directly.
+        if (name.endsWith(GzipPrecompressor.SUFFIX) || name.endsWith(".br")) {
+            return;
+        }
+
+        hashes.put(relativize(file), hash(file));
+    }
+
+    private String relativize(Path path) {
+        String relative = root.relativize(path).toString();
+        return (File.separatorChar == '/') ? relative : relative.replace(File.separatorChar, '/');
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.acquire();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+
+        return toHash(md.digest());
+    }
+
+    /**
+     * Converts a digest into the (shortened) hash used in fingerprints.
+     */
+    static String toHash(byte[] digest) {
+        return TextUtil.toHex(digest).substring(0, HASH_LENGTH);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.TransactionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes a response body using non-blocking I/O (Servlet 3.1), which means
+ * that the request thread is released as soon as the response is ready,
+ * rather than when the client has received it. Data is written in chunks,
+ * whenever the container indicates that it can accept more. Writes that take
+ * longer than qlue.async.writeTimeout milliseconds are abandoned.
+ */
+public class AsyncResponseWriter implements WriteListener, AsyncListener {
+
+    private static Logger log = LoggerFactory.getLogger(AsyncResponseWriter.class);
+
+    private static final int CHUNK_SIZE = BufferPool.DEFAULT_BUFFER_SIZE;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream os;
+
+    private final DownloadUtil.Content content;
+
+    private long position;
+
+    private long remaining;
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private AsyncResponseWriter(AsyncContext asyncContext, ServletOutputStream os, DownloadUtil.Content content,
+                                long position, long count) {
+        this.asyncContext = asyncContext;
+        this.os = os;
+        this.content = content;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * Writes the given buffer asynchronously. The response headers,
+     * including Content-Length, must have been set already.
+     */
+    public static void write(TransactionContext context, ByteBuffer buffer) throws IOException {
+        start(context, (position, count, os) -> DownloadUtil.transfer(buffer, position, count, os), 0, buffer.remaining());
+    }
+
+    /**
+     * Starts writing a part of the content asynchronously. From this point on, the
+     * writer owns the content, and will close it once the response is complete.
+     */
+    static void start(TransactionContext context, DownloadUtil.Content content, long position, long count) throws IOException {
+        AsyncContext asyncContext = context.request.startAsync();
+
+        // Slow clients are the reason we're here, so the timeout is generous,
+        // but we don't want to hold on to clients that never read the response.
+        asyncContext.setTimeout(context.app.getAsyncWriteTimeout());
+
+        ServletOutputStream os = context.response.getOutputStream();
+        AsyncResponseWriter writer = new AsyncResponseWriter(asyncContext, os, content, position, count);
+        asyncContext.addListener(writer);
+        os.setWriteListener(writer);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        try {
+            while (os.isReady()) {
+                if (remaining == 0) {
+                    finish();
+                    return;
+                }
+
+                long n = Math.min(CHUNK_SIZE, remaining);
+                content.transfer(position, n, os);
+                position += n;
+                remaining -= n;
+            }
+        } catch (IOException | RuntimeException e) {
+            finish();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (log.isDebugEnabled()) {
+            log.debug("Asynchronous write failed", t);
+        }
+
+        finish();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        if (log.isDebugEnabled()) {
+            log.debug("Asynchronous write timed out with " + remaining + " byte(s) remaining");
+        }
+
+        finish();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        // The container may complete the transaction on its own (e.g.,
+        // after an error), in which case we still need to close the content.
+        release();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        finish();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private void finish() {
+        if (release()) {
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Closes the content, but only the first time it's invoked.
+     *
+     * @return true if the content was closed by this invocation
+     */
+    private boolean release() {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            content.close();
+        } catch (IOException e) {
+            log.warn("Failed to release response content", e);
+        }
+
+        return true;
+    }
+
+    boolean isFinished() {
+        return finished.get();
+    }
+}
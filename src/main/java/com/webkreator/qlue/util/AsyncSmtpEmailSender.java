@@ -4,8 +4,9 @@ import org.apache.commons.mail.Email;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AsyncSmtpEmailSender extends SmtpEmailSender implements Runnable {
 
@@ -13,45 +14,36 @@ public class AsyncSmtpEmailSender extends SmtpEmailSender implements Runnable {
 
     private SmtpEmailSender smtpEmailSender;
 
-    private int counter = 1;
-
-    private Queue<Email> queue = new LinkedList<Email>();
-
     private static final int BACKOFF_MILLISECONDS = 5000;
 
     private static final int QUEUE_LIMIT = 1000;
 
+    private AtomicInteger counter = new AtomicInteger(1);
+
+    // A blocking queue rather than a monitor, so that the sender
+    // doesn't pin its carrier thread when it runs in a virtual thread.
+    private BlockingQueue<Email> queue = new LinkedBlockingQueue<Email>(QUEUE_LIMIT);
+
     public AsyncSmtpEmailSender(SmtpEmailSender smtpEmailSender) {
         this.smtpEmailSender = smtpEmailSender;
     }
 
-    private synchronized Email getEmail() {
-        Email email = null;
-
+    private Email getEmail() {
         while (true) {
-            email = queue.poll();
-            if (email != null) {
-                return email;
-            }
-
             try {
-                wait();
+                return queue.take();
             } catch (InterruptedException e) {
                 // Do nothing.
             }
         }
     }
 
-    private synchronized String queueEmail(Email email) {
-        if (queue.size() >= QUEUE_LIMIT) {
+    private String queueEmail(Email email) {
+        if (!queue.offer(email)) {
             throw new RuntimeException("Unable to send email; queue full: " + queue.size());
         }
 
-        queue.add(email);
-
-        notify();
-
-        return "Queued " + counter++;
+        return "Queued " + counter.getAndIncrement();
     }
 
     @Override
@@ -0,0 +1,90 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simple pool of fixed-size I/O buffers, used to avoid allocating large
+ * buffers for every response. The buffers are array-backed, because they
+ * are eventually written to servlet output streams, which accept only arrays.
+ * The pool is bounded; buffers released to a full pool are discarded.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_MAX_POOLED = 64;
+
+    private static final BufferPool defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    private final ConcurrentLinkedDeque<ByteBuffer> buffers = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns the pool shared by the entire application.
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Returns a cleared buffer, either from the pool or newly allocated.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.pollFirst();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if ((buffer == null) || (buffer.capacity() != bufferSize)) {
+            return;
+        }
+
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        buffers.offerFirst(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One byte range from the Range request header (RFC 7233), resolved
+ * against the length of the representation. Both ends are inclusive.
+ */
+public class ByteRange {
+
+    /**
+     * The maximum number of ranges we're prepared to process in one request. Requests
+     * with more ranges are served in full, as are those whose ranges overlap after
+     * sorting, because such requests are more likely to be abusive than useful.
+     */
+    public static final int MAX_RANGES = 16;
+
+    private final long start;
+
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header for this range.
+     */
+    public String toContentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * Parses the value of the Range request header.
+     *
+     * @return null if the header is invalid or should otherwise be ignored, in which case
+     * the entire representation should be sent; an empty list if none of the ranges can be
+     * satisfied, which calls for a 416 response; or the list of ranges to send, in order
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            // We support only byte ranges.
+            return null;
+        }
+
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+
+        for (String spec : specs) {
+            spec = spec.trim();
+
+            int i = spec.indexOf('-');
+            if ((i == -1) || (spec.length() == 1)) {
+                return null;
+            }
+
+            long start, end;
+
+            try {
+                if (i == 0) {
+                    // Suffix range, e.g., "-500" for the last 500 bytes.
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength == 0) {
+                        continue;
+                    }
+
+                    start = Math.max(0, length - suffixLength);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, i));
+                    if (i == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(spec.substring(i + 1));
+                        if (end < start) {
+                            return null;
+                        }
+
+                        end = Math.min(end, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if ((start < 0) || (start >= length)) {
+                // Not satisfiable, but the other ranges might be.
+                continue;
+            }
+
+            ranges.add(new ByteRange(start, end));
+        }
+
+        if (ranges.size() > 1) {
+            List<ByteRange> sorted = new ArrayList<>(ranges);
+            sorted.sort((a, b) -> Long.compare(a.start, b.start));
+            for (int i = 1; i < sorted.size(); i++) {
+                if (sorted.get(i).start <= sorted.get(i - 1).end) {
+                    return null;
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(ranges);
+    }
+}
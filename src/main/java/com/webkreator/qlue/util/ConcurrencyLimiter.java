@@ -0,0 +1,255 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.exceptions.ServiceUnavailableException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests that a group of routes processes at the same
+ * time. Requests over the limit wait in a short queue for up to the configured
+ * time; those that don't fit into the queue, or don't get in before their time
+ * runs out, are rejected with a ServiceUnavailableException.
+ */
+public class ConcurrencyLimiter {
+
+    private final String name;
+
+    private final int maxQueued;
+
+    private final long maxWaitMillis;
+
+    private final long retryAfter;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    // The following fields are guarded by the lock.
+
+    private int limit;
+
+    private int inFlight;
+
+    private int queued;
+
+    private final LongAdder admitted = new LongAdder();
+
+    private final LongAdder delayed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param name the name of the group of routes that share this limiter
+     * @param limit maximum number of requests processed at the same time
+     * @param maxQueued maximum number of requests waiting for their turn
+     * @param maxWaitMillis maximum time a request can wait for its turn
+     * @param retryAfter the value of the Retry-After header sent with rejections, in seconds
+     */
+    public ConcurrencyLimiter(String name, int limit, int maxQueued, long maxWaitMillis, long retryAfter) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit");
+        }
+
+        this.name = name;
+        this.limit = limit;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Admits one request, waiting for its turn if necessary. The returned permit
+     * must be released when the request completes.
+     *
+     * @throws ServiceUnavailableException if the request can't be admitted
+     */
+    public Permit acquire() {
+        lock.lock();
+        try {
+            if (inFlight < limit) {
+                return admit();
+            }
+
+            if ((queued >= maxQueued) || (maxWaitMillis == 0)) {
+                throw reject();
+            }
+
+            queued++;
+            delayed.increment();
+
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while (inFlight >= limit) {
+                    if (nanos <= 0) {
+                        throw reject();
+                    }
+
+                    nanos = available.awaitNanos(nanos);
+                }
+
+                return admit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject();
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit admit() {
+        inFlight++;
+        admitted.increment();
+        return new Permit();
+    }
+
+    private ServiceUnavailableException reject() {
+        rejected.increment();
+
+        ServiceUnavailableException e = new ServiceUnavailableException("Concurrency limit reached: " + name);
+        e.setRetryAfter(retryAfter);
+        return e;
+    }
+
+    void release(long nanos) {
+        lock.lock();
+        try {
+            onRelease(nanos, inFlight);
+            inFlight--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Invoked, with the lock held, every time a request completes.
+     *
+     * @param nanos how long the request was processed for
+     * @param inFlight the number of requests in flight, including this one
+     */
+    protected void onRelease(long nanos, int inFlight) {
+    }
+
+    protected void lock() {
+        lock.lock();
+    }
+
+    protected void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Changes the limit. Must be invoked with the lock held.
+     */
+    protected void setLimit(int limit) {
+        int previous = this.limit;
+        this.limit = Math.max(1, limit);
+        if (this.limit > previous) {
+            available.signalAll();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests that were admitted, including those that had to wait.
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * Returns the number of requests that had to wait for their turn,
+     * whether they were eventually admitted or not.
+     */
+    public long getDelayed() {
+        return delayed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Represents one admitted request.
+     */
+    public class Permit {
+
+        private final long startNanos = System.nanoTime();
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Releases the permit. Only the first invocation has any effect.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a directory (optionally, an entire tree) for changes, and notifies
+ * the listener from a background daemon thread. Because editors and build
+ * tools often make several changes in quick succession, events are collected
+ * for a short period of time and the listener is invoked once per changed path.
+ * If the watch service loses events, the listener is invoked with the
+ * root directory, which means that anything could have changed. Several
+ * components can share one recursive watcher per directory; see shared().
+ * Shared watchers are reference counted, and closed when the last component
+ * releases them, or when the application invokes closeShared() on shutdown.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    private static final long SETTLE_MILLIS = 200;
+
+    private static final long MAX_SETTLE_MILLIS = 10 * SETTLE_MILLIS;
+
+    private static final Map<Path, DirectoryWatcher> sharedWatchers = new ConcurrentHashMap<>();
+
+    private final Path root;
+
+    private final boolean recursive;
+
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+
+    private final WatchService watchService;
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    // The number of components using a shared watcher; guarded by sharedWatchers.
+    private int references;
+
+    public DirectoryWatcher(Path root, boolean recursive, Consumer<Path> listener) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.recursive = recursive;
+        if (listener != null) {
+            listeners.add(listener);
+        }
+
+        watchService = this.root.getFileSystem().newWatchService();
+
+        if (recursive) {
+            registerTree(this.root);
+        } else {
+            register(this.root);
+        }
+
+        thread = new Thread(this::run, "qlue-watcher " + this.root);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the recursive watcher shared by all the components interested
+     * in the given directory tree, creating it if necessary. Every call must
+     * be matched by a call to release(), after removing the listeners.
+     */
+    public static DirectoryWatcher shared(Path root) throws IOException {
+        try {
+            return sharedWatchers.compute(root.toAbsolutePath().normalize(), (r, watcher) -> {
+                if (watcher == null) {
+                    try {
+                        watcher = new DirectoryWatcher(r, true, null);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                watcher.references++;
+                return watcher;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Releases a shared watcher obtained from shared(), closing
+     * it if no other component is using it.
+     */
+    public void release() {
+        sharedWatchers.computeIfPresent(root, (r, watcher) -> {
+            if ((watcher != this) || (--references > 0)) {
+                return watcher;
+            }
+
+            close();
+            return null;
+        });
+    }
+
+    /**
+     * Closes all shared watchers, no matter how many components are still
+     * using them. Invoked when the application shuts down, so that the
+     * watcher threads don't outlive it.
+     */
+    public static void closeShared() {
+        for (Path root : sharedWatchers.keySet()) {
+            DirectoryWatcher watcher = sharedWatchers.remove(root);
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+    }
+
+    public void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Path> listener) {
+        listeners.remove(listener);
+    }
+
+    private void register(Path dir) throws IOException {
+        dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    }
+
+    private void registerTree(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void run() {
+        while (!closed) {
+            Set<Path> changes = new LinkedHashSet<>();
+
+            try {
+                WatchKey key = watchService.take();
+                collect(key, changes);
+
+                // Wait for the changes to settle down, collecting
+                // any further events that arrive in the meantime. If
+                // the events keep coming, dispatch them anyway.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_SETTLE_MILLIS);
+                while (System.nanoTime() - deadline < 0) {
+                    key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+
+                    collect(key, changes);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (Path path : changes) {
+                for (Consumer<Path> listener : listeners) {
+                    try {
+                        listener.accept(path);
+                    } catch (Exception e) {
+                        log.error("Directory watcher listener failed on " + path, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changes) {
+        Path dir = (Path) key.watchable();
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changes.add(root);
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context());
+            changes.add(path);
+
+            // Start watching newly created directories.
+            if (recursive && (event.kind() == ENTRY_CREATE) && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    registerTree(path);
+                } catch (IOException e) {
+                    log.warn("Unable to watch directory " + path, e);
+                }
+            }
+        }
+
+        key.reset();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops watching for changes.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+
+        thread.interrupt();
+    }
+}
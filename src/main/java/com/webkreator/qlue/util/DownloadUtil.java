@@ -22,10 +22,19 @@ import com.webkreator.qlue.exceptions.QlueSecurityException;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This utility class can send a file from the filesystem, either inline or as
@@ -46,105 +55,402 @@ public class DownloadUtil {
 	public static void sendFile(TransactionContext context, File f, String contentType,
                                 String name, boolean isAttachment) throws Exception
     {
-		OutputStream os = null;
-		BufferedInputStream bis = null;
+		sendFile(context, f, contentType, name, isAttachment, null /* contentEncoding */);
+	}
+
+	/**
+	 * Sends file in HTTP response, with C-D header control. If the content encoding is
+	 * specified, the file is assumed to be already encoded (e.g., compressed) and is
+	 * sent as is. In that case, the content type should be provided, because it can't
+	 * be determined from the name of the (encoded) file.
+	 */
+	public static void sendFile(TransactionContext context, File f, String contentType,
+								String name, boolean isAttachment, String contentEncoding) throws Exception
+	{
+		sendFile(context, f, contentType, name, isAttachment, contentEncoding, -1 /* lastModified */);
+	}
+
+	/**
+	 * Sends file in HTTP response. This variant accepts the modification time of the file,
+	 * if the caller already knows it, to avoid another filesystem call; use -1 otherwise.
+	 */
+	public static void sendFile(TransactionContext context, File f, String contentType, String name,
+								boolean isAttachment, String contentEncoding, long lastModified) throws Exception
+	{
+		FileChannel channel = null;
 
 		try {
 			// If C-T was not provided, try to use file
 			// extension to select the correct value
 			if (contentType == null) {
-				int i = f.getName().lastIndexOf(".");
-				if (i != -1) {
-					String suffix = f.getName().substring(i + 1);
-					contentType = MimeTypes.getMimeType(suffix);
-				}
+				contentType = MimeTypes.getMimeTypeForFilename(f.getName());
 			}
 
-			// Set C-T, if we have it
-			if (contentType != null) {
-				context.response.setContentType(contentType);
+			setContentHeaders(context, contentType, contentEncoding, name, isAttachment);
+
+			// Open the file first, so that we detect missing files early and use the
+			// same file for the entire response, even if it's replaced in the meantime.
+			channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+
+			// Prepare data
+			long length = channel.size();
+			if (lastModified < 0) {
+				lastModified = f.lastModified();
 			}
 
-			// Send file name in C-D header
-			if (name != null) {
-				// Do not allow control characters in the name
-				StringBuilder sb = new StringBuilder();
-				CharacterIterator it = new StringCharacterIterator(name);
-				for (char c = it.first(); c != CharacterIterator.DONE; c = it.next()) {
-					if (c < 0x20) {
-						throw new QlueSecurityException("Invalid character in filename: " + c);
-					}
+			String eTag = constructETag(f, length, lastModified);
 
-					if ((c == '\\') || (c == '"')) {
-						sb.append('\\');
-						sb.append(c);
-					} else {
-						sb.append(c);
-					}
-				}
+			if (send(context, contentType, eTag, lastModified, length, new FileContent(channel))) {
+				// The file will be closed when the response is complete.
+				channel = null;
+			}
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			throw new NotFoundException();
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
 
-				String escapedName = sb.toString();
+	/**
+	 * Sends a file from the static file cache in HTTP response.
+	 */
+	public static void sendCachedFile(TransactionContext context, StaticFileCache.Entry entry,
+									  String contentEncoding) throws Exception
+	{
+		setContentHeaders(context, entry.getContentType(), contentEncoding, null /* name */, false /* isAttachment */);
+		send(context, entry.getContentType(), entry.getETag(), entry.getLastModified(), entry.getLength(), entry::transfer);
+	}
 
-				// Set name
-				if (isAttachment) {
-					context.response.setHeader("Content-Disposition", "attachment; filename=\"" + escapedName + "\"");
+	/**
+	 * Sends content held in memory in HTTP response, with the same handling
+	 * of conditional and range requests as for files.
+	 */
+	public static void sendContent(TransactionContext context, ByteBuffer content, String contentType,
+								   String contentEncoding, String eTag, long lastModified) throws Exception
+	{
+		setContentHeaders(context, contentType, contentEncoding, null /* name */, false /* isAttachment */);
+		send(context, contentType, eTag, lastModified, content.remaining(),
+				(position, count, os) -> transfer(content, position, count, os));
+	}
+
+	private static void setContentHeaders(TransactionContext context, String contentType, String contentEncoding,
+										  String name, boolean isAttachment)
+	{
+		// Set C-T, if we have it
+		if (contentType != null) {
+			context.response.setContentType(contentType);
+		}
+
+		if (contentEncoding != null) {
+			context.response.setHeader("Content-Encoding", contentEncoding);
+		}
+
+		// Send file name in C-D header
+		if (name != null) {
+			// Do not allow control characters in the name
+			StringBuilder sb = new StringBuilder();
+			CharacterIterator it = new StringCharacterIterator(name);
+			for (char c = it.first(); c != CharacterIterator.DONE; c = it.next()) {
+				if (c < 0x20) {
+					throw new QlueSecurityException("Invalid character in filename: " + c);
+				}
+
+				if ((c == '\\') || (c == '"')) {
+					sb.append('\\');
+					sb.append(c);
 				} else {
-					context.response.setHeader("Content-Disposition", "inline; filename=\"" + escapedName + "\"");
+					sb.append(c);
 				}
 			}
 
-			// Prepare data
-			String filename = f.getAbsolutePath();
-			long length = f.length();
-			long lastModified = f.lastModified();
-			String eTag = constructHash(filename + "_" + length + "_" + lastModified);
-
-			// Check If-None-Match to determine if we can respond with 304
-			String ifNoneMatch = context.request.getHeader("If-None-Match");
-			if ((ifNoneMatch != null) && ((ifNoneMatch.compareTo("*") == 0) || (ifNoneMatch.compareTo(eTag) == 0))) {
-				context.response.setHeader("ETag", eTag);
-				context.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
-				return;
+			String escapedName = sb.toString();
+
+			// Set name
+			if (isAttachment) {
+				context.response.setHeader("Content-Disposition", "attachment; filename=\"" + escapedName + "\"");
+			} else {
+				context.response.setHeader("Content-Disposition", "inline; filename=\"" + escapedName + "\"");
 			}
+		}
+	}
 
-			// Check If-Modified-Since to determine if we can respond with 304
-			long ifModifiedSince = context.request.getDateHeader("If-Modified-Since");
-			if ((ifNoneMatch == null) && ((ifModifiedSince != -1) && (ifModifiedSince + 1000 > lastModified))) {
-				context.response.setHeader("ETag", eTag);
-				context.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
-				return;
+	/**
+	 * Sends the content, or the requested parts of it, taking into
+	 * account the conditional request headers.
+	 *
+	 * @return true if the content is being sent asynchronously, in which
+	 * case it will be closed once the response is complete
+	 */
+	private static boolean send(TransactionContext context, String contentType, String eTag, long lastModified,
+							 long length, Content content) throws IOException
+	{
+		// Check If-None-Match to determine if we can respond with 304
+		String ifNoneMatch = context.request.getHeader("If-None-Match");
+		if ((ifNoneMatch != null) && ((ifNoneMatch.compareTo("*") == 0) || (ifNoneMatch.compareTo(eTag) == 0))) {
+			context.response.setHeader("ETag", eTag);
+			context.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+			return false;
+		}
+
+		// Check If-Modified-Since to determine if we can respond with 304
+		long ifModifiedSince = context.request.getDateHeader("If-Modified-Since");
+		if ((ifNoneMatch == null) && ((ifModifiedSince != -1) && (ifModifiedSince + 1000 > lastModified))) {
+			context.response.setHeader("ETag", eTag);
+			context.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+			return false;
+		}
+
+		context.response.setDateHeader("Last-Modified", lastModified);
+		context.response.setHeader("ETag", eTag);
+		context.response.setHeader("Accept-Ranges", "bytes");
+
+		// Check if only parts of the file were requested
+		List<ByteRange> ranges = null;
+		if (context.isGetOrHead() && isIfRangeSatisfied(context, eTag, lastModified)) {
+			ranges = ByteRange.parse(context.request.getHeader("Range"), length);
+		}
+
+		if ((ranges != null) && ranges.isEmpty()) {
+			context.response.setHeader("Content-Range", "bytes */" + length);
+			context.response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return false;
+		}
+
+		if ((ranges != null) && (ranges.size() == 1)) {
+			ByteRange range = ranges.get(0);
+			context.response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			context.response.setHeader("Content-Range", range.toContentRange(length));
+			context.response.setContentLengthLong(range.getLength());
+
+			return sendBody(context, content, range.getStart(), range.getLength());
+		}
+
+		if (ranges != null) {
+			sendMultipleRanges(context, content, length, contentType, ranges);
+			return false;
+		}
+
+		// Set size
+		context.response.setContentLengthLong(length);
+
+		return sendBody(context, content, 0, length);
+	}
+
+	/**
+	 * Sends a part of the content in the response body, asynchronously if allowed.
+	 *
+	 * @return true if the content is being sent asynchronously
+	 */
+	private static boolean sendBody(TransactionContext context, Content content, long position, long count) throws IOException {
+		if ((context.app != null) && "GET".equals(context.request.getMethod())
+				&& context.app.isAsyncOutputAllowed(context, false, count))
+		{
+			AsyncResponseWriter.start(context, content, position, count);
+			return true;
+		}
+
+		try (OutputStream os = context.response.getOutputStream()) {
+			content.transfer(position, count, os);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks the If-Range request header, which makes the Range header conditional on the
+	 * representation not having changed. Only strong validators can match: the ETag,
+	 * or the exact modification time.
+	 *
+	 * @return true if there is no If-Range header, or if it matches the file
+	 */
+	private static boolean isIfRangeSatisfied(TransactionContext context, String eTag, long lastModified) {
+		String ifRange = context.request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+
+		ifRange = ifRange.trim();
+		if (ifRange.equals(eTag)) {
+			return true;
+		}
+
+		// Weak and other entity tags.
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return false;
+		}
+
+		try {
+			long date = context.request.getDateHeader("If-Range");
+			return (date != -1) && (date / 1000 == lastModified / 1000);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sends several ranges of a file in a multipart/byteranges response.
+	 */
+	private static void sendMultipleRanges(TransactionContext context, Content content, long length,
+										   String contentType, List<ByteRange> ranges) throws IOException
+	{
+		String boundary = generateBoundary();
+
+		// Prepare the part headers first, so that we can determine the length of the response.
+		List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+		long responseLength = 0;
+		for (ByteRange range : ranges) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("\r\n--").append(boundary).append("\r\n");
+			if (contentType != null) {
+				sb.append("Content-Type: ").append(contentType).append("\r\n");
 			}
+			sb.append("Content-Range: ").append(range.toContentRange(length)).append("\r\n");
+			sb.append("\r\n");
+
+			byte[] b = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+			partHeaders.add(b);
+			responseLength += b.length + range.getLength();
+		}
 
-			// Set size
-			if (length > Integer.MAX_VALUE) {
-				throw new RuntimeException("File longer than Integer.MAX_VALUE");
+		byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		responseLength += trailer.length;
 
+		context.response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		context.response.setContentType("multipart/byteranges; boundary=" + boundary);
+		context.response.setContentLengthLong(responseLength);
+
+		try (OutputStream os = context.response.getOutputStream()) {
+			for (int i = 0; i < ranges.size(); i++) {
+				ByteRange range = ranges.get(i);
+				os.write(partHeaders.get(i));
+				content.transfer(range.getStart(), range.getLength(), os);
 			}
 
-			context.response.setContentLength((int) length);
+			os.write(trailer);
+		}
+	}
 
-			context.response.setDateHeader("Last-Modified", lastModified);
-			context.response.setHeader("ETag", eTag);
+	private static String generateBoundary() {
+		byte[] b = new byte[16];
+		ThreadLocalRandom.current().nextBytes(b);
+		return "QLUE_" + TextUtil.toHex(b);
+	}
+
+	/**
+	 * Copies a part of a file to the given output stream. If the stream is also a
+	 * channel (which is the case with some containers), the data is transferred
+	 * directly, allowing the operating system to avoid copying it. Otherwise (or
+	 * if the channel stops accepting data), the data is copied in large chunks,
+	 * using buffers from the default pool.
+	 */
+	public static void transfer(FileChannel channel, long position, long count, OutputStream os) throws IOException {
+		if (os instanceof WritableByteChannel) {
+			WritableByteChannel target = (WritableByteChannel) os;
+
+			while (count > 0) {
+				long n = channel.transferTo(position, count, target);
+				if (n <= 0) {
+					// Check that the file hasn't been truncated.
+					if (position >= channel.size()) {
+						throw new EOFException("Unexpected end of file");
+					}
+
+					// The target isn't accepting data (e.g., it's non-blocking), in
+					// which case retrying would only spin. Fall back to the stream.
+					break;
+				}
 
-			// Send data
-			os = context.response.getOutputStream();
-			bis = new BufferedInputStream(new FileInputStream(f));
-			byte b[] = new byte[1024];
+				position += n;
+				count -= n;
+			}
 
-			while (bis.read(b) > 0) {
-				os.write(b);
+			if (count == 0) {
+				return;
+			}
+		}
+
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer buffer = pool.acquire();
+
+		try {
+			byte[] b = buffer.array();
+
+			while (count > 0) {
+				buffer.clear();
+				if (count < buffer.capacity()) {
+					buffer.limit((int) count);
+				}
+
+				int n = channel.read(buffer, position);
+				if (n < 0) {
+					throw new EOFException("Unexpected end of file");
+				}
+
+				// Write only what we've read.
+				os.write(b, buffer.arrayOffset(), n);
+
+				position += n;
+				count -= n;
 			}
-		} catch (FileNotFoundException e) {
-			throw new NotFoundException();
 		} finally {
-			if (os != null) {
-				os.close();
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Copies a part of a buffer (relative to its current position) to the given output
+	 * stream. The buffer itself is not modified, which means that it can be shared
+	 * among threads.
+	 */
+	public static void transfer(ByteBuffer content, long position, long count, OutputStream os) throws IOException {
+		ByteBuffer b = content.duplicate();
+		b.position(content.position() + (int) position);
+		b.limit(b.position() + (int) count);
+
+		if (os instanceof WritableByteChannel) {
+			WritableByteChannel target = (WritableByteChannel) os;
+			while (b.hasRemaining()) {
+				if (target.write(b) <= 0) {
+					// Don't spin; write the rest through the stream.
+					break;
+				}
 			}
 
-			if (bis != null) {
-				bis.close();
+			if (!b.hasRemaining()) {
+				return;
 			}
 		}
+
+		if (b.hasArray() && !b.isReadOnly()) {
+			os.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			return;
+		}
+
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer buffer = pool.acquire();
+
+		try {
+			while (b.hasRemaining()) {
+				buffer.clear();
+				int n = Math.min(buffer.remaining(), b.remaining());
+				ByteBuffer slice = b.slice();
+				slice.limit(n);
+				buffer.put(slice);
+				b.position(b.position() + n);
+				os.write(buffer.array(), buffer.arrayOffset(), n);
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Constructs the ETag of a file from its path, length and modification time.
+	 */
+	static String constructETag(File f, long length, long lastModified) {
+		return constructHash(f.getAbsolutePath() + "_" + length + "_" + lastModified);
 	}
 
 	private static String constructHash(String input) {
@@ -155,4 +461,35 @@ public class DownloadUtil {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Source of the data sent by this class.
+	 */
+	interface Content extends Closeable {
+
+		void transfer(long position, long count, OutputStream os) throws IOException;
+
+		@Override
+		default void close() throws IOException {
+		}
+	}
+
+	private static class FileContent implements Content {
+
+		private final FileChannel channel;
+
+		FileContent(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void transfer(long position, long count, OutputStream os) throws IOException {
+			DownloadUtil.transfer(channel, position, count, os);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
 }
@@ -0,0 +1,228 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps error pages in memory, ready to be sent, so that error responses
+ * are as cheap as possible. For each status code, the page comes from the
+ * file error-[status].html or catch-all.html, in that order, or is generated
+ * if neither file exists. Pages that exist as files are loaded upfront; the
+ * others on first use. All pages are discarded if any of the files change.
+ */
+public class ErrorPageCache {
+
+    private static Logger log = LoggerFactory.getLogger(ErrorPageCache.class);
+
+    private static final Pattern errorPagePattern = Pattern.compile("^error-([0-9]{3})\\.html$");
+
+    private static final Map<String, ErrorPageCache> caches = new ConcurrentHashMap<>();
+
+    // Used when there's no error page directory.
+    private static final ErrorPageCache defaultCache = new ErrorPageCache(null);
+
+    private final File dir;
+
+    private final Map<Integer, byte[]> pages = new ConcurrentHashMap<>();
+
+    private DirectoryWatcher watcher;
+
+    private final Consumer<Path> listener = path -> invalidate();
+
+    /**
+     * Creates a cache for the given directory, but does not watch it
+     * for changes. Use forDirectory() to obtain a shared cache that's
+     * kept up to date.
+     */
+    public ErrorPageCache(File dir) {
+        this.dir = dir;
+        preload();
+    }
+
+    /**
+     * Returns the cache for the given directory, creating it if necessary.
+     *
+     * @param location error page directory; may be null
+     */
+    public static ErrorPageCache forDirectory(String location) {
+        if (location == null) {
+            return defaultCache;
+        }
+
+        return caches.computeIfAbsent(location, l -> {
+            ErrorPageCache cache = new ErrorPageCache(new File(l));
+            if (cache.dir.isDirectory()) {
+                try {
+                    cache.watcher = DirectoryWatcher.shared(cache.dir.toPath());
+                    cache.watcher.addListener(cache.listener);
+                } catch (IOException e) {
+                    log.warn("Unable to watch " + l + ", error pages will not be reloaded: " + e.getMessage());
+                }
+            }
+
+            return cache;
+        });
+    }
+
+    /**
+     * Returns the page for the given status code, encoded using UTF-8.
+     */
+    public byte[] getPage(int statusCode) {
+        if ((statusCode < 100) || (statusCode > 999)) {
+            // Don't cache what the clients or applications
+            // might send, but we don't expect to see.
+            return load(statusCode);
+        }
+
+        return pages.computeIfAbsent(statusCode, this::load);
+    }
+
+    /**
+     * Stops listening for changes and removes this cache from the registry.
+     */
+    public void close() {
+        if (watcher != null) {
+            watcher.removeListener(listener);
+            watcher.release();
+            watcher = null;
+        }
+
+        caches.values().remove(this);
+    }
+
+    /**
+     * Closes all the shared caches, releasing their watchers. Invoked
+     * when the application shuts down.
+     */
+    public static void closeAll() {
+        for (ErrorPageCache cache : caches.values()) {
+            cache.close();
+        }
+    }
+
+    /**
+     * Discards all pages, reloading those that exist as files.
+     */
+    public void invalidate() {
+        pages.clear();
+        preload();
+    }
+
+    private void preload() {
+        if (dir == null) {
+            return;
+        }
+
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+
+        for (String name : names) {
+            Matcher m = errorPagePattern.matcher(name);
+            if (m.matches()) {
+                int statusCode = Integer.parseInt(m.group(1));
+                pages.put(statusCode, load(statusCode));
+            }
+        }
+    }
+
+    private byte[] load(int statusCode) {
+        if (dir != null) {
+            File f = findFile(dir, statusCode);
+            if (f != null) {
+                byte[] page = readFile(f);
+                if (page != null) {
+                    return page;
+                }
+            }
+        }
+
+        return renderDefaultPage(statusCode);
+    }
+
+    /**
+     * Returns the error page file for the given status code, falling
+     * back to catch-all.html, or null if neither is readable.
+     */
+    static File findFile(File dir, int statusCode) {
+        File f = new File(dir, "error-" + statusCode + ".html");
+        if (Files.isReadable(f.toPath())) {
+            return f;
+        }
+
+        f = new File(dir, "catch-all.html");
+        if (Files.isReadable(f.toPath())) {
+            return f;
+        }
+
+        return null;
+    }
+
+    private static byte[] readFile(File f) {
+        Path path = f.toPath();
+        if (!Files.isReadable(path)) {
+            return null;
+        }
+
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            log.warn("Unable to read error page " + f + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Renders the page used when there are no error page files.
+     */
+    static byte[] renderDefaultPage(int statusCode) {
+        String message = WebUtil.getStatusMessage(statusCode);
+        if (message == null) {
+            message = "Unknown Status Code (" + statusCode + ")";
+        }
+
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.print("<!DOCTYPE html>\n<html><head><title>");
+        out.print(HtmlEncoder.html(message));
+        out.println("</title></head>");
+        out.print("<body><h1>");
+        out.print(HtmlEncoder.html(message));
+        out.println("</h1>");
+        WebUtil.writePagePaddingforInternetExplorer(out);
+        out.println("</body></html>");
+        out.flush();
+
+        return sw.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Remembers what we've learned about the files in a directory tree (whether
+ * they exist, whether they're directories, their sizes and modification times),
+ * so that serving a static file doesn't require several filesystem calls
+ * every time, which is expensive on network filesystems. Entries are
+ * invalidated when the watch service reports a change; because such events
+ * are not available on all filesystems, entries also expire after a while.
+ * Because watching a large tree isn't free, the cache is disabled by default.
+ */
+public class FileMetadataCache {
+
+    private static Logger log = LoggerFactory.getLogger(FileMetadataCache.class);
+
+    public static final long DEFAULT_TTL_MILLIS = 0;
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final Map<Path, FileMetadataCache> caches = new ConcurrentHashMap<>();
+
+    private final Path root;
+
+    private final long ttlNanos;
+
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private DirectoryWatcher watcher;
+
+    private final Consumer<Path> listener = this::invalidate;
+
+    /**
+     * Creates a cache for the given directory, but does not start watching
+     * it. Use forDirectory() to obtain a shared cache that's kept up to date.
+     *
+     * @param root directory whose files will be cached
+     * @param ttlMillis how long entries remain valid if no changes are reported; 0 disables caching
+     * @param maxEntries maximum number of entries
+     */
+    public FileMetadataCache(Path root, long ttlMillis, int maxEntries) {
+        this.root = root.toAbsolutePath().normalize();
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cache for the given directory, creating it if necessary. The
+     * parameters are used only when the cache is created. If the directory can't
+     * be watched, the entries are refreshed only when they expire.
+     */
+    public static FileMetadataCache forDirectory(File dir, long ttlMillis, int maxEntries) {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+
+        return caches.computeIfAbsent(root, r -> {
+            FileMetadataCache cache = new FileMetadataCache(r, ttlMillis, maxEntries);
+            try {
+                cache.watcher = DirectoryWatcher.shared(r);
+                cache.watcher.addListener(cache.listener);
+            } catch (IOException e) {
+                log.warn("Unable to watch " + r + ", relying on expiry of file metadata: " + e.getMessage());
+            }
+
+            return cache;
+        });
+    }
+
+    /**
+     * Returns the metadata of the given file, which may or may not exist.
+     */
+    public Entry get(File file) {
+        String key = file.toPath().toAbsolutePath().normalize().toString();
+
+        Entry entry = entries.get(key);
+        long now = System.nanoTime();
+        if ((entry != null) && (now - entry.checkedAt < ttlNanos)) {
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+
+        entry = new Entry(file, now);
+        if (ttlNanos == 0) {
+            return entry;
+        }
+
+        if (entries.size() >= maxEntries) {
+            evict();
+        }
+
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Returns the first of the given files that exists in the given directory,
+     * or null if there are none. The result is cached with the directory.
+     */
+    public File findIndex(File dir, String... names) {
+        Entry entry = get(dir);
+        if (!entry.isDirectory()) {
+            return null;
+        }
+
+        IndexLookup lookup = entry.indexLookup;
+        if ((lookup != null) && Arrays.equals(lookup.names, names)) {
+            return lookup.index;
+        }
+
+        File index = null;
+        for (String name : names) {
+            File f = new File(dir, name);
+            if (get(f).exists()) {
+                index = f;
+                break;
+            }
+        }
+
+        entry.indexLookup = new IndexLookup(names, index);
+        return index;
+    }
+
+    /**
+     * Removes the entries for the given path, for everything underneath
+     * it, and for its parent directory, whose index might have changed.
+     */
+    public void invalidate(Path path) {
+        String prefix = path.toAbsolutePath().normalize().toString();
+
+        entries.keySet().removeIf(key -> key.startsWith(prefix)
+                && ((key.length() == prefix.length()) || (key.charAt(prefix.length()) == File.separatorChar)));
+
+        Path parent = path.toAbsolutePath().normalize().getParent();
+        if (parent != null) {
+            entries.remove(parent.toString());
+        }
+    }
+
+    /**
+     * Makes room for new entries by removing roughly a tenth of the existing
+     * ones. There's no particular order in which the entries are removed.
+     */
+    private void evict() {
+        int target = maxEntries - Math.max(1, maxEntries / 10);
+
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext() && (entries.size() > target)) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Stops listening for changes and removes this cache from the registry.
+     */
+    public void close() {
+        if (watcher != null) {
+            watcher.removeListener(listener);
+            watcher.release();
+            watcher = null;
+        }
+
+        caches.remove(root, this);
+        clear();
+    }
+
+    /**
+     * Closes all the shared caches, releasing their watchers. Invoked
+     * when the application shuts down.
+     */
+    public static void closeAll() {
+        for (FileMetadataCache cache : caches.values()) {
+            cache.close();
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * What we know about one file.
+     */
+    public static class Entry {
+
+        private final boolean exists;
+
+        private final boolean directory;
+
+        private final long length;
+
+        private final long lastModified;
+
+        private final long checkedAt;
+
+        private volatile IndexLookup indexLookup;
+
+        Entry(File file, long checkedAt) {
+            // A single call to lastModified() tells us if the file exists.
+            this.lastModified = file.lastModified();
+            this.exists = (lastModified != 0) || file.exists();
+            this.directory = exists && file.isDirectory();
+            this.length = (exists && !directory) ? file.length() : 0;
+            this.checkedAt = checkedAt;
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public boolean isFile() {
+            return exists && !directory;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private static class IndexLookup {
+
+        final String[] names;
+
+        final File index;
+
+        IndexLookup(String[] names, File index) {
+            this.names = names;
+            this.index = index;
+        }
+    }
+}
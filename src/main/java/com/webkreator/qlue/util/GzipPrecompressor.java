@@ -0,0 +1,169 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates gzip-compressed variants (with the .gz suffix) of static files whose
+ * content is compressible, so that they can be served without having to
+ * compress them on every request. Variants are created only when they're
+ * missing or older than the original, and only if they're actually smaller.
+ * The work is done in a background thread.
+ */
+public class GzipPrecompressor {
+
+    private static Logger log = LoggerFactory.getLogger(GzipPrecompressor.class);
+
+    public static final String SUFFIX = ".gz";
+
+    // Variants are written to temporary files in the same directory (so that they
+    // can be moved into place atomically), and those must never be served.
+    static final String TEMP_PREFIX = ".qlue-";
+
+    // Small files don't benefit from compression.
+    private static final long MIN_SIZE = 256;
+
+    // Directories that are being processed, or have been processed.
+    private static final Set<Path> processed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts processing the given directory tree in a background thread. Each
+     * directory is processed only once, no matter how many times this method
+     * is invoked.
+     */
+    public static void startInBackground(File root) {
+        Path path = root.toPath().toAbsolutePath().normalize();
+        if (!processed.add(path)) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                int count = compressTree(path);
+                log.info("Created " + count + " gzip variant(s) in " + path);
+            } catch (IOException e) {
+                log.error("Failed to create gzip variants in " + path, e);
+            }
+        }, "qlue-precompress " + path);
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Creates gzip variants of the compressible files in the given directory tree.
+     *
+     * @return the number of variants created
+     */
+    public static int compressTree(Path root) throws IOException {
+        final int[] count = new int[1];
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                try {
+                    if (compressFile(file, attrs)) {
+                        count[0]++;
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to create gzip variant of " + file + ": " + e.getMessage());
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return count[0];
+    }
+
+    private static boolean compressFile(Path file, BasicFileAttributes attrs) throws IOException {
+        String name = file.getFileName().toString();
+
+        if (!attrs.isRegularFile() || (attrs.size() < MIN_SIZE)) {
+            return false;
+        }
+
+        // Skip existing variants and files that are already compressed.
+        if (name.endsWith(SUFFIX) || name.endsWith(".br") || name.endsWith(".svgz")) {
+            return false;
+        }
+
+        if (!MimeTypes.isCompressible(MimeTypes.getMimeTypeForFilename(name))) {
+            return false;
+        }
+
+        Path variant = file.resolveSibling(name + SUFFIX);
+        FileTime lastModified = attrs.lastModifiedTime();
+        if (Files.exists(variant) && (Files.getLastModifiedTime(variant).compareTo(lastModified) >= 0)) {
+            return false;
+        }
+
+        // Compress into a temporary file first, then move it into place, so
+        // that a partially written variant is never served.
+        Path tmp = Files.createTempFile(file.getParent(), TEMP_PREFIX, SUFFIX);
+        try {
+            try (OutputStream os = new BestGZIPOutputStream(Files.newOutputStream(tmp))) {
+                Files.copy(file, os);
+            }
+
+            if (Files.size(tmp) >= attrs.size()) {
+                return false;
+            }
+
+            // The variant is considered fresh if it's not older than the original.
+            Files.setLastModifiedTime(tmp, lastModified);
+            Files.move(tmp, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Checks if the given file name belongs to a variant that's still being written.
+     */
+    public static boolean isTemporaryFile(String name) {
+        return name.startsWith(TEMP_PREFIX);
+    }
+
+    private static class BestGZIPOutputStream extends GZIPOutputStream {
+
+        BestGZIPOutputStream(OutputStream out) throws IOException {
+            super(out, BufferPool.DEFAULT_BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with power-of-two buckets: bucket i counts durations
+ * shorter than 2^i microseconds (but not shorter than the previous bucket's
+ * limit), and the last bucket counts everything else. The precision is low,
+ * but recording is cheap and safe to do from many threads at the same time.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of buckets. The last bucket starts at 2^24 microseconds, or about 17 seconds.
+     */
+    public static final int BUCKETS = 26;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        counts[bucketFor(nanos)].increment();
+        totalNanos.add(nanos);
+    }
+
+    static int bucketFor(long nanos) {
+        long micros = nanos / 1000;
+        if (micros <= 0) {
+            return 0;
+        }
+
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    /**
+     * Returns a copy of the bucket counts.
+     */
+    public long[] getCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+        }
+
+        return copy;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Estimates the given percentile (e.g., 0.99) from bucket counts, returning
+     * the upper limit of the bucket in which it falls, in microseconds. Returns
+     * -1 if there are no values, and Long.MAX_VALUE if the percentile falls
+     * into the last bucket.
+     */
+    public static long getPercentileMicros(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+
+        if (total == 0) {
+            return -1;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if ((seen >= threshold) && (seen > 0)) {
+                return i < BUCKETS - 1 ? 1L << i : Long.MAX_VALUE;
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+}
@@ -2,8 +2,11 @@ package com.webkreator.qlue.util;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Maps file suffixes to MIME types, using a hard-coded map (borrowed from the
@@ -15,6 +18,19 @@ public class MimeTypes {
 
 	private static MimeTypes _instance;
 
+	private static final Set<String> compressibleTypes = new HashSet<>(Arrays.asList(
+			"application/javascript",
+			"application/x-javascript",
+			"application/json",
+			"application/xml",
+			"application/wasm",
+			"application/x-font-ttf",
+			"application/vnd.ms-fontobject",
+			"font/ttf",
+			"font/otf",
+			"image/x-icon",
+			"image/bmp"));
+
 	private MimeTypes() {
 	}
 
@@ -71,4 +87,46 @@ public class MimeTypes {
 	public static String getMimeType(String suffix) {
 		return instance().mimeTypes.get(suffix);
 	}
+
+	/**
+	 * Returns MIME type for the given filename, based on its suffix.
+	 *
+	 * @param filename
+	 * @return MIME type, or null if the suffix could not be mapped.
+	 */
+	public static String getMimeTypeForFilename(String filename) {
+		int i = filename.lastIndexOf('.');
+		if (i == -1) {
+			return null;
+		}
+
+		return getMimeType(filename.substring(i + 1));
+	}
+
+	/**
+	 * Determines if content of the given MIME type is likely to benefit from
+	 * compression. Typically, those are text formats; most binary formats
+	 * (e.g., images and archives) are already compressed.
+	 *
+	 * @param mimeType
+	 * @return true if the content should be compressed.
+	 */
+	public static boolean isCompressible(String mimeType) {
+		if (mimeType == null) {
+			return false;
+		}
+
+		// Remove parameters, if any.
+		int i = mimeType.indexOf(';');
+		if (i != -1) {
+			mimeType = mimeType.substring(0, i);
+		}
+
+		mimeType = mimeType.trim().toLowerCase();
+
+		return mimeType.startsWith("text/")
+				|| mimeType.endsWith("+xml")
+				|| mimeType.endsWith("+json")
+				|| compressibleTypes.contains(mimeType);
+	}
 }
@@ -0,0 +1,154 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * Measures how much time a transaction spends in each processing phase. Each
+ * call to mark() attributes the time elapsed since the previous mark to the
+ * given phase, so that the only cost is one System.nanoTime() call per phase.
+ * Instances are not thread-safe, but a transaction is only ever processed by
+ * one thread at a time. Other threads may only ask for the current phase.
+ */
+public class PhaseTimer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Phase {
+
+        ROUTE("route"),
+
+        ACCESS("access"),
+
+        BIND("bind"),
+
+        VALIDATE("validate"),
+
+        SERVICE("service"),
+
+        RENDER("render"),
+
+        COMMIT("commit");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        /**
+         * Returns the name used for the phase in the Server-Timing header.
+         */
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long startNanos;
+
+    private long lastNanos;
+
+    private final long[] nanos = new long[PHASES.length];
+
+    // Bit mask of the phases that have been marked at least once.
+    private int marked;
+
+    // The ordinal of the most recently marked phase, or -1. Read by
+    // other threads (e.g., the slow request watchdog), hence volatile.
+    private volatile int lastMarked = -1;
+
+    public PhaseTimer() {
+        startNanos = lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Attributes the time elapsed since the previous mark
+     * (or since the timer was created) to the given phase.
+     */
+    public void mark(Phase phase) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - lastNanos;
+        marked |= 1 << phase.ordinal();
+        lastMarked = phase.ordinal();
+        lastNanos = now;
+    }
+
+    public boolean isMarked(Phase phase) {
+        return (marked & (1 << phase.ordinal())) != 0;
+    }
+
+    /**
+     * Returns the phase that is (presumably) in progress, which is
+     * the one following the most recently marked phase. Returns null
+     * if all the phases have been completed.
+     */
+    public Phase getCurrentPhase() {
+        int next = lastMarked + 1;
+        return next < PHASES.length ? PHASES[next] : null;
+    }
+
+    /**
+     * Returns the total time attributed to the given phase.
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * Returns the value of System.nanoTime() at the moment the timer was created.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Returns the time elapsed since the timer was created.
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Formats the phases marked so far, along with the total
+     * elapsed time, as a Server-Timing response header value.
+     */
+    public String toServerTiming() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Phase phase : PHASES) {
+            if (isMarked(phase)) {
+                appendMetric(sb, phase.getMetricName(), nanos[phase.ordinal()]);
+            }
+        }
+
+        appendMetric(sb, "total", getElapsedNanos());
+
+        return sb.toString();
+    }
+
+    private static void appendMetric(StringBuilder sb, String name, long nanos) {
+        if (sb.length() != 0) {
+            sb.append(", ");
+        }
+
+        sb.append(name).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / 1000000.0));
+    }
+}
@@ -7,18 +7,34 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.file.Files;
 
 public class QlueErrorPageServlet extends HttpServlet {
 
     private static final String ERROR_PAGES_LOCATION = "/WEB-INF/error-pages/";
 
+    private ErrorPageCache errorPages;
+
+    @Override
+    public void init() throws ServletException {
+        errorPages = ErrorPageCache.forDirectory(getServletContext().getRealPath(ERROR_PAGES_LOCATION));
+    }
+
     @Override
     protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        String errorPagesLocation = request.getServletContext().getRealPath(ERROR_PAGES_LOCATION);
-        outputErrorPage(request, response, errorPagesLocation);
+        outputErrorPage(request, response, errorPages);
     }
 
     public static void outputErrorPage(HttpServletRequest request, HttpServletResponse response, String errorPagesLocation) throws IOException {
+        outputErrorPage(request, response, ErrorPageCache.forDirectory(errorPagesLocation));
+    }
+
+    /**
+     * Sends the error page that corresponds to the response status code.
+     * Pages are pre-rendered, which keeps error responses cheap even
+     * when there are many of them.
+     */
+    public static void outputErrorPage(HttpServletRequest request, HttpServletResponse response, ErrorPageCache errorPages) throws IOException {
         int statusCode = response.getStatus();
 
         // Servlet error properties of interest:
@@ -32,59 +48,26 @@ public class QlueErrorPageServlet extends HttpServlet {
             statusCode = 500;
         }
 
-        File errorFile = findErrorPage(request, statusCode, errorPagesLocation);
-        if (errorFile != null) {
-            response.setContentType(View.CONTENT_TYPE_TEXT_HTML_UTF8);
-            sendFile(response, errorFile);
-        } else {
-            // No file, send the hardcoded error response.
-            String message = WebUtil.getStatusMessage(statusCode);
-            if (message == null) {
-                message = "Unknown Status Code (" + statusCode + ")";
-            }
-
-            response.setContentType("text/html; charset=utf-8");
-            PrintWriter out = response.getWriter();
-            out.print("<!DOCTYPE html>\n<html><head><title>");
-            out.print(HtmlEncoder.html(message));
-            out.println("</title></head>");
-            out.print("<body><h1>");
-            out.print(HtmlEncoder.html(message));
-            out.println("</h1>");
-            WebUtil.writePagePaddingforInternetExplorer(out);
-            out.println("</body></html>");
-        }
+        WebUtil.writeContent(response, View.CONTENT_TYPE_TEXT_HTML_UTF8, errorPages.getPage(statusCode));
     }
 
+    /**
+     * @deprecated Error pages are now served from an {@link ErrorPageCache}.
+     */
+    @Deprecated
     protected static File findErrorPage(HttpServletRequest request, int statusCode, String errorPagesLocation) {
         if (errorPagesLocation == null) {
             return null;
         }
 
-        File errorPagesHome = new File(errorPagesLocation);
-        File f = null;
-
-        f = new File(errorPagesHome, "error-" + statusCode + ".html");
-        if (f.exists() && f.canRead()) {
-            return f;
-        }
-
-        f = new File(errorPagesHome, "catch-all.html");
-        if (f.exists() && f.canRead()) {
-            return f;
-        }
-
-        return null;
+        return ErrorPageCache.findFile(new File(errorPagesLocation), statusCode);
     }
 
+    /**
+     * @deprecated Error pages are now served from an {@link ErrorPageCache}.
+     */
+    @Deprecated
     protected static void sendFile(HttpServletResponse response, File file) throws IOException {
-        PrintWriter out = response.getWriter();
-        try (InputStream in = new FileInputStream(file);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                out.write(line);
-            }
-        }
+        WebUtil.writeContent(response, View.CONTENT_TYPE_TEXT_HTML_UTF8, Files.readAllBytes(file.toPath()));
     }
 }
@@ -0,0 +1,247 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.exceptions.TooManyRequestsException;
+
+import javax.servlet.http.HttpSession;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate at which individual clients can make requests. Each client
+ * has a token bucket, implemented using the generic cell rate algorithm (GCRA),
+ * which needs only one number per client: the theoretical arrival time of the
+ * next request. Updates are lock-free, and the clients are spread across many
+ * shards, so there are no contention hotspots.
+ *
+ * The memory use is bounded. Clients whose buckets are full again are
+ * indistinguishable from new clients, so they're removed when a shard reaches
+ * its capacity; if that's not enough, arbitrary clients are removed, which
+ * resets their limits.
+ */
+public class RateLimiter {
+
+    public enum KeyType {
+
+        /**
+         * Clients are identified by their (effective) IP addresses.
+         */
+        IP,
+
+        /**
+         * Clients are identified by their sessions, or by their IP
+         * addresses if they don't have a session.
+         */
+        SESSION,
+
+        /**
+         * Clients are identified by the page, which invokes acquire() itself.
+         */
+        PAGE
+    }
+
+    private static final int SHARDS = 64;
+
+    private final String name;
+
+    private final KeyType keyType;
+
+    private final long emissionIntervalNanos;
+
+    private final long toleranceNanos;
+
+    private final int maxKeysPerShard;
+
+    private final ConcurrentHashMap<String, AtomicLong>[] shards;
+
+    private final LongAdder allowed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param name the name of the group of routes that share this limiter
+     * @param requests the number of requests allowed per period
+     * @param periodMillis the length of the period
+     * @param burst the number of requests a client can make at once
+     * @param keyType how to identify clients
+     * @param maxKeys the maximum number of clients to keep track of
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public RateLimiter(String name, int requests, long periodMillis, int burst, KeyType keyType, int maxKeys) {
+        if ((requests < 1) || (periodMillis < 1) || (burst < 1) || (maxKeys < 1)) {
+            throw new IllegalArgumentException("Invalid rate limit parameters");
+        }
+
+        this.name = name;
+        this.keyType = keyType;
+        this.emissionIntervalNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis) / requests;
+        this.toleranceNanos = emissionIntervalNanos * burst;
+        this.maxKeysPerShard = Math.max(1, maxKeys / SHARDS);
+
+        shards = new ConcurrentHashMap[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Checks if the client making the request in the given transaction is allowed
+     * to proceed. Does nothing when the page is responsible for identifying clients.
+     *
+     * @throws TooManyRequestsException if the client is making requests too fast
+     */
+    public void check(TransactionContext context) {
+        String key = getKey(context);
+        if (key != null) {
+            acquire(key);
+        }
+    }
+
+    /**
+     * Records one request made by the client with the given key.
+     *
+     * @throws TooManyRequestsException if the client is making requests too fast
+     */
+    public void acquire(String key) {
+        long waitNanos = tryAcquire(key, System.nanoTime());
+        if (waitNanos > 0) {
+            TooManyRequestsException e = new TooManyRequestsException("Rate limit reached: " + name);
+            e.setRetryAfter(Math.max(1, (waitNanos + 999999999L) / 1000000000L));
+            throw e;
+        }
+    }
+
+    /**
+     * Records one request made by the client with the given key, at the given time.
+     *
+     * @return 0 if the request is allowed, or how long (in nanoseconds)
+     * the client needs to wait until its next request is allowed
+     */
+    long tryAcquire(String key, long now) {
+        ConcurrentHashMap<String, AtomicLong> shard = shards[shardFor(key)];
+
+        AtomicLong tat = shard.get(key);
+        if (tat == null) {
+            if (shard.size() >= maxKeysPerShard) {
+                makeRoom(shard, now);
+            }
+
+            tat = shard.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + emissionIntervalNanos;
+
+            long excess = next - now - toleranceNanos;
+            if (excess > 0) {
+                rejected.increment();
+                return excess;
+            }
+
+            if (tat.compareAndSet(current, next)) {
+                allowed.increment();
+                return 0;
+            }
+        }
+    }
+
+    private static int shardFor(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (SHARDS - 1);
+    }
+
+    private void makeRoom(ConcurrentHashMap<String, AtomicLong> shard, long now) {
+        // First, remove the clients whose buckets are full again.
+        int before = shard.size();
+        shard.values().removeIf(tat -> tat.get() <= now);
+
+        // If that's not enough, remove an eighth of the shard, so that we
+        // don't have to go through the same process on the next request.
+        if (shard.size() >= maxKeysPerShard) {
+            int count = Math.max(1, maxKeysPerShard / 8);
+            Iterator<AtomicLong> it = shard.values().iterator();
+            while (it.hasNext() && (count-- > 0)) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        evicted.add(Math.max(0, before - shard.size()));
+    }
+
+    /**
+     * Determines the key that identifies the client making the request.
+     */
+    public String getKey(TransactionContext context) {
+        switch (keyType) {
+            case IP:
+                return context.getEffectiveRemoteAddr();
+            case SESSION:
+                HttpSession session = context.getRequest().getSession(false);
+                if (session != null) {
+                    return session.getId();
+                }
+
+                return context.getEffectiveRemoteAddr();
+            default:
+                return null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public KeyType getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * Returns the number of clients currently tracked.
+     */
+    public int getKeyCount() {
+        int count = 0;
+        for (ConcurrentHashMap<String, AtomicLong> shard : shards) {
+            count += shard.size();
+        }
+
+        return count;
+    }
+
+    public long getAllowed() {
+        return allowed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns the number of clients removed to keep the memory use bounded.
+     */
+    public long getEvicted() {
+        return evicted.sum();
+    }
+}
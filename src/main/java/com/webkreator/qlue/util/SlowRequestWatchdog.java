@@ -0,0 +1,280 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.router.Route;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps track of the requests in flight and, once a request runs for longer
+ * than the threshold, periodically samples the stack of the thread processing
+ * it. When the request completes (or the maximum number of samples is reached),
+ * the samples are reported as a compact summary in the collapsed-stack format
+ * used by flame graph tools, with the most frequent stacks first.
+ *
+ * While no request is slow, the overhead is one set insertion and removal per
+ * request, plus a periodic scan of the requests in flight. Reports are made
+ * from the watchdog thread, never from the threads processing requests.
+ */
+public class SlowRequestWatchdog {
+
+    private static final int MAX_STACK_DEPTH = 64;
+
+    // How many distinct stacks to include in a report.
+    private static final int MAX_REPORTED_STACKS = 10;
+
+    private static final Logger log = LoggerFactory.getLogger(SlowRequestWatchdog.class);
+
+    private final long thresholdNanos;
+
+    private final long sampleIntervalMillis;
+
+    private final int maxSamples;
+
+    private final BiConsumer<TransactionContext, String> reporter;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final Set<InFlight> inFlight = ConcurrentHashMap.newKeySet();
+
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * @param thresholdMillis how long a request can run before its stack is sampled
+     * @param sampleIntervalMillis how often to sample the stacks of slow requests
+     * @param maxSamples the number of samples after which a request is reported, even if it's still running
+     * @param reporter receives the transaction and the report
+     */
+    public SlowRequestWatchdog(long thresholdMillis, long sampleIntervalMillis, int maxSamples,
+                               BiConsumer<TransactionContext, String> reporter)
+    {
+        if ((thresholdMillis < 1) || (sampleIntervalMillis < 1) || (maxSamples < 1)) {
+            throw new IllegalArgumentException("Invalid watchdog parameters");
+        }
+
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampleIntervalMillis = sampleIntervalMillis;
+        this.maxSamples = maxSamples;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Starts the background thread that samples slow requests.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "qlue-slow-request-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(this::sample, sampleIntervalMillis, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling. Reports that are already queued are still made.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Starts tracking the given transaction, which is being processed by the current thread.
+     */
+    public InFlight track(TransactionContext context) {
+        InFlight request = new InFlight(Thread.currentThread(), context);
+        inFlight.add(request);
+        return request;
+    }
+
+    /**
+     * Stops tracking a transaction, reporting it if it was slow.
+     */
+    public void untrack(InFlight request) {
+        inFlight.remove(request);
+
+        if (request.samples.get() == 0) {
+            return;
+        }
+
+        request.endNanos = System.nanoTime();
+
+        // Reporting may involve sending email, which we don't want
+        // to do in the thread that's processing requests.
+        ScheduledExecutorService e = executor;
+        if (e != null) {
+            try {
+                e.execute(() -> report(request, false));
+                return;
+            } catch (RejectedExecutionException ree) {
+                // The watchdog has been stopped in the meantime.
+            }
+        }
+
+        report(request, false);
+    }
+
+    /**
+     * Samples the stacks of the requests that are over the threshold.
+     */
+    void sample() {
+        try {
+            long now = System.nanoTime();
+
+            for (InFlight request : inFlight) {
+                if ((now - request.startNanos < thresholdNanos) || request.reported.get()) {
+                    continue;
+                }
+
+                StackTraceElement[] stack = getStackTrace(request.thread);
+                if (stack.length != 0) {
+                    request.stacks.merge(collapse(stack), 1, Integer::sum);
+                }
+
+                if (request.samples.incrementAndGet() >= maxSamples) {
+                    report(request, true);
+                }
+            }
+        } catch (Throwable t) {
+            // Never let an exception stop the sampling.
+            log.warn("Slow request sampling failed", t);
+        }
+    }
+
+    private StackTraceElement[] getStackTrace(Thread thread) {
+        // ThreadMXBean doesn't know about virtual threads, in which
+        // case we ask the thread for its stack trace directly.
+        ThreadInfo info = threadMXBean.getThreadInfo(thread.getId(), MAX_STACK_DEPTH);
+        if (info != null) {
+            return info.getStackTrace();
+        }
+
+        return thread.getStackTrace();
+    }
+
+    /**
+     * Converts a stack trace into a line of frames, separated
+     * by semicolons, starting with the outermost frame.
+     */
+    static String collapse(StackTraceElement[] stack) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = Math.min(stack.length, MAX_STACK_DEPTH) - 1; i >= 0; i--) {
+            if (sb.length() != 0) {
+                sb.append(';');
+            }
+
+            sb.append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+        }
+
+        return sb.toString();
+    }
+
+    private void report(InFlight request, boolean stillRunning) {
+        if (!request.reported.compareAndSet(false, true)) {
+            return;
+        }
+
+        TransactionContext context = request.context;
+        Route route = context.getRoute();
+        PhaseTimer.Phase phase = context.getPhaseTimer().getCurrentPhase();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Slow request: txId=").append(context.getTxId());
+        sb.append(" uri=").append(context.getRequestUri());
+        sb.append(" route=").append(route != null ? route.getDefinition() : "-");
+        sb.append(" phase=").append(phase != null ? phase.getMetricName() : "-");
+        long endNanos = stillRunning ? System.nanoTime() : request.endNanos;
+        sb.append(" elapsed=").append(TimeUnit.NANOSECONDS.toMillis(endNanos - request.startNanos)).append("ms");
+        sb.append(" samples=").append(request.samples.get());
+        if (stillRunning) {
+            sb.append(" (still running)");
+        }
+
+        List<Map.Entry<String, Integer>> stacks = new ArrayList<>(request.stacks.entrySet());
+        stacks.sort((a, b) -> b.getValue() - a.getValue());
+
+        for (int i = 0; (i < stacks.size()) && (i < MAX_REPORTED_STACKS); i++) {
+            sb.append('\n').append(stacks.get(i).getKey()).append(' ').append(stacks.get(i).getValue());
+        }
+
+        try {
+            reporter.accept(context, sb.toString());
+        } catch (Exception e) {
+            log.warn("Failed to report slow request", e);
+        }
+    }
+
+    /**
+     * Returns the number of requests currently tracked.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Represents one tracked transaction.
+     */
+    public static final class InFlight {
+
+        private final Thread thread;
+
+        private final TransactionContext context;
+
+        private final long startNanos = System.nanoTime();
+
+        // Set when the request completes.
+        private volatile long endNanos;
+
+        // Written only by the sampling thread.
+        private final Map<String, Integer> stacks = new ConcurrentHashMap<>();
+
+        private final AtomicInteger samples = new AtomicInteger();
+
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        private InFlight(Thread thread, TransactionContext context) {
+            this.thread = thread;
+            this.context = context;
+        }
+    }
+}
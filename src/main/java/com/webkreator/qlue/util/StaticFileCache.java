@@ -0,0 +1,394 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the contents of small static files in memory, along with the response
+ * headers that describe them, so that frequently requested files can be sent
+ * without touching the filesystem. The cache is bounded by the total size of
+ * the cached files, evicting the least recently used files first. Entries are
+ * invalidated when the files change, which is detected by watching the root
+ * directory; that's why there is only one cache per directory.
+ *
+ * Hits don't take any locks: they only record the time of access, which makes
+ * the eviction order approximate. Changes to the cache are serialised.
+ */
+public class StaticFileCache {
+
+    private static Logger log = LoggerFactory.getLogger(StaticFileCache.class);
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 256 * 1024;
+
+    private static final Map<Path, StaticFileCache> caches = new ConcurrentHashMap<>();
+
+    private final Path root;
+
+    private final long maxSize;
+
+    private final long maxFileSize;
+
+    private final boolean offHeap;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Guarded by this.
+    private long size;
+
+    // Incremented on every invalidation, so that we can tell if an entry
+    // we loaded has been invalidated before we had a chance to add it.
+    // Guarded by this.
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private DirectoryWatcher watcher;
+
+    private final Consumer<Path> listener = this::invalidate;
+
+    /**
+     * Creates a cache for the given directory, but does not start
+     * watching it. Use forDirectory() to obtain a shared cache that's
+     * kept up to date.
+     *
+     * @param root directory whose files will be cached
+     * @param maxSize maximum total size of cached files, in bytes
+     * @param maxFileSize maximum size of an individual file, in bytes; larger files are not cached
+     * @param offHeap whether to keep file contents in direct buffers, outside of the heap
+     */
+    public StaticFileCache(Path root, long maxSize, long maxFileSize, boolean offHeap) {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxSize = maxSize;
+        this.maxFileSize = Math.min(maxFileSize, maxSize);
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Returns the cache for the given directory, creating it if necessary. The
+     * parameters are used only when the cache is created; if the directory can't
+     * be watched for changes, null is returned, because we can't cache without
+     * knowing when to invalidate.
+     */
+    public static StaticFileCache forDirectory(File dir, long maxSize, long maxFileSize, boolean offHeap) {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+
+        return caches.computeIfAbsent(root, r -> {
+            StaticFileCache cache = new StaticFileCache(r, maxSize, maxFileSize, offHeap);
+            try {
+                cache.watcher = DirectoryWatcher.shared(r);
+                cache.watcher.addListener(cache.listener);
+            } catch (IOException e) {
+                log.warn("Unable to watch " + r + ", static file caching disabled: " + e.getMessage());
+                return null;
+            }
+
+            return cache;
+        });
+    }
+
+    /**
+     * Returns the cached entry for the given file, reading the file if
+     * necessary. Returns null if the file is not suitable for caching (e.g.,
+     * because it's too large), in which case it should be sent directly.
+     *
+     * @param file the file to send
+     * @param contentType content type, or null to determine it from the file name
+     */
+    public Entry get(File file, String contentType) throws IOException {
+        String key = file.toPath().toAbsolutePath().normalize().toString();
+
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.lastAccess = System.nanoTime();
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+
+        entry = load(file, contentType);
+        if (entry == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            // If the file changed while we were reading it, the
+            // entry may be stale; send it, but don't cache it.
+            if (generation != loadGeneration) {
+                return entry;
+            }
+
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.getLength();
+            }
+
+            size += entry.getLength();
+
+            if (size > maxSize) {
+                evict();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Removes the least recently used entries, making room for roughly a tenth
+     * of the maximum size, so that we don't have to do this on every miss.
+     */
+    private void evict() {
+        long target = maxSize - (maxSize / 10);
+
+        // Sort a snapshot of the access times, which may change while we sort.
+        List<Candidate> candidates = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry> me : entries.entrySet()) {
+            candidates.add(new Candidate(me.getKey(), me.getValue()));
+        }
+
+        candidates.sort((a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+
+        for (Candidate c : candidates) {
+            if (size <= target) {
+                break;
+            }
+
+            if (entries.remove(c.key, c.entry)) {
+                size -= c.entry.getLength();
+                evictions.increment();
+            }
+        }
+    }
+
+    private static class Candidate {
+
+        final String key;
+
+        final Entry entry;
+
+        final long lastAccess;
+
+        Candidate(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+    }
+
+    Entry load(File file, String contentType) throws IOException {
+        // Record the modification time before reading; if the file changes
+        // after that, the watcher will invalidate the entry.
+        long lastModified = file.lastModified();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > maxFileSize) {
+                return null;
+            }
+
+            ByteBuffer content = offHeap ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) {
+                    // The file was truncated while we were reading it.
+                    return null;
+                }
+            }
+
+            content.flip();
+
+            if (contentType == null) {
+                contentType = MimeTypes.getMimeTypeForFilename(file.getName());
+            }
+
+            return new Entry(file, content.asReadOnlyBuffer(), contentType,
+                    DownloadUtil.constructETag(file, length, lastModified), lastModified);
+        }
+    }
+
+    /**
+     * Removes the entries for the given file or, if it's a directory,
+     * for all the files it contains.
+     */
+    public synchronized void invalidate(Path path) {
+        String prefix = path.toAbsolutePath().normalize().toString();
+        generation++;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> me = it.next();
+            String key = me.getKey();
+            if (key.startsWith(prefix) && ((key.length() == prefix.length()) || (key.charAt(prefix.length()) == File.separatorChar))) {
+                it.remove();
+                size -= me.getValue().getLength();
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidated static file cache: " + path);
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Stops listening for changes and removes this cache from the registry.
+     */
+    public void close() {
+        if (watcher != null) {
+            watcher.removeListener(listener);
+            watcher.release();
+            watcher = null;
+        }
+
+        caches.remove(root, this);
+        clear();
+    }
+
+    /**
+     * Closes all the shared caches, releasing their watchers. Invoked
+     * when the application shuts down.
+     */
+    public static void closeAll() {
+        for (StaticFileCache cache : caches.values()) {
+            cache.close();
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the ratio of requests served from the cache, between 0 and 1.
+     */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the total size of the cached files, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * One cached file, with everything needed to send it.
+     */
+    public static class Entry {
+
+        private final File file;
+
+        private final ByteBuffer content;
+
+        private final String contentType;
+
+        private final String eTag;
+
+        private final long lastModified;
+
+        // When the entry was last used; written without synchronisation by all hits.
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(File file, ByteBuffer content, String contentType, String eTag, long lastModified) {
+            this.file = file;
+            this.content = content;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return content.capacity();
+        }
+
+        /**
+         * Writes a part of the file to the given output stream.
+         */
+        public void transfer(long position, long count, OutputStream os) throws IOException {
+            DownloadUtil.transfer(content, position, count, os);
+        }
+    }
+}
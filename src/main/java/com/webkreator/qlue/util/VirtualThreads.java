@@ -0,0 +1,86 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads, which are available from Java 21 onwards. We
+ * use reflection so that the framework can still be built and run on
+ * earlier versions, in which case isSupported() returns false.
+ */
+public class VirtualThreads {
+
+    private static final Method ofVirtual;
+
+    private static final Method name;
+
+    private static final Method factory;
+
+    static {
+        Method m1 = null, m2 = null, m3 = null;
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            m1 = Thread.class.getMethod("ofVirtual");
+            m2 = builderClass.getMethod("name", String.class, long.class);
+            m3 = builderClass.getMethod("factory");
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // Not supported on this platform.
+        }
+
+        ofVirtual = m1;
+        name = m2;
+        factory = m3;
+    }
+
+    /**
+     * Returns true if virtual threads are available.
+     */
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Creates a factory for virtual threads whose names consist
+     * of the given prefix and a counter.
+     */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Qlue: Virtual threads are not supported by this JVM");
+        }
+
+        try {
+            Object builder = ofVirtual.invoke(null);
+            builder = name.invoke(builder, prefix, 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Qlue: Failed to create virtual thread factory", e);
+        }
+    }
+
+    /**
+     * Creates an executor that runs each task in a new virtual thread. There
+     * is no pooling, because virtual threads are cheap to create.
+     */
+    public static Executor newExecutor(String prefix) {
+        ThreadFactory threadFactory = newThreadFactory(prefix);
+        return task -> threadFactory.newThread(task).start();
+    }
+}
@@ -19,10 +19,14 @@ package com.webkreator.qlue.util;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.view.View;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class contains various utility methods useful in web applications.
@@ -67,6 +71,50 @@ public class WebUtil {
         return sb.toString();
     }
 
+    /**
+     * Checks if the given content coding is acceptable according to the
+     * supplied Accept-Encoding request header. Codings with a zero quality
+     * value are not acceptable; the wildcard is taken into account.
+     *
+     * @param acceptEncoding header value; may be null
+     * @param coding content coding, e.g., "gzip"
+     * @return true if the coding is acceptable
+     */
+    public static boolean acceptsEncoding(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        Boolean wildcard = null;
+
+        for (String item : acceptEncoding.split(",")) {
+            String[] params = item.split(";");
+            String name = params[0].trim();
+
+            boolean acceptable = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        acceptable = Double.parseDouble(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        acceptable = false;
+                    }
+                }
+            }
+
+            if (name.equalsIgnoreCase(coding)) {
+                return acceptable;
+            }
+
+            if (name.equals("*")) {
+                wildcard = acceptable;
+            }
+        }
+
+        return (wildcard != null) && wildcard;
+    }
+
     /**
      * Internet will not display the output of non-200 pages that are too small.
      * Thus, we have to pad output in order to break over the limit. This method
@@ -96,8 +144,17 @@ public class WebUtil {
 
     public static void writeMessage(TransactionContext context, String title,
                                     String message) throws IOException {
-        context.response.setContentType(View.CONTENT_TYPE_TEXT_HTML_UTF8);
-        PrintWriter out = context.response.getWriter();
+        writeContent(context.response, View.CONTENT_TYPE_TEXT_HTML_UTF8, renderMessage(title, message));
+    }
+
+    /**
+     * Renders a simple HTML page with the given title and (optional) message.
+     *
+     * @return page content, encoded using UTF-8
+     */
+    public static byte[] renderMessage(String title, String message) {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
         out.print("<html><head><title>");
         out.print(HtmlEncoder.html(title));
         out.println("</title></head>");
@@ -111,6 +168,30 @@ public class WebUtil {
         }
         WebUtil.writePagePaddingforInternetExplorer(out);
         out.println("</body></html>");
+        out.flush();
+
+        return sw.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends pre-rendered content in the response body, with a Content-Length header.
+     * The content type is expected to specify UTF-8 as the character encoding.
+     */
+    public static void writeContent(HttpServletResponse response, String contentType, byte[] content) throws IOException {
+        response.setContentType(contentType);
+
+        ServletOutputStream os;
+        try {
+            os = response.getOutputStream();
+        } catch (IllegalStateException e) {
+            // Someone has already used the writer, which means that we
+            // can't send raw bytes; it's also too late for Content-Length.
+            response.getWriter().write(new String(content, StandardCharsets.UTF_8));
+            return;
+        }
+
+        response.setContentLength(content.length);
+        os.write(content);
     }
 
     public static String getStatusMessage(int status) {
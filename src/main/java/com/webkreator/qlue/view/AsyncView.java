@@ -0,0 +1,107 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.exceptions.ServiceUnavailableException;
+
+/**
+ * A view that will become available later, for example once a call to a
+ * backend service completes. Pages return it from service() (or one of the
+ * onGet(), onPost(), etc. methods) to release the container thread while
+ * they wait: when the container supports asynchronous processing, the
+ * framework starts an AsyncContext and completes the transaction (rendering,
+ * commit, cleanup, and exception handling) when the stage completes.
+ * Otherwise, the request thread simply waits for the view. Either way, views
+ * that aren't available within qlue.async.pageTimeout milliseconds result
+ * in a 503 response.
+ */
+public class AsyncView implements View {
+
+	private final CompletionStage<? extends View> stage;
+
+	public AsyncView(CompletionStage<? extends View> stage) {
+		if (stage == null) {
+			throw new IllegalArgumentException("stage");
+		}
+
+		this.stage = stage;
+	}
+
+	public static AsyncView of(CompletionStage<? extends View> stage) {
+		return new AsyncView(stage);
+	}
+
+	public CompletionStage<? extends View> getStage() {
+		return stage;
+	}
+
+	/**
+	 * Waits for the stage to complete and returns its view. If the stage
+	 * completes exceptionally, the original exception is rethrown.
+	 *
+	 * @param timeoutMillis how long to wait; 0 or less to wait indefinitely
+	 * @throws ServiceUnavailableException if the view isn't available in time
+	 */
+	public View await(long timeoutMillis) throws Exception {
+		try {
+			if (timeoutMillis <= 0) {
+				return stage.toCompletableFuture().get();
+			}
+
+			return stage.toCompletableFuture().get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		} catch (TimeoutException e) {
+			throw new ServiceUnavailableException("Timed out waiting for the view");
+		}
+	}
+
+	/**
+	 * Retrieves the exception a stage completed with, removing
+	 * the wrappers added by the concurrency classes.
+	 */
+	public static Exception unwrap(Throwable t) {
+		while (((t instanceof CompletionException) || (t instanceof ExecutionException)) && (t.getCause() != null)) {
+			t = t.getCause();
+		}
+
+		if (t instanceof Exception) {
+			return (Exception) t;
+		}
+
+		return new RuntimeException(t);
+	}
+
+	/**
+	 * Renders the view in the current thread, waiting for it if necessary.
+	 */
+	@Override
+	public void render(TransactionContext tx, Page page) throws Exception {
+		View view = await(tx.app.getAsyncPageTimeout());
+		if (view != null) {
+			tx.app.renderView(view, tx, page);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.util.AssetBundle;
+import com.webkreator.qlue.util.DownloadUtil;
+
+/**
+ * This view sends an asset bundle, either as is or compressed.
+ */
+public class BundleView implements View {
+
+	private AssetBundle bundle;
+
+	private boolean gzip;
+
+	/**
+	 * Creates a view that will send the provided bundle.
+	 *
+	 * @param bundle
+	 * @param gzip whether to send the compressed content
+	 */
+	public BundleView(AssetBundle bundle, boolean gzip) {
+		this.bundle = bundle;
+		this.gzip = gzip && (bundle.getGzipContent() != null);
+	}
+
+	public AssetBundle getBundle() {
+		return bundle;
+	}
+
+	@Override
+	public void render(TransactionContext context, Page page) throws Exception {
+		if (gzip) {
+			DownloadUtil.sendContent(context, bundle.getGzipContent(), bundle.getContentType(), "gzip",
+					bundle.getGzipETag(), bundle.getLastModified());
+		} else {
+			DownloadUtil.sendContent(context, bundle.getContent(), bundle.getContentType(), null,
+					bundle.getETag(), bundle.getLastModified());
+		}
+	}
+}
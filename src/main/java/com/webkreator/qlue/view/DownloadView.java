@@ -21,6 +21,7 @@ import java.io.File;
 import com.webkreator.qlue.Page;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.util.DownloadUtil;
+import com.webkreator.qlue.util.StaticFileCache;
 
 /**
  * This view implementation will download a file.
@@ -29,6 +30,14 @@ public class DownloadView implements View {
 
 	private File file;
 
+	private String contentType;
+
+	private String contentEncoding;
+
+	private StaticFileCache cache;
+
+	private long lastModified = -1;
+
 	/**
 	 * Creates a view that will send the provided file when rendered.
 	 * 
@@ -38,11 +47,56 @@ public class DownloadView implements View {
 		this.file = file;
 	}
 
+	/**
+	 * Creates a view that will send the provided file, which is already encoded
+	 * using the given content encoding (e.g., gzip), when rendered.
+	 *
+	 * @param file
+	 * @param contentType content type of the original (not encoded) file
+	 * @param contentEncoding content encoding, or null if the file is not encoded
+	 */
+	public DownloadView(File file, String contentType, String contentEncoding) {
+		this.file = file;
+		this.contentType = contentType;
+		this.contentEncoding = contentEncoding;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * Sets the modification time of the file, if it's already known,
+	 * so that it doesn't have to be determined again.
+	 */
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Configures the cache to send the file from, if possible.
+	 */
+	public void setCache(StaticFileCache cache) {
+		this.cache = cache;
+	}
+
 	/**
 	 * Sends file content in response body.
 	 */
 	@Override
 	public void render(TransactionContext context, Page page) throws Exception {
-		DownloadUtil.sendFile(context, file);
+		if (cache != null) {
+			StaticFileCache.Entry entry = cache.get(file, contentType);
+			if (entry != null) {
+				DownloadUtil.sendCachedFile(context, entry, contentEncoding);
+				return;
+			}
+		}
+
+		DownloadUtil.sendFile(context, file, contentType, null /* name */, false /* isAttachment */, contentEncoding, lastModified);
 	}
 }
@@ -20,12 +20,18 @@ import com.webkreator.qlue.Page;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.util.WebUtil;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * This view will return with a custom response status code and error message,
  * not unlike the default error response of the Apache web server.
  */
 public class StatusCodeView implements View {
 
+	// Pages with the stock messages, rendered once per status code.
+	private static final Map<Integer, byte[]> stockPages = new ConcurrentHashMap<>();
+
 	private int statusCode;
 
 	private String title;
@@ -62,21 +68,38 @@ public class StatusCodeView implements View {
 		this.title = title;
 	}
 
+	public int getStatusCode() {
+		return statusCode;
+	}
+
 	@Override
 	public void render(TransactionContext context, Page page) throws Exception {
 		context.response.setStatus(statusCode);
 
 		if ((statusCode != View.STATUS_204_NO_CONTENT) && (statusCode != View.STATUS_204_NO_CONTENT)){
+			if ((title == null) && (message == null)) {
+				byte[] content = stockPages.computeIfAbsent(statusCode,
+						s -> WebUtil.renderMessage(getStockTitle(s), null));
+				WebUtil.writeContent(context.response, View.CONTENT_TYPE_TEXT_HTML_UTF8, content);
+				return;
+			}
+
 			String myTitle = title;
 
 			if (myTitle == null) {
-				myTitle = WebUtil.getStatusMessage(statusCode);
-				if (myTitle == null) {
-					myTitle = "Unknown Status Code";
-				}
+				myTitle = getStockTitle(statusCode);
 			}
 
 			WebUtil.writeMessage(context, myTitle, message);
 		}
 	}
+
+	private static String getStockTitle(int statusCode) {
+		String title = WebUtil.getStatusMessage(statusCode);
+		if (title == null) {
+			title = "Unknown Status Code";
+		}
+
+		return title;
+	}
 }
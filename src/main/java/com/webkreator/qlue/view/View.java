@@ -55,6 +55,8 @@ public interface View {
 
     int STATUS_500_INTERNAL_SERVER_ERROR = 500;
 
+    int STATUS_503_SERVICE_UNAVAILABLE = 503;
+
     /**
      * This method is invoked by the framework to render page output.
      *
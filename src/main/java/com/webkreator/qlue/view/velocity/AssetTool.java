@@ -0,0 +1,66 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view.velocity;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.router.QlueRouteManager;
+
+/**
+ * This tool constructs URLs of static assets from within Velocity
+ * templates, for example: $_assets.url("/static/app.js") or
+ * $_assets.bundle("site.css").
+ */
+public class AssetTool implements QlueVelocityTool {
+
+    private String name;
+
+    private Page page;
+
+    public AssetTool(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setPage(Page page) {
+        this.page = page;
+    }
+
+    /**
+     * Returns the fingerprinted URL of the given static file, if
+     * available, or the same URL if it isn't.
+     */
+    public String url(String url) {
+        QlueRouteManager routeManager = page.getApp().getRouteManager();
+        if (routeManager == null) {
+            return url;
+        }
+
+        return routeManager.getFingerprintedUrl(url);
+    }
+
+    /**
+     * Returns the URL of the named asset bundle.
+     */
+    public String bundle(String name) {
+        return page.getApp().getRouteManager().getBundleUrl(name);
+    }
+}
@@ -16,6 +16,7 @@
  */
 package com.webkreator.qlue.view.velocity;
 
+import com.webkreator.qlue.util.AsyncResponseWriter;
 import com.webkreator.qlue.view.View;
 import org.apache.velocity.Template;
 
@@ -23,6 +24,8 @@ import com.webkreator.qlue.Page;
 import com.webkreator.qlue.TransactionContext;
 
 import javax.validation.Valid;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
 
 /**
  * Handle a view implemented as a Velocity template.
@@ -59,6 +62,31 @@ public class VelocityView implements View {
 	@Override
 	public void render(TransactionContext tx, Page page) throws Exception {
 		tx.response.setContentType(View.CONTENT_TYPE_TEXT_HTML_UTF8);
+
+		if ((tx.app != null) && tx.app.isAsyncOutputAllowed(tx, true, -1)) {
+			renderAsync(tx, page);
+			return;
+		}
+
 		viewFactory.render(page, this);
 	}
+
+	/**
+	 * Renders the output into a buffer, then writes it asynchronously, so
+	 * that slow clients don't hold on to request threads. Small outputs
+	 * are written directly.
+	 */
+	private void renderAsync(TransactionContext tx, Page page) throws Exception {
+		StringWriter sw = new StringWriter();
+		viewFactory.render(page, this, sw);
+
+		byte[] content = sw.toString().getBytes(tx.response.getCharacterEncoding());
+		tx.response.setContentLength(content.length);
+
+		if (tx.app.isAsyncOutputAllowed(tx, true, content.length)) {
+			AsyncResponseWriter.write(tx, ByteBuffer.wrap(content));
+		} else {
+			tx.response.getOutputStream().write(content);
+		}
+	}
 }
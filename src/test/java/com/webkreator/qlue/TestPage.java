@@ -0,0 +1,43 @@
+package com.webkreator.qlue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.Semaphore;
+
+public class TestPage {
+
+    static class TestPersistentPage extends Page {
+    }
+
+    @Test
+    public void testLockSurvivesSerialisation() throws Exception {
+        Page page = new TestPersistentPage();
+        Semaphore lock = page.getLock();
+        Assert.assertSame(lock, page.getLock());
+
+        // A page that's stored while locked comes back unlocked.
+        lock.acquire();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(page);
+        } finally {
+            lock.release();
+        }
+
+        Page restored;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            restored = (Page) ois.readObject();
+        }
+
+        Semaphore restoredLock = restored.getLock();
+        Assert.assertNotNull(restoredLock);
+        Assert.assertNotSame(lock, restoredLock);
+        Assert.assertSame(restoredLock, restored.getLock());
+        Assert.assertEquals(1, restoredLock.availablePermits());
+    }
+}
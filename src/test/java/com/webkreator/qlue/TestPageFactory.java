@@ -0,0 +1,124 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueCommandObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPageFactory {
+
+    public static class SimplePage extends Page {
+    }
+
+    public static class NoDefaultConstructorPage extends Page {
+
+        public NoDefaultConstructorPage(int i) {
+        }
+    }
+
+    public static class PrivateConstructorPage extends Page {
+
+        private PrivateConstructorPage() {
+        }
+    }
+
+    public static class InnerCommandObjectPage extends Page {
+
+        public class Command {
+
+            InnerCommandObjectPage getPage() {
+                return InnerCommandObjectPage.this;
+            }
+        }
+
+        @QlueCommandObject
+        public Command command;
+    }
+
+    public static class Command {
+    }
+
+    public static class StaticCommandObjectPage extends Page {
+
+        @QlueCommandObject
+        public Command command;
+    }
+
+    public static class UnconstructableCommand {
+
+        public UnconstructableCommand(String s) {
+        }
+    }
+
+    public static class UnconstructableCommandObjectPage extends Page {
+
+        @QlueCommandObject
+        public UnconstructableCommand command;
+    }
+
+    @Test
+    public void testFactoryIsCached() throws Exception {
+        PageFactory factory = PageFactory.forClass(SimplePage.class);
+        Assert.assertSame(factory, PageFactory.forClass(SimplePage.class));
+        Assert.assertNotSame(factory, PageFactory.forClass(StaticCommandObjectPage.class));
+    }
+
+    @Test
+    public void testNewPage() throws Exception {
+        PageFactory factory = PageFactory.forClass(SimplePage.class);
+        Page page = factory.newPage();
+        Assert.assertTrue(page instanceof SimplePage);
+        Assert.assertNotSame(page, factory.newPage());
+
+        // Pages are their own command objects by default.
+        Assert.assertNull(factory.determineCommandObject(page));
+    }
+
+    @Test
+    public void testNoAccessibleConstructor() throws Exception {
+        for (Class<?> c : new Class<?>[] { NoDefaultConstructorPage.class, PrivateConstructorPage.class, Page.class, String.class }) {
+            try {
+                PageFactory.forClass(c).newPage();
+                Assert.fail(c.getName());
+            } catch (InstantiationException e) {
+                Assert.assertEquals("Unable to create page: " + c.getName(), e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testInnerCommandObject() throws Exception {
+        PageFactory factory = PageFactory.forClass(InnerCommandObjectPage.class);
+        InnerCommandObjectPage page = (InnerCommandObjectPage) factory.newPage();
+
+        Object commandObject = factory.determineCommandObject(page);
+        Assert.assertTrue(commandObject instanceof InnerCommandObjectPage.Command);
+        Assert.assertSame(page, ((InnerCommandObjectPage.Command) commandObject).getPage());
+        Assert.assertSame(commandObject, page.command);
+
+        // An existing command object is reused.
+        Assert.assertSame(commandObject, factory.determineCommandObject(page));
+    }
+
+    @Test
+    public void testStaticCommandObject() throws Exception {
+        PageFactory factory = PageFactory.forClass(StaticCommandObjectPage.class);
+        StaticCommandObjectPage page = (StaticCommandObjectPage) factory.newPage();
+
+        Object commandObject = factory.determineCommandObject(page);
+        Assert.assertTrue(commandObject instanceof Command);
+        Assert.assertSame(commandObject, page.command);
+    }
+
+    @Test
+    public void testUnconstructableCommandObject() throws Exception {
+        PageFactory factory = PageFactory.forClass(UnconstructableCommandObjectPage.class);
+        Page page = factory.newPage();
+
+        try {
+            factory.determineCommandObject(page);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertEquals("Unable to create command object: " + UnconstructableCommand.class, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QluePersistentPage;
+import com.webkreator.qlue.view.AsyncView;
+import com.webkreator.qlue.view.View;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.*;
+
+public class TestQlueApplication {
+
+    @Mock
+    HttpServlet servlet;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    AsyncContext asyncContext;
+
+    QlueApplication app;
+
+    List<Runnable> tasks = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.startAsync()).thenReturn(asyncContext);
+        app = new QlueApplication() {};
+    }
+
+    private void dispatch() throws Exception {
+        app.dispatch(tasks::add, servlet, request, response);
+
+        // Only the executor's thread completes the transaction.
+        verify(asyncContext).setTimeout(0);
+        verify(asyncContext, never()).addListener(any(AsyncListener.class));
+        verify(asyncContext, never()).complete();
+    }
+
+    @Test
+    public void testDispatch() throws Exception {
+        dispatch();
+
+        // The response is sent from the executor's thread, and the
+        // transaction is completed once the processing ends.
+        tasks.get(0).run();
+        verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testDispatchRejected() throws Exception {
+        app.dispatch(task -> {
+            throw new RejectedExecutionException();
+        }, servlet, request, response);
+
+        verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testLongProperty() throws Exception {
+        QlueApplication app = new QlueApplication() {
+            @Override
+            public String getProperty(String key) {
+                return key.equals("qlue.test") ? " 64k" : null;
+            }
+        };
+
+        Assert.assertEquals(10, app.getLongProperty("qlue.missing", 10));
+
+        try {
+            app.getLongProperty("qlue.test", 10);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertEquals("Invalid value for the qlue.test parameter:  64k", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testAsyncPageFallback() throws Exception {
+        // Without asynchronous support, the caller waits for the view itself.
+        when(request.isAsyncSupported()).thenReturn(false);
+        TransactionContext context = new TransactionContext(app, null, null, request, response);
+        Assert.assertFalse(app.startAsyncPage(context, null, AsyncView.of(new CompletableFuture<View>())));
+        verify(request, never()).startAsync();
+    }
+
+    @QluePersistentPage
+    static class TestPersistentPage extends Page {
+    }
+
+    @Test
+    public void testAsyncPageStaysLocked() throws Exception {
+        CompletableFuture<View> future = new CompletableFuture<>();
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+
+        app = new QlueApplication() {
+            @Override
+            protected View processPage(Page page) {
+                return (processed.incrementAndGet() == 1) ? AsyncView.of(future) : null;
+            }
+
+            @Override
+            protected void completePage(TransactionContext context, Page page, View view) {
+                completed.incrementAndGet();
+            }
+        };
+
+        HttpSession session = mock(HttpSession.class);
+        when(request.getSession()).thenReturn(session);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.getDispatcherType()).thenReturn(DispatcherType.REQUEST);
+        Page page = new TestPersistentPage();
+
+        // The first request leaves the page waiting for its view.
+        app.runPage(new TransactionContext(app, null, null, request, response), page);
+        Assert.assertEquals(1, processed.get());
+        verify(asyncContext, never()).complete();
+
+        // The second request to the same page must wait for the first to complete.
+        HttpServletRequest secondRequest = mock(HttpServletRequest.class);
+        when(secondRequest.getSession()).thenReturn(session);
+        TransactionContext secondContext = new TransactionContext(app, null, null, secondRequest, response);
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            try {
+                app.runPage(secondContext, page);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Thread.sleep(200);
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(1, processed.get());
+
+        future.complete(null);
+        second.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, processed.get());
+        Assert.assertEquals(2, completed.get());
+        verify(asyncContext).complete();
+        Assert.assertEquals(1, page.getLock().availablePermits());
+    }
+
+    @Test
+    public void testSlowRequestEmailThrottling() throws Exception {
+        when(request.getRequestURI()).thenReturn("/slow");
+        TransactionContext context = new TransactionContext(app, null, null, request, response);
+
+        // Only the first report in the interval is emailed.
+        Assert.assertTrue(app.isSlowRequestEmailDue(context));
+        Assert.assertFalse(app.isSlowRequestEmailDue(context));
+        Assert.assertFalse(app.isSlowRequestEmailDue(new TransactionContext(app, null, null, request, response)));
+    }
+}
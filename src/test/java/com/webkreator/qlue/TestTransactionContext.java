@@ -0,0 +1,84 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.exceptions.DeadlineExceededException;
+import com.webkreator.qlue.util.VariableExpander;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.mockito.Mockito.when;
+
+public class TestTransactionContext {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    QlueApplication app;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        app = new QlueApplication() {};
+    }
+
+    public TransactionContext createContext(String path, String queryString) throws Exception {
+        when(request.getRequestURI()).thenReturn(path);
+        when(request.getQueryString()).thenReturn(queryString);
+
+        return new TransactionContext(app, servletConfig, servletContext, request, response);
+    }
+
+    @Test
+    public void testLazyNonce() throws Exception {
+        TransactionContext context = createContext("/", null);
+        Assert.assertTrue(context.getResponseHeaders().isEmpty());
+
+        // The nonce is generated on first use, and then stays the same.
+        String nonce = context.getNonce();
+        Assert.assertEquals(32, nonce.length());
+        Assert.assertEquals(nonce, context.getNonce());
+        Assert.assertEquals("nonce-" + nonce, VariableExpander.expand("nonce-${nonce}", context.getProperties()));
+        Assert.assertEquals(nonce, context.getProperties().getProperty("nonce", "default"));
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        TransactionContext context = createContext("/", null);
+        Assert.assertFalse(context.hasDeadline());
+        Assert.assertEquals(Long.MAX_VALUE, context.getRemainingMillis());
+        context.checkDeadline();
+
+        context.setDeadline(60000);
+        Assert.assertTrue(context.hasDeadline());
+        Assert.assertTrue(context.getRemainingMillis() > 50000);
+        context.checkDeadline();
+
+        // The earlier deadline wins.
+        context.setDeadline(0);
+        Assert.assertTrue(context.isDeadlineExpired());
+        Assert.assertEquals(0, context.getRemainingMillis());
+        context.setDeadline(60000);
+        try {
+            context.checkDeadline();
+            Assert.fail();
+        } catch (DeadlineExceededException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.view.ClasspathView;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.mockito.Mockito.when;
+
+public class TestPackageRouter {
+
+    @Mock
+    RouteManager manager;
+
+    Properties properties = new Properties();
+
+    PackageRouter router;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(manager.getProperties()).thenReturn(properties);
+        when(manager.getIndex()).thenReturn("index");
+        properties.setProperty(PackageRouter.PROPERTY_USE_PAGE_INDEX, "false");
+        properties.setProperty(PackageRouter.PROPERTY_RESOLUTION_CACHE_SIZE, "10");
+
+        router = new PackageRouter(manager, "com.webkreator.qlue.router.testPages");
+    }
+
+    private Object resolve(String path) {
+        return router.resolveUri(null, null, path);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        Assert.assertTrue(resolve("/pageOne") instanceof com.webkreator.qlue.router.testPages.pageOne);
+        Assert.assertEquals(0, router.getResolutionCacheHits());
+        Assert.assertEquals(1, router.getResolutionCacheMisses());
+
+        // Cached resolutions still produce new page instances.
+        Object page = resolve("/pageOne");
+        Assert.assertTrue(page instanceof com.webkreator.qlue.router.testPages.pageOne);
+        Assert.assertNotSame(page, resolve("/pageOne"));
+        Assert.assertEquals(2, router.getResolutionCacheHits());
+        Assert.assertEquals(1, router.getResolutionCacheMisses());
+
+        // Paths that don't resolve are cached too.
+        Assert.assertNull(resolve("/missing"));
+        Assert.assertNull(resolve("/missing"));
+        Assert.assertEquals(3, router.getResolutionCacheHits());
+        Assert.assertEquals(2, router.getResolutionCacheMisses());
+        Assert.assertEquals(2, router.getResolutionCacheSize());
+
+        router.clearResolutionCache();
+        Assert.assertEquals(0, router.getResolutionCacheSize());
+        resolve("/pageOne");
+        Assert.assertEquals(3, router.getResolutionCacheMisses());
+    }
+
+    @Test
+    public void testSizeBound() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            resolve("/missing" + i);
+            Assert.assertTrue(router.getResolutionCacheSize() <= 10);
+        }
+
+        Assert.assertEquals(100, router.getResolutionCacheMisses());
+
+        // The most recent entry is always kept.
+        resolve("/missing99");
+        Assert.assertEquals(1, router.getResolutionCacheHits());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        properties.setProperty(PackageRouter.PROPERTY_RESOLUTION_CACHE_SIZE, "0");
+        router = new PackageRouter(manager, "com.webkreator.qlue.router.testPages");
+
+        resolve("/pageOne");
+        resolve("/pageOne");
+        Assert.assertEquals(0, router.getResolutionCacheHits());
+        Assert.assertEquals(0, router.getResolutionCacheSize());
+    }
+
+    private void assertInvalidated() {
+        long misses = router.getResolutionCacheMisses();
+        resolve("/pageOne");
+        Assert.assertEquals(misses + 1, router.getResolutionCacheMisses());
+        Assert.assertEquals(1, router.getResolutionCacheSize());
+
+        // The new configuration is cached.
+        resolve("/pageOne");
+        Assert.assertEquals(misses + 1, router.getResolutionCacheMisses());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        resolve("/pageOne");
+        resolve("/missing");
+        Assert.assertEquals(2, router.getResolutionCacheSize());
+
+        when(manager.getPriorityTemplatePath()).thenReturn("./src/test/java");
+        assertInvalidated();
+
+        when(manager.getSuffix()).thenReturn(".html");
+        assertInvalidated();
+        Assert.assertNull(resolve("/pageOne"));
+        Assert.assertTrue(resolve("/pageOne.html") instanceof com.webkreator.qlue.router.testPages.pageOne);
+
+        when(manager.getSuffix()).thenReturn(null);
+        when(manager.getIndex()).thenReturn("home");
+        assertInvalidated();
+
+        when(manager.isConvertDashesToUnderscores()).thenReturn(true);
+        assertInvalidated();
+        Assert.assertTrue(resolve("/page-three") instanceof com.webkreator.qlue.router.testPages.page_three);
+    }
+
+    @Test
+    public void testPriorityPathNotCached() throws Exception {
+        File dir = Files.createTempDirectory("qlue").toFile();
+        File packageDir = new File(dir, "com/webkreator/qlue/router/testPages");
+        File template = new File(packageDir, "fresh.vmx");
+        when(manager.getPriorityTemplatePath()).thenReturn(dir.getPath());
+
+        try {
+            Assert.assertNull(resolve("/fresh"));
+
+            // A template added later is found immediately.
+            Assert.assertTrue(packageDir.mkdirs());
+            Assert.assertTrue(template.createNewFile());
+            Assert.assertTrue(resolve("/fresh") instanceof ClasspathView);
+
+            // And so is its removal.
+            Assert.assertTrue(template.delete());
+            Assert.assertNull(resolve("/fresh"));
+            Assert.assertEquals(0, router.getResolutionCacheSize());
+
+            // Pages don't depend on the priority path.
+            resolve("/pageOne");
+            Assert.assertEquals(1, router.getResolutionCacheSize());
+        } finally {
+            template.delete();
+            for (File f = packageDir; !f.equals(dir); f = f.getParentFile()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
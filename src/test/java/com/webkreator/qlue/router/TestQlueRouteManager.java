@@ -0,0 +1,170 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.exceptions.ServiceUnavailableException;
+import com.webkreator.qlue.exceptions.TooManyRequestsException;
+import com.webkreator.qlue.util.AdaptiveConcurrencyLimiter;
+import com.webkreator.qlue.util.ConcurrencyLimiter;
+import com.webkreator.qlue.util.RateLimiter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import static org.mockito.Mockito.when;
+
+public class TestQlueRouteManager {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    QlueApplication app;
+
+    QlueRouteManager routeManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        app = new QlueApplication() {};
+        routeManager = new QlueRouteManager(app);
+    }
+
+    public TransactionContext createContext(String path, String queryString) throws Exception {
+        when(request.getRequestURI()).thenReturn(path);
+        when(request.getQueryString()).thenReturn(queryString);
+
+        return new TransactionContext(app, servletConfig, servletContext, request, response);
+    }
+
+    private Path writeRoutes(String routes) throws Exception {
+        Path routesFile = Files.createTempFile("routes", ".conf");
+        routesFile.toFile().deleteOnExit();
+        Files.write(routesFile, routes.getBytes(StandardCharsets.UTF_8));
+        return routesFile;
+    }
+
+    @Test
+    public void testConcurrencyLimits() throws Exception {
+        Path routesFile = writeRoutes("@concurrency reports 1 queue=0 retryAfter=7\n"
+                + "/pageOne com.webkreator.qlue.router.testPages.pageOne\n"
+                + "@concurrency none\n"
+                + "/{} package:com.webkreator.qlue.router.testPages\n");
+        routeManager.load(routesFile.toFile());
+        Assert.assertEquals(1, routeManager.getConcurrencyLimiters().size());
+
+        TransactionContext first = createContext("/pageOne", null);
+        Assert.assertNotNull(routeManager.route(first));
+
+        // The first request is still in flight, so the second one is rejected.
+        try {
+            routeManager.route(createContext("/pageOne", null));
+            Assert.fail();
+        } catch (ServiceUnavailableException e) {
+            Assert.assertEquals(7, e.getRetryAfter());
+        }
+
+        // Routes outside the group are not limited.
+        Assert.assertNotNull(routeManager.route(createContext("/index", null)));
+
+        first.releaseConcurrencyPermit();
+        TransactionContext third = createContext("/pageOne", null);
+        Assert.assertNotNull(routeManager.route(third));
+        third.releaseConcurrencyPermit();
+
+        ConcurrencyLimiter limiter = routeManager.getConcurrencyLimiters().iterator().next();
+        Assert.assertEquals(2, limiter.getAdmitted());
+        Assert.assertEquals(1, limiter.getRejected());
+        Assert.assertEquals(0, limiter.getInFlight());
+
+        // Reloading the same definition keeps the limiter.
+        routeManager.load(routesFile.toFile());
+        Assert.assertSame(limiter, routeManager.getConcurrencyLimiters().iterator().next());
+    }
+
+    @Test
+    public void testAdaptiveConcurrencyDirective() throws Exception {
+        ConcurrencyLimiter adaptive = routeManager.parseConcurrency("api adaptive initial=10 max=50 queue=0",
+                new HashMap<>(), new HashMap<>());
+        Assert.assertTrue(adaptive instanceof AdaptiveConcurrencyLimiter);
+        Assert.assertEquals(10, adaptive.getLimit());
+        Assert.assertEquals(50, ((AdaptiveConcurrencyLimiter) adaptive).getMaxLimit());
+        Assert.assertEquals(0, adaptive.getMaxQueued());
+    }
+
+    @Test
+    public void testRateLimits() throws Exception {
+        Path routesFile = writeRoutes("@ratelimit login 2/m\n"
+                + "/pageOne com.webkreator.qlue.router.testPages.pageOne\n"
+                + "@ratelimit none\n"
+                + "/{} package:com.webkreator.qlue.router.testPages\n");
+        routeManager.load(routesFile.toFile());
+        Assert.assertEquals(1, routeManager.getRateLimiters().size());
+        when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+
+        Assert.assertNotNull(routeManager.route(createContext("/pageOne", null)));
+        Assert.assertNotNull(routeManager.route(createContext("/pageOne", null)));
+
+        // The burst is used up; the next request is allowed in 30 seconds.
+        try {
+            routeManager.route(createContext("/pageOne", null));
+            Assert.fail();
+        } catch (TooManyRequestsException e) {
+            Assert.assertTrue(e.getRetryAfter() >= 29 && e.getRetryAfter() <= 30);
+        }
+
+        // Routes outside the group are not limited.
+        Assert.assertNotNull(routeManager.route(createContext("/index", null)));
+
+        RateLimiter limiter = routeManager.getRateLimiters().iterator().next();
+        Assert.assertEquals(2, limiter.getAllowed());
+        Assert.assertEquals(1, limiter.getRejected());
+
+        // Reloading the same definition keeps the limiter.
+        routeManager.load(routesFile.toFile());
+        Assert.assertSame(limiter, routeManager.getRateLimiters().iterator().next());
+
+        RateLimiter page = routeManager.parseRateLimit("api 100/h burst=10 key=page",
+                new HashMap<>(), new HashMap<>());
+        Assert.assertEquals(RateLimiter.KeyType.PAGE, page.getKeyType());
+    }
+
+    @Test
+    public void testDeadlines() throws Exception {
+        Path routesFile = writeRoutes("@timeout 60000\n"
+                + "/pageOne com.webkreator.qlue.router.testPages.pageOne\n"
+                + "@timeout none\n"
+                + "/{} package:com.webkreator.qlue.router.testPages\n");
+        routeManager.load(routesFile.toFile());
+
+        TransactionContext context = createContext("/pageOne", null);
+        Assert.assertFalse(context.hasDeadline());
+        Assert.assertNotNull(routeManager.route(context));
+        Assert.assertTrue(context.hasDeadline());
+        Assert.assertTrue(context.getRemainingMillis() > 50000);
+
+        // Routes outside the section have no deadline.
+        TransactionContext other = createContext("/index", null);
+        routeManager.route(other);
+        Assert.assertFalse(other.hasDeadline());
+    }
+}
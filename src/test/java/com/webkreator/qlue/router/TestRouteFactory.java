@@ -0,0 +1,19 @@
+package com.webkreator.qlue.router;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRouteFactory {
+
+    @Test
+    public void testDetermineUrlPrefix() {
+        Assert.assertEquals("/", RouteFactory.determineUrlPrefix("/{}"));
+        Assert.assertEquals("/static/", RouteFactory.determineUrlPrefix("/static/{}"));
+        Assert.assertEquals("/static/", RouteFactory.determineUrlPrefix("/static/?{}"));
+        Assert.assertEquals("/a/b/", RouteFactory.determineUrlPrefix("/a/b/?{}"));
+
+        // No fixed prefix.
+        Assert.assertNull(RouteFactory.determineUrlPrefix("/static/file.css"));
+        Assert.assertNull(RouteFactory.determineUrlPrefix("/{lang}/static/{}"));
+    }
+}
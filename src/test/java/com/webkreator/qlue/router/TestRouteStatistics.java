@@ -0,0 +1,27 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.util.PhaseTimer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestRouteStatistics {
+
+    @Test
+    public void testPhaseStatistics() throws Exception {
+        PhaseTimer timer = new PhaseTimer();
+        timer.mark(PhaseTimer.Phase.ROUTE);
+        timer.mark(PhaseTimer.Phase.SERVICE);
+
+        RouteStatistics stats = new RouteStatistics();
+        stats.recordPhases(timer);
+
+        QlueRouteManager routeManager = new QlueRouteManager(new QlueApplication() {});
+        RouteStatistics.Snapshot snapshot = stats.snapshot(RouteFactory.create(routeManager, "/phases package:com.webkreator.qlue.router.testPages"));
+        Assert.assertEquals(1, Arrays.stream(snapshot.getPhaseHistogram(PhaseTimer.Phase.SERVICE)).sum());
+        Assert.assertEquals(0, Arrays.stream(snapshot.getPhaseHistogram(PhaseTimer.Phase.RENDER)).sum());
+        Assert.assertEquals(-1, snapshot.getPhasePercentileMicros(PhaseTimer.Phase.RENDER, 0.99));
+    }
+}
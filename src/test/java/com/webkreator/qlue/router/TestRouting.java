@@ -4,6 +4,7 @@ import com.webkreator.qlue.QlueApplication;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.view.ClasspathView;
 import com.webkreator.qlue.view.RedirectView;
+import com.webkreator.qlue.view.StatusCodeView;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -15,6 +16,14 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.File;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 import static org.mockito.Mockito.when;
 
@@ -66,17 +75,19 @@ public class TestRouting {
     }
 
     public Object createContextAndRoute(String path, String queryString) throws Exception {
+        return routeManager.route(createContext(path, queryString));
+    }
+
+    public TransactionContext createContext(String path, String queryString) throws Exception {
         when(request.getRequestURI()).thenReturn(path);
         when(request.getQueryString()).thenReturn(queryString);
 
-        TransactionContext context = new TransactionContext(
+        return new TransactionContext(
                 app,
                 servletConfig,
                 servletContext,
                 request,
                 response);
-
-        return routeManager.route(context);
     }
 
     @Test
@@ -249,6 +260,146 @@ public class TestRouting {
     public void testRequestMethodNotFound1() throws Exception {
         Object o = createContextAndRoute("/api/update");
         Assert.assertNotEquals(null, o);
-        Assert.assertTrue(o instanceof com.webkreator.qlue.router.StatusCodeRouter);
+        Assert.assertTrue(o instanceof StatusCodeView);
+        Assert.assertEquals(405, ((StatusCodeView)o).getStatusCode());
+    }
+
+    @Test
+    public void testRequestMethodNotFoundAllowHeader() throws Exception {
+        routeManager.add(RouteFactory.create(routeManager, "GET,PUT /api/update com.webkreator.qlue.router.testPages.$api.Update"));
+        routeManager.add(RouteFactory.create(routeManager, "/other/{} package:com.webkreator.qlue.router.testPages"));
+        TransactionContext context = createContext("/api/update", null);
+        Object o = routeManager.route(context);
+        Assert.assertTrue(o instanceof StatusCodeView);
+        Assert.assertEquals("GET, HEAD, POST, PUT", context.getResponseHeaders().get("Allow"));
+    }
+
+    @Test
+    public void testRequestMethodMatch() throws Exception {
+        when(request.getMethod()).thenReturn("POST");
+        Object o = createContextAndRoute("/api/update");
+        Assert.assertTrue(o instanceof com.webkreator.qlue.router.testPages.$api.Update);
+    }
+
+    @Test
+    public void testLiteralSegments() throws Exception {
+        Assert.assertEquals(Arrays.asList("api", "update"), Route.determineLiteralSegments("/api/update"));
+        Assert.assertEquals(Arrays.asList("redirSubdir"), Route.determineLiteralSegments("/redirSubdir/{}"));
+        Assert.assertEquals(Arrays.asList("a"), Route.determineLiteralSegments("/a/b{id}"));
+        Assert.assertEquals(Arrays.asList("a", "b"), Route.determineLiteralSegments("/a/b/"));
+        Assert.assertTrue(Route.determineLiteralSegments("/noRedirSubdir/?{}").isEmpty());
+        Assert.assertTrue(Route.determineLiteralSegments("/{}").isEmpty());
+    }
+
+    @Test
+    public void testFirstMatchWins() throws Exception {
+        routeManager = new QlueRouteManager(app);
+        routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        routeManager.add(RouteFactory.create(routeManager, "/subdir/{} package:com.webkreator.qlue.router.testPages.redirSubdir"));
+        Object o = createContextAndRoute("/subdir/");
+        Assert.assertTrue(o instanceof com.webkreator.qlue.router.testPages.subdir.index);
+    }
+
+    @Test
+    public void testPageIndex() throws Exception {
+        PageIndexGenerator generator = new PageIndexGenerator();
+        generator.addClassesDir(new File(TestRouting.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+        generator.addPackage("com.webkreator.qlue.router.testPages");
+        StringWriter sw = new StringWriter();
+        generator.generate(sw);
+
+        String index = sw.toString();
+        Assert.assertTrue(index.contains("page com.webkreator.qlue.router.testPages.pageTwo .html\n"));
+        Assert.assertTrue(index.contains("page com.webkreator.qlue.router.testPages.subdir.index\n"));
+
+        // Remove a page from the index; the router should no longer see it.
+        index = index.replace("page com.webkreator.qlue.router.testPages.pageOne\n", "");
+
+        Path dir = Files.createTempDirectory("qlue");
+        Path indexFile = dir.resolve(PageIndex.RESOURCE_NAME);
+        Files.createDirectories(indexFile.getParent());
+        Files.write(indexFile, index.getBytes(StandardCharsets.UTF_8));
+
+        ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader cl = new URLClassLoader(new URL[] { dir.toUri().toURL() }, originalClassLoader)) {
+            Thread.currentThread().setContextClassLoader(cl);
+            routeManager = new QlueRouteManager(app);
+            routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        } finally {
+            Thread.currentThread().setContextClassLoader(originalClassLoader);
+        }
+
+        Assert.assertTrue(createContextAndRoute("/pageTwo.html") instanceof com.webkreator.qlue.router.testPages.pageTwo);
+        Assert.assertTrue(createContextAndRoute("/subdir/") instanceof com.webkreator.qlue.router.testPages.subdir.index);
+        Assert.assertNull(createContextAndRoute("/pageTwo"));
+        Assert.assertNull(createContextAndRoute("/pageOne"));
+    }
+
+    @Test
+    public void testReloadKeepsRoutesOnFailure() throws Exception {
+        Path routesFile = Files.createTempFile("routes", ".conf");
+        Files.write(routesFile, "/{} package:com.webkreator.qlue.router.testPages\n".getBytes(StandardCharsets.UTF_8));
+        routeManager.load(routesFile.toFile());
+        RouteTable table = routeManager.getRouteTable();
+        Assert.assertEquals(1, table.size());
+
+        Files.write(routesFile, "/{} package:com.webkreator.qlue.router.noSuchPackage\n".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(routeManager.reload(routesFile.toFile()));
+        Assert.assertSame(table, routeManager.getRouteTable());
+        Assert.assertTrue(createContextAndRoute("/pageOne") instanceof com.webkreator.qlue.router.testPages.pageOne);
+
+        Files.write(routesFile, "/other/{} package:com.webkreator.qlue.router.testPages\n".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(routeManager.reload(routesFile.toFile()));
+        Assert.assertNull(createContextAndRoute("/pageOne"));
+        Assert.assertTrue(createContextAndRoute("/other/pageOne") instanceof com.webkreator.qlue.router.testPages.pageOne);
+    }
+
+    @Test
+    public void testRouteStatistics() throws Exception {
+        createContextAndRoute("/pageOne");
+        createContextAndRoute("/pageOne");
+        createContextAndRoute("/api/update");
+
+        RouteStatistics.Snapshot update = null, pages = null;
+        for (RouteStatistics.Snapshot s : routeManager.getRouteStatistics()) {
+            if ("/api/update".equals(s.getPath())) {
+                update = s;
+            } else if ("/{}".equals(s.getPath())) {
+                pages = s;
+            }
+        }
+
+        Assert.assertEquals(1, update.getAttempts());
+        Assert.assertEquals(1, update.getMethodMismatches());
+        Assert.assertEquals(0, update.getMatches());
+        Assert.assertEquals(1, update.getRouted());
+        Assert.assertEquals(2, pages.getMatches());
+        Assert.assertEquals(2, pages.getRouted());
+        // The "/noRedirSubdir/?{}" route has no literal segments, so it's always evaluated first.
+        Assert.assertEquals(2.0, pages.getAverageEvaluationsBeforeRouting(), 0.0);
+    }
+
+    @Test
+    public void testHostSections() throws Exception {
+        Path routesFile = Files.createTempFile("routes", ".conf");
+        Files.write(routesFile, ("/common com.webkreator.qlue.router.testPages.pageOne\n"
+                + "@host api.example.com API.example.org.\n"
+                + "/{} package:com.webkreator.qlue.router.testPages.subdir\n"
+                + "@host *\n"
+                + "/{} package:com.webkreator.qlue.router.testPages\n").getBytes(StandardCharsets.UTF_8));
+        routeManager.load(routesFile.toFile());
+
+        RouteTable table = routeManager.getRouteTable();
+        Assert.assertEquals(2, table.size());
+        Assert.assertEquals(new java.util.HashSet<>(Arrays.asList("api.example.com", "api.example.org")), table.getHosts());
+        Assert.assertEquals(3, table.forHost("api.example.com").size());
+
+        when(request.getHeader("host")).thenReturn("www.example.com");
+        Assert.assertTrue(createContextAndRoute("/") instanceof com.webkreator.qlue.router.testPages.index);
+        Assert.assertTrue(createContextAndRoute("/common") instanceof com.webkreator.qlue.router.testPages.pageOne);
+
+        when(request.getHeader("host")).thenReturn("API.example.org:8443");
+        Assert.assertTrue(createContextAndRoute("/") instanceof com.webkreator.qlue.router.testPages.subdir.index);
+        Assert.assertTrue(createContextAndRoute("/common") instanceof com.webkreator.qlue.router.testPages.pageOne);
     }
 }
@@ -0,0 +1,67 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.view.DownloadView;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.mockito.Mockito.when;
+
+public class TestStaticFileRouter {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    QlueApplication app;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        app = new QlueApplication() {};
+    }
+
+    private Object route(StaticFileRouter router, String path) throws Exception {
+        when(request.getRequestURI()).thenReturn(path);
+        TransactionContext context = new TransactionContext(app, servletConfig, servletContext, request, response);
+        return router.route(context, null, path);
+    }
+
+    @Test
+    public void testPrecompressorTemporaryFilesNotServed() throws Exception {
+        File dir = Files.createTempDirectory("qlue").toFile();
+        Files.write(new File(dir, "site.css").toPath(), "body { margin: 0; }".getBytes(StandardCharsets.US_ASCII));
+        Files.write(new File(dir, ".qlue-123.gz").toPath(), new byte[] { 0x1f, (byte) 0x8b });
+
+        try {
+            StaticFileRouter router = new StaticFileRouter(new QlueRouteManager(app), dir.getPath());
+            Assert.assertTrue(route(router, "/site.css") instanceof DownloadView);
+            Assert.assertNull(route(router, "/.qlue-123.gz"));
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.exceptions.ServiceUnavailableException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestAdaptiveConcurrencyLimiter {
+
+    @Test
+    public void testLimitFollowsLatency() throws Exception {
+        // The backend can process 20 requests at the same time in 10 ms; above
+        // that, requests queue and the latency grows with the concurrency.
+        final int capacity = 20;
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 5, 1, 1000, 0, 0, 1);
+
+        int[] limits = new int[600];
+        for (int round = 0; round < limits.length; round++) {
+            // A latency spike: the backend becomes five times slower for a while.
+            long base = ((round >= 300) && (round < 400)) ? 50000000L : 10000000L;
+
+            // Unlimited demand; send as many requests as the limiter admits.
+            int admitted = 0;
+            try {
+                while (true) {
+                    limiter.acquire();
+                    admitted++;
+                }
+            } catch (ServiceUnavailableException e) {
+                // Limit reached.
+            }
+
+            long latency = base * Math.max(capacity, admitted) / capacity;
+            for (int i = 0; i < admitted; i++) {
+                limiter.release(latency);
+            }
+
+            limits[round] = limiter.getLimit();
+        }
+
+        // The limit grows from its initial value, but stays within a reasonable
+        // distance from the capacity, even though the demand is unlimited.
+        double steady = average(limits, 250, 300);
+        Assert.assertTrue(steady >= capacity);
+        Assert.assertTrue(steady <= capacity * 3);
+
+        // When the latency spikes, the limit quickly shrinks to shed the
+        // excess load, then adapts to the new baseline latency.
+        Assert.assertTrue(Arrays.stream(limits, 300, 310).min().getAsInt() < steady / 2);
+        Assert.assertTrue(average(limits, 350, 400) >= capacity / 2);
+
+        // After the spike, it returns to where it was.
+        double recovered = average(limits, 550, 600);
+        Assert.assertTrue(recovered >= capacity);
+        Assert.assertTrue(recovered <= capacity * 3);
+    }
+
+    private static double average(int[] values, int from, int to) {
+        return Arrays.stream(values, from, to).average().getAsDouble();
+    }
+}
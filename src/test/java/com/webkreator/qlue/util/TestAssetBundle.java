@@ -0,0 +1,63 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class TestAssetBundle {
+
+    @Test
+    public void testAssetBundle() throws Exception {
+        Assert.assertEquals("a:hover,b{color:red;content:\"a  b\"}",
+                AssetBundle.minifyCss("/* links */\na:hover, b {\n    color: red;\n    content: \"a  b\";\n}\n"));
+        Assert.assertEquals("div :first-child{margin:0 auto}", AssetBundle.minifyCss("div :first-child { margin: 0  auto; }"));
+
+        File dir = Files.createTempDirectory("qlue").toFile();
+        File a = new File(dir, "a.css");
+        File b = new File(dir, "b.css");
+        Files.write(a.toPath(), "body {\n  margin: 0;\n}\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(b.toPath(), "p { padding: 0; }\n".getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            AssetBundle bundle = AssetBundle.build("site.css", Arrays.asList(a, b));
+            Assert.assertEquals("body{margin:0}p{padding:0}", StandardCharsets.UTF_8.decode(bundle.getContent().duplicate()).toString());
+            Assert.assertEquals("text/css", bundle.getContentType());
+            Assert.assertEquals("site." + bundle.getHash() + ".css", bundle.getFingerprintedName());
+            Assert.assertEquals("site.css", AssetManifest.stripFingerprint(bundle.getFingerprintedName()));
+            Assert.assertEquals(0, bundle.getLastModified() % 1000);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testJavaScriptIsNotModified() throws Exception {
+        // Whitespace is significant in template literals and in strings
+        // continued with a backslash, so the files must be left as they are.
+        String first = "var html = `<ul>\n    <li>${item}</li>\n\n</ul>`;\n";
+        String second = "var s = 'a \\\n    b'\n";
+
+        File dir = Files.createTempDirectory("qlue").toFile();
+        File a = new File(dir, "a.js");
+        File b = new File(dir, "b.js");
+        Files.write(a.toPath(), first.getBytes(StandardCharsets.UTF_8));
+        Files.write(b.toPath(), second.getBytes(StandardCharsets.UTF_8));
+
+        try {
+            AssetBundle bundle = AssetBundle.build("site.js", Arrays.asList(a, b));
+            Assert.assertEquals(first + ";\n" + second + ";\n", StandardCharsets.UTF_8.decode(bundle.getContent().duplicate()).toString());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
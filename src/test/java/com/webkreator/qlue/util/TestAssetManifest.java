@@ -0,0 +1,72 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TestAssetManifest {
+
+    @Test
+    public void testAssetManifest() throws Exception {
+        File dir = Files.createTempDirectory("qlue").toFile();
+        File css = new File(dir, "site.css");
+        Files.write(css.toPath(), "body { margin: 0; }".getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            AssetManifest manifest = new AssetManifest(dir.toPath());
+            String hash = manifest.getHash("site.css");
+            Assert.assertEquals(AssetManifest.HASH_LENGTH, hash.length());
+
+            String fingerprinted = manifest.fingerprint("site.css");
+            Assert.assertEquals("site." + hash + ".css", fingerprinted);
+            Assert.assertEquals("site.css", manifest.resolve(fingerprinted));
+            Assert.assertNull(manifest.resolve("site.css"));
+            Assert.assertNull(manifest.fingerprint("missing.css"));
+
+            // Once the content changes, old fingerprints are no longer current.
+            Files.write(css.toPath(), "body { margin: 1px; }".getBytes(StandardCharsets.US_ASCII));
+            manifest.update(css.toPath());
+            Assert.assertNull(manifest.resolve(fingerprinted));
+            Assert.assertEquals("site.css", AssetManifest.stripFingerprint(fingerprinted));
+            Assert.assertNotEquals(fingerprinted, manifest.fingerprint("site.css"));
+
+            Files.delete(css.toPath());
+            manifest.update(css.toPath());
+            Assert.assertEquals(0, manifest.size());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testRescanRemovesDeletedFiles() throws Exception {
+        File dir = Files.createTempDirectory("qlue").toFile();
+        File css = new File(dir, "site.css");
+        File js = new File(dir, "site.js");
+        Files.write(css.toPath(), "body { margin: 0; }".getBytes(StandardCharsets.US_ASCII));
+        Files.write(js.toPath(), "var a = 1;".getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            AssetManifest manifest = new AssetManifest(dir.toPath());
+            Assert.assertEquals(2, manifest.size());
+
+            // After an overflow the watcher reports only the root.
+            Files.delete(css.toPath());
+            manifest.update(dir.toPath());
+            Assert.assertNull(manifest.getHash("site.css"));
+            Assert.assertNotNull(manifest.getHash("site.js"));
+            Assert.assertEquals(1, manifest.size());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
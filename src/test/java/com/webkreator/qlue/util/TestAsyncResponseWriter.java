@@ -0,0 +1,168 @@
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.mockito.Mockito.*;
+
+public class TestAsyncResponseWriter {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getRequestURI()).thenReturn("/file.bin");
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader(anyString())).thenReturn(-1L);
+
+        file = File.createTempFile("qlue", ".bin");
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void testAsyncDownload() throws Exception {
+        byte[] data = new byte[200 * 1024];
+        new java.util.Random(1).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        // A slow client: the container accepts one chunk at a time.
+        final WriteListener[] listener = new WriteListener[1];
+        final boolean[] ready = new boolean[] { true };
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+                ready[0] = false;
+            }
+
+            @Override
+            public boolean isReady() {
+                return ready[0];
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                listener[0] = writeListener;
+            }
+        });
+
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+
+        QlueApplication app = new QlueApplication() {
+            @Override
+            public boolean isAsyncOutputAllowed(TransactionContext context, boolean view, long length) {
+                return true;
+            }
+        };
+
+        DownloadUtil.sendFile(new TransactionContext(app, servletConfig, servletContext, request, response), file);
+
+        // The request thread is free before any data is written.
+        Assert.assertNotNull(listener[0]);
+        Assert.assertEquals(0, body.size());
+
+        int callbacks = 0;
+        while (body.size() < data.length) {
+            ready[0] = true;
+            listener[0].onWritePossible();
+            callbacks++;
+        }
+
+        ready[0] = true;
+        listener[0].onWritePossible();
+
+        Assert.assertEquals(4, callbacks);
+        Assert.assertArrayEquals(data, body.toByteArray());
+        verify(asyncContext).setTimeout(app.getAsyncWriteTimeout());
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        // A client that never reads the response.
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public boolean isReady() {
+                return false;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        });
+
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.startAsync()).thenReturn(asyncContext);
+
+        final int[] closed = new int[1];
+        TransactionContext context = new TransactionContext(new QlueApplication() {}, servletConfig, servletContext, request, response);
+        AsyncResponseWriter.start(context, new DownloadUtil.Content() {
+            @Override
+            public void transfer(long position, long count, OutputStream os) {
+            }
+
+            @Override
+            public void close() {
+                closed[0]++;
+            }
+        }, 0, 1024);
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        verify(asyncContext).setTimeout(5 * 60 * 1000);
+
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+        Assert.assertEquals(1, closed[0]);
+        verify(asyncContext).complete();
+
+        // The content is closed only once.
+        listener.getValue().onComplete(new AsyncEvent(asyncContext));
+        Assert.assertEquals(1, closed[0]);
+        verify(asyncContext, times(1)).complete();
+    }
+}
@@ -0,0 +1,68 @@
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.exceptions.ServiceUnavailableException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TestConcurrencyLimiter {
+
+    @Test
+    public void testRejectWithoutQueue() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 0, 1000, 7);
+
+        ConcurrencyLimiter.Permit permit = limiter.acquire();
+        try {
+            limiter.acquire();
+            Assert.fail();
+        } catch (ServiceUnavailableException e) {
+            Assert.assertEquals(7, e.getRetryAfter());
+        }
+
+        // Releasing a permit more than once has no effect.
+        permit.release();
+        permit.release();
+        Assert.assertEquals(0, limiter.getInFlight());
+        Assert.assertEquals(1, limiter.getAdmitted());
+        Assert.assertEquals(1, limiter.getRejected());
+    }
+
+    @Test
+    public void testQueuedRequestIsAdmitted() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 10000, 1);
+        ConcurrencyLimiter.Permit permit = limiter.acquire();
+
+        CompletableFuture<ConcurrencyLimiter.Permit> waiting = CompletableFuture.supplyAsync(limiter::acquire);
+        while (limiter.getQueued() == 0) {
+            Thread.sleep(1);
+        }
+
+        permit.release();
+        waiting.get(10, TimeUnit.SECONDS).release();
+
+        Assert.assertEquals(2, limiter.getAdmitted());
+        Assert.assertEquals(1, limiter.getDelayed());
+        Assert.assertEquals(0, limiter.getInFlight());
+        Assert.assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void testQueuedRequestTimesOut() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 50, 1);
+        ConcurrencyLimiter.Permit permit = limiter.acquire();
+
+        long started = System.nanoTime();
+        try {
+            limiter.acquire();
+            Assert.fail();
+        } catch (ServiceUnavailableException e) {
+            Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+
+        permit.release();
+        Assert.assertEquals(1, limiter.getDelayed());
+        Assert.assertEquals(1, limiter.getRejected());
+    }
+}
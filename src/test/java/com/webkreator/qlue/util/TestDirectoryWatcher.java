@@ -0,0 +1,89 @@
+package com.webkreator.qlue.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestDirectoryWatcher {
+
+    @After
+    public void tearDown() {
+        DirectoryWatcher.closeShared();
+    }
+
+    @Test
+    public void testSharedWatcherReferenceCounting() throws Exception {
+        Path dir = Files.createTempDirectory("qlue");
+
+        DirectoryWatcher first = DirectoryWatcher.shared(dir);
+        DirectoryWatcher second = DirectoryWatcher.shared(dir);
+        Assert.assertSame(first, second);
+
+        // The watcher stays open while anyone is using it.
+        first.release();
+        Assert.assertFalse(first.isClosed());
+
+        second.release();
+        Assert.assertTrue(first.isClosed());
+
+        // A closed watcher is never handed out again.
+        DirectoryWatcher third = DirectoryWatcher.shared(dir);
+        Assert.assertNotSame(first, third);
+        Assert.assertFalse(third.isClosed());
+
+        DirectoryWatcher.closeShared();
+        Assert.assertTrue(third.isClosed());
+    }
+
+    @Test
+    public void testCachesReleaseWatchers() throws Exception {
+        Path dir = Files.createTempDirectory("qlue");
+
+        FileMetadataCache metadata = FileMetadataCache.forDirectory(dir.toFile(), 5000, 100);
+        AssetManifest manifest = AssetManifest.forDirectory(dir.toFile());
+        DirectoryWatcher watcher = DirectoryWatcher.shared(dir);
+        watcher.release();
+
+        metadata.close();
+        Assert.assertFalse(watcher.isClosed());
+
+        // Closing the last user stops the watcher thread.
+        manifest.close();
+        Assert.assertTrue(watcher.isClosed());
+    }
+
+    @Test
+    public void testContinuousChangesAreDispatched() throws Exception {
+        Path dir = Files.createTempDirectory("qlue");
+        Path file = dir.resolve("busy.txt");
+
+        CountDownLatch notified = new CountDownLatch(1);
+        DirectoryWatcher watcher = new DirectoryWatcher(dir, false, path -> notified.countDown());
+
+        // Keep writing for longer than the settle window is allowed to last.
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(8);
+        boolean dispatched = false;
+        try {
+            int i = 0;
+            while (System.nanoTime() - end < 0) {
+                Files.write(file, Integer.toString(i++).getBytes(StandardCharsets.US_ASCII));
+                if (notified.await(50, TimeUnit.MILLISECONDS)) {
+                    dispatched = true;
+                    break;
+                }
+            }
+        } finally {
+            watcher.close();
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+
+        Assert.assertTrue(dispatched);
+    }
+}
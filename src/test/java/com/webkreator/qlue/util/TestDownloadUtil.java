@@ -0,0 +1,175 @@
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+public class TestDownloadUtil {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getRequestURI()).thenReturn("/file.txt");
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader(anyString())).thenReturn(-1L);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        });
+
+        file = File.createTempFile("qlue", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void sendFile() throws Exception {
+        DownloadUtil.sendFile(new TransactionContext(new QlueApplication() {}, servletConfig, servletContext, request, response), file);
+    }
+
+    @Test
+    public void testParseRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-4, 10-, -3", 20);
+        Assert.assertNull(ranges);
+
+        ranges = ByteRange.parse("bytes=0-4, 10-14, 30-40", 20);
+        Assert.assertEquals(2, ranges.size());
+        Assert.assertEquals(10, ranges.get(1).getStart());
+        Assert.assertEquals(14, ranges.get(1).getEnd());
+
+        ranges = ByteRange.parse("bytes=-3", 20);
+        Assert.assertEquals(17, ranges.get(0).getStart());
+        Assert.assertEquals(19, ranges.get(0).getEnd());
+
+        ranges = ByteRange.parse("bytes=15-100", 20);
+        Assert.assertEquals(19, ranges.get(0).getEnd());
+
+        Assert.assertTrue(ByteRange.parse("bytes=20-", 20).isEmpty());
+        Assert.assertNull(ByteRange.parse("bytes=5-2", 20));
+        Assert.assertNull(ByteRange.parse("items=0-1", 20));
+        Assert.assertNull(ByteRange.parse("bytes=a-b", 20));
+    }
+
+    @Test
+    public void testFullResponse() throws Exception {
+        sendFile();
+        verify(response).setContentLengthLong(20);
+        verify(response).setHeader("Accept-Ranges", "bytes");
+        Assert.assertEquals("0123456789abcdefghij", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=5-9");
+        sendFile();
+        verify(response).setStatus(206);
+        verify(response).setHeader("Content-Range", "bytes 5-9/20");
+        verify(response).setContentLengthLong(5);
+        Assert.assertEquals("56789", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=0-1,-2");
+        sendFile();
+        verify(response).setStatus(206);
+        String s = body.toString("US-ASCII");
+        Assert.assertTrue(s.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"));
+        Assert.assertTrue(s.contains("Content-Range: bytes 18-19/20\r\n\r\nij\r\n"));
+        Assert.assertTrue(s.endsWith("--\r\n"));
+        verify(response).setContentLengthLong(s.length());
+    }
+
+    @Test
+    public void testRangeNotSatisfiable() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=100-");
+        sendFile();
+        verify(response).setHeader("Content-Range", "bytes */20");
+        verify(response).sendError(416);
+    }
+
+    @Test
+    public void testIfRangeMismatch() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=5-9");
+        when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+        sendFile();
+        verify(response, never()).setStatus(206);
+        Assert.assertEquals(20, body.size());
+    }
+
+    @Test
+    public void testTransferToBlockedChannel() throws Exception {
+        // A channel that never accepts data, as can happen with non-blocking
+        // containers; the data must be written through the stream instead.
+        class BlockedChannelStream extends ByteArrayOutputStream implements WritableByteChannel {
+
+            @Override
+            public int write(ByteBuffer src) {
+                return 0;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+        }
+
+        BlockedChannelStream os = new BlockedChannelStream();
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            DownloadUtil.transfer(channel, 5, 10, os);
+        }
+        Assert.assertEquals("56789abcde", os.toString("US-ASCII"));
+
+        os.reset();
+        ByteBuffer content = ByteBuffer.wrap("0123456789".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+        DownloadUtil.transfer(content, 2, 5, os);
+        Assert.assertEquals("23456", os.toString("US-ASCII"));
+    }
+}
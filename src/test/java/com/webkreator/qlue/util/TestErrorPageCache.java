@@ -0,0 +1,80 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.mockito.Mockito.*;
+
+public class TestErrorPageCache {
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        });
+    }
+
+    @Test
+    public void testErrorPageCache() throws Exception {
+        File dir = Files.createTempDirectory("qlue").toFile();
+        File page404 = new File(dir, "error-404.html");
+        Files.write(page404.toPath(), "<html>\n<p>Not here</p>\n</html>\n".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            ErrorPageCache errorPages = new ErrorPageCache(dir);
+            Assert.assertEquals("<html>\n<p>Not here</p>\n</html>\n", new String(errorPages.getPage(404), StandardCharsets.UTF_8));
+            Assert.assertTrue(new String(errorPages.getPage(500), StandardCharsets.UTF_8).startsWith("<!DOCTYPE html>"));
+            Assert.assertSame(errorPages.getPage(500), errorPages.getPage(500));
+
+            Files.write(new File(dir, "catch-all.html").toPath(), "Oops".getBytes(StandardCharsets.UTF_8));
+            errorPages.invalidate();
+            Assert.assertEquals("Oops", new String(errorPages.getPage(500), StandardCharsets.UTF_8));
+
+            when(response.getStatus()).thenReturn(404);
+            QlueErrorPageServlet.outputErrorPage(request, response, errorPages);
+            verify(response).setContentLength(errorPages.getPage(404).length);
+            Assert.assertEquals("<html>\n<p>Not here</p>\n</html>\n", body.toString("UTF-8"));
+
+            Assert.assertEquals(page404, ErrorPageCache.findFile(dir, 404));
+            Assert.assertEquals(new File(dir, "catch-all.html"), ErrorPageCache.findFile(dir, 500));
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
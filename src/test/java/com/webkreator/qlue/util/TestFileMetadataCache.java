@@ -0,0 +1,38 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TestFileMetadataCache {
+
+    @Test
+    public void testFileMetadataCache() throws Exception {
+        File dir = Files.createTempDirectory("qlue").toFile();
+        FileMetadataCache metadata = new FileMetadataCache(dir.toPath(), 60000, 100);
+
+        try {
+            File index = new File(dir, "index.html");
+            Assert.assertFalse(metadata.get(index).exists());
+            Assert.assertNull(metadata.findIndex(dir, "index.html"));
+
+            // Negative entries are remembered until invalidated.
+            Files.write(index.toPath(), "<html>".getBytes(StandardCharsets.US_ASCII));
+            Assert.assertFalse(metadata.get(index).exists());
+            Assert.assertNull(metadata.findIndex(dir, "index.html"));
+
+            metadata.invalidate(index.toPath());
+            Assert.assertEquals(6, metadata.get(index).getLength());
+            Assert.assertEquals(index, metadata.findIndex(dir, "index.htm", "index.html"));
+            Assert.assertTrue(metadata.getHits() > 0);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
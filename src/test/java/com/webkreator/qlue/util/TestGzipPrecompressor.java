@@ -0,0 +1,40 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TestGzipPrecompressor {
+
+    @Test
+    public void testCompressTree() throws Exception {
+        File dir = Files.createTempDirectory("qlue").toFile();
+        File css = new File(dir, "site.css");
+        File png = new File(dir, "image.png");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("body { margin: 0; }\n");
+        }
+        Files.write(css.toPath(), sb.toString().getBytes(StandardCharsets.US_ASCII));
+        Files.write(png.toPath(), sb.toString().getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            Assert.assertEquals(1, GzipPrecompressor.compressTree(dir.toPath()));
+            File variant = new File(dir, "site.css.gz");
+            Assert.assertTrue(variant.length() < css.length());
+            Assert.assertEquals(css.lastModified(), variant.lastModified());
+
+            // Fresh variants are not recreated.
+            Assert.assertEquals(0, GzipPrecompressor.compressTree(dir.toPath()));
+            Assert.assertEquals(3, dir.listFiles().length);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
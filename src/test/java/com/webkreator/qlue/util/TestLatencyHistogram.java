@@ -0,0 +1,22 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(-1, LatencyHistogram.getPercentileMicros(histogram.getCounts(), 0.99));
+
+        // 3 ms falls into bucket 12, which counts values below 4096 microseconds.
+        histogram.record(3000000L);
+        Assert.assertEquals(4096, LatencyHistogram.getPercentileMicros(histogram.getCounts(), 0.5));
+        Assert.assertEquals(3000000L, histogram.getTotalNanos());
+
+        // Very long durations end up in the last bucket.
+        histogram.record(60000000000L);
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.getPercentileMicros(histogram.getCounts(), 0.99));
+    }
+}
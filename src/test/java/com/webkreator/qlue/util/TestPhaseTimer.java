@@ -0,0 +1,29 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPhaseTimer {
+
+    @Test
+    public void testServerTiming() {
+        PhaseTimer timer = new PhaseTimer();
+        timer.mark(PhaseTimer.Phase.ROUTE);
+        timer.mark(PhaseTimer.Phase.SERVICE);
+        Assert.assertTrue(timer.isMarked(PhaseTimer.Phase.SERVICE));
+        Assert.assertFalse(timer.isMarked(PhaseTimer.Phase.ACCESS));
+        Assert.assertTrue(timer.toServerTiming().matches("route;dur=[0-9.]+, service;dur=[0-9.]+, total;dur=[0-9.]+"));
+    }
+
+    @Test
+    public void testCurrentPhase() {
+        PhaseTimer timer = new PhaseTimer();
+        Assert.assertEquals(PhaseTimer.Phase.ROUTE, timer.getCurrentPhase());
+
+        timer.mark(PhaseTimer.Phase.ROUTE);
+        Assert.assertEquals(PhaseTimer.Phase.ACCESS, timer.getCurrentPhase());
+
+        timer.mark(PhaseTimer.Phase.COMMIT);
+        Assert.assertNull(timer.getCurrentPhase());
+    }
+}
@@ -0,0 +1,54 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestRateLimiter {
+
+    @Test
+    public void testTokenBucket() throws Exception {
+        // 10 requests per second, in bursts of up to 3.
+        RateLimiter limiter = new RateLimiter("test", 10, 1000, 3, RateLimiter.KeyType.IP, 64 * 8);
+        long now = 1000000000L;
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, limiter.tryAcquire("a", now));
+        }
+
+        // The fourth request must wait for one emission interval (100 ms).
+        Assert.assertEquals(100000000L, limiter.tryAcquire("a", now));
+        Assert.assertEquals(0, limiter.tryAcquire("b", now));
+        Assert.assertEquals(0, limiter.tryAcquire("a", now + 100000000L));
+
+        // The memory use is bounded, no matter how many clients there are.
+        for (int i = 0; i < 100000; i++) {
+            limiter.tryAcquire("client" + i, now);
+        }
+
+        Assert.assertTrue(limiter.getKeyCount() <= 64 * 8);
+        Assert.assertTrue(limiter.getEvicted() > 0);
+
+        // Concurrent clients can't exceed their burst.
+        RateLimiter shared = new RateLimiter("shared", 1, 60000, 1000, RateLimiter.KeyType.IP, 100000);
+        AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (shared.tryAcquire("hot", System.nanoTime()) == 0) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(1000, allowed.get());
+    }
+}
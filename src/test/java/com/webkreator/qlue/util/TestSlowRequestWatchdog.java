@@ -0,0 +1,87 @@
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.mockito.Mockito.when;
+
+public class TestSlowRequestWatchdog {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    TransactionContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getRequestURI()).thenReturn("/slow");
+        context = new TransactionContext(new QlueApplication() {}, servletConfig, servletContext, request, response);
+    }
+
+    @Test
+    public void testReportsSlowRequests() throws Exception {
+        List<String> reports = new CopyOnWriteArrayList<>();
+        List<String> reporters = new CopyOnWriteArrayList<>();
+        SlowRequestWatchdog watchdog = new SlowRequestWatchdog(50, 10, 1000, (tx, report) -> {
+            reporters.add(Thread.currentThread().getName());
+            reports.add(report);
+        });
+
+        // Fast requests are not reported.
+        watchdog.untrack(watchdog.track(context));
+        Assert.assertTrue(reports.isEmpty());
+
+        watchdog.start();
+        try {
+            SlowRequestWatchdog.InFlight inFlight = watchdog.track(context);
+            Assert.assertEquals(1, watchdog.getInFlightCount());
+            slowMethod(300);
+            watchdog.untrack(inFlight);
+        } finally {
+            watchdog.stop();
+        }
+
+        Assert.assertEquals(0, watchdog.getInFlightCount());
+
+        // The report is made from the watchdog thread.
+        for (int i = 0; (i < 500) && reports.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(1, reports.size());
+        Assert.assertEquals("qlue-slow-request-watchdog", reporters.get(0));
+        String report = reports.get(0);
+        Assert.assertTrue(report.startsWith("Slow request: txId=" + context.getTxId() + " uri=/slow"));
+        Assert.assertTrue(report.contains(".slowMethod"));
+        Assert.assertFalse(report.contains("still running"));
+    }
+
+    private static void slowMethod(long millis) {
+        long end = System.nanoTime() + millis * 1000000L;
+        while (System.nanoTime() < end) {
+            Thread.onSpinWait();
+        }
+    }
+}
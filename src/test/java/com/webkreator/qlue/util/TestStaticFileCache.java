@@ -0,0 +1,140 @@
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.mockito.Mockito.*;
+
+public class TestStaticFileCache {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getRequestURI()).thenReturn("/file.txt");
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader(anyString())).thenReturn(-1L);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        });
+
+        file = File.createTempFile("qlue", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testStaticFileCache() throws Exception {
+        StaticFileCache cache = new StaticFileCache(file.getParentFile().toPath(), 30, 1024, true);
+
+        StaticFileCache.Entry entry = cache.get(file, null);
+        Assert.assertEquals(20, entry.getLength());
+        Assert.assertEquals("text/plain", entry.getContentType());
+        Assert.assertSame(entry, cache.get(file, null));
+        Assert.assertEquals(0.5, cache.getHitRatio(), 0.001);
+        Assert.assertEquals(20, cache.getSize());
+
+        when(request.getHeader("Range")).thenReturn("bytes=5-9");
+        DownloadUtil.sendCachedFile(new TransactionContext(new QlueApplication() {}, servletConfig, servletContext, request, response), entry, null);
+        verify(response).setStatus(206);
+        Assert.assertEquals("56789", body.toString("US-ASCII"));
+
+        // Adding another file exceeds the maximum size and evicts the first one.
+        File other = File.createTempFile("qlue", ".txt");
+        other.deleteOnExit();
+        Files.write(other.toPath(), "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII));
+        cache.get(other, null);
+        Assert.assertEquals(1, cache.getEntryCount());
+        Assert.assertEquals(1, cache.getEvictions());
+
+        cache.invalidate(other.getParentFile().toPath());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    private File createFile(String content) throws Exception {
+        File f = File.createTempFile("qlue", ".txt");
+        f.deleteOnExit();
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return f;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        StaticFileCache cache = new StaticFileCache(file.getParentFile().toPath(), 50, 1024, false);
+        File second = createFile("0123456789abcdefghij");
+        File third = createFile("0123456789abcdefghij");
+
+        StaticFileCache.Entry first = cache.get(file, null);
+        cache.get(second, null);
+        Thread.sleep(1);
+
+        // The first file is used more recently than the second one, which is evicted.
+        Assert.assertSame(first, cache.get(file, null));
+        cache.get(third, null);
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertEquals(40, cache.getSize());
+        Assert.assertSame(first, cache.get(file, null));
+        Assert.assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testInvalidatedDuringLoad() throws Exception {
+        StaticFileCache cache = new StaticFileCache(file.getParentFile().toPath(), 1024, 1024, false) {
+            @Override
+            Entry load(File f, String contentType) throws IOException {
+                Entry entry = super.load(f, contentType);
+                // The file changes after we've read it.
+                invalidate(f.toPath());
+                return entry;
+            }
+        };
+
+        Assert.assertNotNull(cache.get(file, null));
+        Assert.assertEquals(0, cache.getEntryCount());
+        Assert.assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,21 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+public class TestVirtualThreads {
+
+    @Test
+    public void testNewExecutor() throws Exception {
+        Assert.assertEquals(Runtime.version().feature() >= 21, VirtualThreads.isSupported());
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+
+        CompletableFuture<Thread> thread = new CompletableFuture<>();
+        VirtualThreads.newExecutor("qlue-test-").execute(() -> thread.complete(Thread.currentThread()));
+        Assert.assertTrue(thread.get().getName().startsWith("qlue-test-"));
+    }
+}
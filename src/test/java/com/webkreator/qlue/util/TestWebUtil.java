@@ -0,0 +1,17 @@
+package com.webkreator.qlue.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWebUtil {
+
+    @Test
+    public void testAcceptsEncoding() {
+        Assert.assertTrue(WebUtil.acceptsEncoding("gzip, deflate, br", "br"));
+        Assert.assertTrue(WebUtil.acceptsEncoding("GZIP;q=0.5", "gzip"));
+        Assert.assertFalse(WebUtil.acceptsEncoding("gzip;q=0, *", "gzip"));
+        Assert.assertTrue(WebUtil.acceptsEncoding("identity, *;q=0.1", "br"));
+        Assert.assertFalse(WebUtil.acceptsEncoding("identity", "gzip"));
+        Assert.assertFalse(WebUtil.acceptsEncoding(null, "gzip"));
+    }
+}
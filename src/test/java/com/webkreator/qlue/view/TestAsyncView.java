@@ -0,0 +1,113 @@
+package com.webkreator.qlue.view;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.exceptions.NotFoundException;
+import com.webkreator.qlue.exceptions.ServiceUnavailableException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class TestAsyncView {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    View rendered;
+
+    TransactionContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        QlueApplication app = new QlueApplication() {
+            @Override
+            public long getAsyncPageTimeout() {
+                return 50;
+            }
+
+            @Override
+            public void renderView(View view, TransactionContext tx, Page page) {
+                rendered = view;
+            }
+        };
+
+        context = new TransactionContext(app, servletConfig, servletContext, request, response);
+    }
+
+    @Test
+    public void testCompletion() throws Exception {
+        CompletableFuture<View> future = new CompletableFuture<>();
+        AsyncView asyncView = AsyncView.of(future);
+        View view = new StatusCodeView(204);
+
+        new Thread(() -> future.complete(view)).start();
+        Assert.assertSame(view, asyncView.await(10000));
+    }
+
+    @Test
+    public void testAlreadyCompleted() throws Exception {
+        View view = new StatusCodeView(204);
+        Assert.assertSame(view, AsyncView.of(CompletableFuture.completedFuture(view)).await(1));
+    }
+
+    @Test
+    public void testExceptionalCompletion() throws Exception {
+        CompletableFuture<View> future = new CompletableFuture<>();
+        future.completeExceptionally(new CompletionException(new NotFoundException()));
+
+        try {
+            AsyncView.of(future).await(1000);
+            Assert.fail();
+        } catch (NotFoundException e) {
+            // The original exception determines the response status.
+            Assert.assertEquals(Integer.valueOf(404), QlueApplication.determineStatusCodeFromException(e));
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        try {
+            AsyncView.of(new CompletableFuture<View>()).await(50);
+            Assert.fail();
+        } catch (ServiceUnavailableException e) {
+            Assert.assertEquals(Integer.valueOf(503), QlueApplication.determineStatusCodeFromException(e));
+        }
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        // Without asynchronous support, the view is rendered in the request thread.
+        View view = new StatusCodeView(204);
+        AsyncView.of(CompletableFuture.completedFuture(view)).render(context, null);
+        Assert.assertSame(view, rendered);
+
+        // The application's timeout applies.
+        try {
+            AsyncView.of(new CompletableFuture<View>()).render(context, null);
+            Assert.fail();
+        } catch (ServiceUnavailableException e) {
+            // Expected.
+        }
+    }
+}